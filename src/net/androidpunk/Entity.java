@@ -22,6 +22,11 @@ public class Entity extends Tweener {
      * If the Entity should respond to collision checks.
      */
     public boolean collidable = true;
+    
+    /**
+     * Draw order within a layer sorted with World.SORT_DEPTH. Higher depths are rendered first, like layers.
+     */
+    public int depth = 0;
 
     /**
      * X position of the Entity in the World.
@@ -451,6 +456,11 @@ public class Entity extends Tweener {
 	 */
 	public int getBottom() { return y - originY + height; }
 	
+	/**
+	 * The y used to order Entities in a World.SORT_Y layer, the bottom of the hitbox by default.
+	 */
+	public int getSortY() { return getBottom(); }
+	
 	/**
 	 * The rendering layer of this Entity. Higher layers are rendered first.
 	 */
@@ -503,6 +513,9 @@ public class Entity extends Tweener {
 	
 	public Graphic getGraphic() { return mGraphic; }
     public void setGraphic(Graphic g) {
+    	if (mGraphic != null && mGraphic != g) {
+    		mGraphic.releaseReferences();
+    	}
     	if (g != null) { 
             mGraphic = g;
             mGraphic.mAssign.assigned(this);
@@ -90,11 +90,28 @@ public class Graphic {
     /**
      * Releases any native memory, like bitmaps, So that memory is handled better. 
      */
-    protected void release() {
+    public void release() {
+    	releaseReferences();
+    }
+    
+    /**
+     * Gives up the references that keep textures loaded, once the graphic is no
+     * longer shown. Nothing is freed, graphics reference their textures again
+     * when they are next rendered.
+     */
+    public void releaseReferences() {
     	
     }
     
     public void reload() {
     	
     }
+    
+    /**
+     * Key used to group draws in layers sorted by texture, usually the GL texture name.
+     * @return The key, or 0 if the graphic doesn't draw from a single texture.
+     */
+    public int getTextureKey() {
+    	return 0;
+    }
 }
@@ -1,5 +1,6 @@
 package net.androidpunk;
 
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
@@ -23,6 +24,28 @@ public class World extends Tweener {
 	 * Point used to determine drawing offset in the render loop.
 	 */
 	public Point camera = new Point();
+	
+	/**
+	 * Layer sort mode, Entities render in the order they were added (default).
+	 */
+	public static final int SORT_NONE = 0;
+	
+	/**
+	 * Layer sort mode, Entities render grouped by their graphic's texture, then in the order they were added.
+	 */
+	public static final int SORT_TEXTURE = 1;
+	
+	/**
+	 * Layer sort mode, Entities render by their depth, then in the order they were added.
+	 */
+	public static final int SORT_DEPTH = 2;
+	
+	/**
+	 * Layer sort mode, Entities render from the smallest sort y (Entity.getSortY()) to the largest, 
+	 * for top-down games. The layer's render list itself is kept sorted, so only Entities that moved 
+	 * past their neighbours cost anything.
+	 */
+	public static final int SORT_Y = 3;
 
 	// Adding and removal.
 	private Vector<Entity> mAdd = new Vector<Entity>();
@@ -38,6 +61,9 @@ public class World extends Tweener {
 	Map<Integer, Integer> mLayerCount = new HashMap<Integer, Integer>();
 	Map<Integer, Entity> mRenderFirst = new HashMap<Integer, Entity>();
 	Map<Integer, Entity> mRenderLast = new HashMap<Integer, Entity>();
+	Map<Integer, Integer> mLayerSortMode = new HashMap<Integer, Integer>();
+	private long mSortKeys[] = new long[64];
+	private Entity mSortList[] = new Entity[64];
 	/*
 	 * private var mRenderFirst:Array = []; private var mRenderLast:Array = [];
 	 * private var mLayerList:Array = []; private var mLayerCount:Array = [];
@@ -101,7 +127,15 @@ public class World extends Tweener {
 			Entity e;
 			int i = mLayerList.size();
 			while (i-- > 0) {
-				e = mRenderLast.get(mLayerList.get(i));
+				Integer layer = mLayerList.get(i);
+				Integer sort = mLayerSortMode.get(layer);
+				if (sort != null && sort == SORT_Y) {
+					sortLayerY(layer);
+				} else if (sort != null && sort != SORT_NONE) {
+					renderSorted(layer, sort);
+					continue;
+				}
+				e = mRenderLast.get(layer);
 				while (e != null) {
 					if (e.visible)
 						e.render();
@@ -110,6 +144,104 @@ public class World extends Tweener {
 			}
 		}
 	}
+	
+	/** @private Renders a layer through a stably sorted draw list. */
+	private void renderSorted(Integer layer, int sort) {
+		int count = 0;
+		Entity e = mRenderLast.get(layer);
+		while (e != null) {
+			if (e.visible) {
+				if (count == mSortList.length) {
+					mSortList = Arrays.copyOf(mSortList, count * 2);
+					mSortKeys = Arrays.copyOf(mSortKeys, count * 2);
+				}
+				int key;
+				if (sort == SORT_TEXTURE) {
+					Graphic g = e.getGraphic();
+					key = g != null ? g.getTextureKey() : 0;
+				} else {
+					key = -e.depth;
+				}
+				// Key in the high bits, render order in the low bits keeps the sort stable.
+				mSortKeys[count] = ((long)key << 32) | count;
+				mSortList[count] = e;
+				count++;
+			}
+			e = e.mRenderPrev;
+		}
+		Arrays.sort(mSortKeys, 0, count);
+		for (int i = 0; i < count; i++) {
+			int index = (int)(mSortKeys[i] & 0xffffffffL);
+			mSortList[index].render();
+		}
+		Arrays.fill(mSortList, 0, count, null);
+	}
+	
+	/** @private Insertion sorts a layer's render list by sort y, near linear when little moved. */
+	private void sortLayerY(Integer layer) {
+		Entity last = mRenderLast.get(layer);
+		if (last == null)
+			return;
+		// Walk in render order, everything rendered before e is already sorted.
+		Entity e = last.mRenderPrev;
+		while (e != null) {
+			Entity next = e.mRenderPrev;
+			int key = e.getSortY();
+			Entity before = e.mRenderNext;
+			if (before.getSortY() > key) {
+				// pull from list
+				before.mRenderPrev = e.mRenderPrev;
+				if (e.mRenderPrev != null)
+					e.mRenderPrev.mRenderNext = before;
+				else
+					mRenderFirst.put(layer, before);
+				// find the last Entity rendered before e that should stay before it
+				Entity p = before.mRenderNext;
+				while (p != null && p.getSortY() > key)
+					p = p.mRenderNext;
+				if (p == null) {
+					// render first
+					e.mRenderNext = null;
+					e.mRenderPrev = last;
+					last.mRenderNext = e;
+					mRenderLast.put(layer, e);
+					last = e;
+				} else {
+					// render right after p
+					e.mRenderNext = p;
+					e.mRenderPrev = p.mRenderPrev;
+					if (p.mRenderPrev != null)
+						p.mRenderPrev.mRenderNext = e;
+					else
+						mRenderFirst.put(layer, e);
+					p.mRenderPrev = e;
+				}
+			}
+			e = next;
+		}
+	}
+	
+	/**
+	 * Sets how a layer orders its Entities when rendering. Sorting happens every frame
+	 * and is stable, so Entities with the same key keep the order they were added in.
+	 * @param layer The layer.
+	 * @param mode SORT_NONE, SORT_TEXTURE, SORT_DEPTH or SORT_Y.
+	 */
+	public void setLayerSort(int layer, int mode) {
+		synchronized (mLayerList) {
+			mLayerSortMode.put(layer, mode);
+		}
+	}
+	
+	/**
+	 * How a layer orders its Entities when rendering.
+	 * @param layer The layer.
+	 * @return SORT_NONE, SORT_TEXTURE, SORT_DEPTH or SORT_Y.
+	 */
+	public int getLayerSort(int layer) {
+		Integer mode = mLayerSortMode.get(layer);
+		return mode != null ? mode : SORT_NONE;
+	}
 
 	/**
 	 * X position of the touches in the World.
@@ -972,6 +1104,10 @@ public class World extends Tweener {
 					}
 					e.mAdded = false;
 
+					Graphic g = e.getGraphic();
+					if (g != null) {
+						g.releaseReferences();
+					}
 					e.removed();
 					removeUpdate(e);
 					removeRender(e);
@@ -8,7 +8,9 @@ import java.util.Queue;
 
 import javax.microedition.khronos.opengles.GL10;
 
+import net.androidpunk.graphics.opengl.SpriteBatch;
 import net.androidpunk.graphics.opengl.Texture;
+import android.opengl.ETC1Util;
 import android.os.SystemClock;
 import android.util.Log;
 
@@ -22,10 +24,31 @@ public class OpenGLSystem {
 	private static final float vertexArray[] = new float[8];
 	private static final float textureArray[] = new float[8];
 	
-	private static int mCurrentTexture = -1;
+	private static final int STATE_UNKNOWN = -1;
+	
+	private static int mCurrentTexture = STATE_UNKNOWN;
 	private static final Queue<OpenGLRunnable> mQueue = new LinkedList<OpenGLRunnable>();
 	
 	private static GL10 mGL;
+	
+	// State cache, mirrors what has been set on the GL context.
+	private static final StateTable mCaps = new StateTable();
+	private static final StateTable mClientStates = new StateTable();
+	private static boolean mColorKnown = false;
+	private static float mRed, mGreen, mBlue, mAlpha;
+	private static int mShadeModel = STATE_UNKNOWN;
+	private static int mBlendSrc = STATE_UNKNOWN;
+	private static int mBlendDst = STATE_UNKNOWN;
+	
+	// Incremented every time a new GL context is created.
+	private static int mContextGeneration = 0;
+	
+	// Checked on the GL thread, read by loader threads which have no context.
+	private static volatile boolean mETC1Supported = false;
+	
+	// State cache statistics.
+	private static int mCallsSaved = 0;
+	private static int mLastCallsSaved = 0;
     
     public OpenGLSystem() {
         this(null);
@@ -41,6 +64,46 @@ public class OpenGLSystem {
     	public abstract void run(GL10 gl);
     }
     
+    /**
+     * Tracks on/off states by GL enum, for caps and client states.
+     */
+    private static class StateTable {
+    	private static final int MAX_STATES = 16;
+    	
+    	private final int mNames[] = new int[MAX_STATES];
+    	private final int mStates[] = new int[MAX_STATES];
+    	private int mCount = 0;
+    	
+    	/**
+    	 * Records a state.
+    	 * @return true if the state changed and the GL call is needed.
+    	 */
+    	public boolean set(int name, boolean enabled) {
+    		int value = enabled ? 1 : 0;
+    		for (int i = 0; i < mCount; i++) {
+    			if (mNames[i] == name) {
+    				if (mStates[i] == value) {
+    					return false;
+    				}
+    				mStates[i] = value;
+    				return true;
+    			}
+    		}
+    		if (mCount < MAX_STATES) {
+    			mNames[mCount] = name;
+    			mStates[mCount] = value;
+    			mCount++;
+    		}
+    		return true;
+    	}
+    	
+    	public void invalidate() {
+    		for (int i = 0; i < mCount; i++) {
+    			mStates[i] = STATE_UNKNOWN;
+    		}
+    	}
+    }
+    
     
     /**
      * Pop runnables off the queue until time is up.
@@ -105,9 +168,181 @@ public class OpenGLSystem {
     }
     
     public static void setTexture(GL10 gl, Texture texture) {
-    	mCurrentTexture = texture.mTextureName;
-    	gl.glEnable(GL10.GL_TEXTURE_2D);
-    	gl.glBindTexture(GL10.GL_TEXTURE_2D, mCurrentTexture);
+    	// Anything binding a texture is about to draw, so draw the batch first.
+    	SpriteBatch.flush(gl);
+    	enable(gl, GL10.GL_TEXTURE_2D);
+    	bindTexture(gl, texture.mTextureName);
+    	texture.markUsed();
+    }
+    
+    /**
+     * Binds a texture name unless it is already bound.
+     * @param gl the GL context.
+     * @param textureName the texture to bind.
+     */
+    public static void bindTexture(GL10 gl, int textureName) {
+    	if (mCurrentTexture == textureName) {
+    		mCallsSaved++;
+    		return;
+    	}
+    	mCurrentTexture = textureName;
+    	gl.glBindTexture(GL10.GL_TEXTURE_2D, textureName);
+    }
+    
+    /**
+     * Call after deleting a texture, GL may hand out the same name again.
+     * @param textureName the deleted texture.
+     */
+    public static void forgetTexture(int textureName) {
+    	if (mCurrentTexture == textureName) {
+    		mCurrentTexture = STATE_UNKNOWN;
+    	}
+    }
+    
+    /**
+     * glEnable, skipped if the cap is already enabled.
+     */
+    public static void enable(GL10 gl, int cap) {
+    	if (mCaps.set(cap, true)) {
+    		gl.glEnable(cap);
+    	} else {
+    		mCallsSaved++;
+    	}
+    }
+    
+    /**
+     * glDisable, skipped if the cap is already disabled.
+     */
+    public static void disable(GL10 gl, int cap) {
+    	if (mCaps.set(cap, false)) {
+    		gl.glDisable(cap);
+    	} else {
+    		mCallsSaved++;
+    	}
+    }
+    
+    /**
+     * glEnableClientState, skipped if the array is already enabled.
+     */
+    public static void enableClientState(GL10 gl, int array) {
+    	if (mClientStates.set(array, true)) {
+    		gl.glEnableClientState(array);
+    	} else {
+    		mCallsSaved++;
+    	}
+    }
+    
+    /**
+     * glDisableClientState, skipped if the array is already disabled.
+     */
+    public static void disableClientState(GL10 gl, int array) {
+    	if (mClientStates.set(array, false)) {
+    		gl.glDisableClientState(array);
+    	} else {
+    		mCallsSaved++;
+    	}
+    }
+    
+    /**
+     * glColor4f, skipped if the color is already current.
+     */
+    public static void setColor(GL10 gl, float red, float green, float blue, float alpha) {
+    	if (mColorKnown && mRed == red && mGreen == green && mBlue == blue && mAlpha == alpha) {
+    		mCallsSaved++;
+    		return;
+    	}
+    	mColorKnown = true;
+    	mRed = red;
+    	mGreen = green;
+    	mBlue = blue;
+    	mAlpha = alpha;
+    	gl.glColor4f(red, green, blue, alpha);
+    }
+    
+    /**
+     * glShadeModel, skipped if the model is already set.
+     */
+    public static void setShadeModel(GL10 gl, int mode) {
+    	if (mShadeModel == mode) {
+    		mCallsSaved++;
+    		return;
+    	}
+    	mShadeModel = mode;
+    	gl.glShadeModel(mode);
+    }
+    
+    /**
+     * glBlendFunc, skipped if the functions are already set.
+     */
+    public static void setBlendFunc(GL10 gl, int src, int dst) {
+    	if (mBlendSrc == src && mBlendDst == dst) {
+    		mCallsSaved++;
+    		return;
+    	}
+    	mBlendSrc = src;
+    	mBlendDst = dst;
+    	gl.glBlendFunc(src, dst);
+    }
+    
+    /**
+     * Call when a new GL context has been created. Everything created in the
+     * old context (textures, buffer objects) is gone and the state is unknown.
+     */
+    public static void newContext() {
+    	mContextGeneration++;
+    	invalidateState();
+    	mETC1Supported = ETC1Util.isETC1Supported();
+    }
+    
+    /**
+     * If the current context can upload ETC1 textures. Safe to call from any thread.
+     */
+    public static boolean isETC1Supported() {
+    	return mETC1Supported;
+    }
+    
+    /**
+     * Identifies the current GL context, compare with a stored value to 
+     * find out if GL objects have to be recreated.
+     */
+    public static int getContextGeneration() {
+    	return mContextGeneration;
+    }
+    
+    /**
+     * Forget the current color. Drawing with a color array leaves it undefined.
+     */
+    public static void invalidateColor() {
+    	mColorKnown = false;
+    }
+    
+    /**
+     * Forget all cached state, call this when the context is created or 
+     * something changed state without going through OpenGLSystem.
+     */
+    public static void invalidateState() {
+    	mCurrentTexture = STATE_UNKNOWN;
+    	mCaps.invalidate();
+    	mClientStates.invalidate();
+    	mColorKnown = false;
+    	mShadeModel = STATE_UNKNOWN;
+    	mBlendSrc = STATE_UNKNOWN;
+    	mBlendDst = STATE_UNKNOWN;
+    }
+    
+    /**
+     * Ends the frame's state statistics, call once a frame.
+     */
+    public static void resetFrameStats() {
+    	mLastCallsSaved = mCallsSaved;
+    	mCallsSaved = 0;
+    }
+    
+    /**
+     * How many GL calls the state cache skipped in the last frame.
+     */
+    public static int getCallsSaved() {
+    	return mLastCallsSaved;
     }
 
     public void reset() {
@@ -1,23 +1,22 @@
 package net.androidpunk.android;
 
 import java.lang.reflect.InvocationTargetException;
-import java.util.Vector;
 
 import javax.microedition.khronos.egl.EGLConfig;
 import javax.microedition.khronos.opengles.GL10;
 
 import net.androidpunk.Engine;
-import net.androidpunk.Entity;
 import net.androidpunk.FP;
-import net.androidpunk.Graphic;
 import net.androidpunk.R;
 import net.androidpunk.Sfx;
 import net.androidpunk.flashcompat.Event;
 import net.androidpunk.flashcompat.Timer;
-import net.androidpunk.graphics.Text;
 import net.androidpunk.graphics.atlas.AtlasText;
 import net.androidpunk.graphics.atlas.GraphicList;
-import net.androidpunk.graphics.opengl.Atlas;
+import net.androidpunk.graphics.opengl.AtlasProfiler;
+import net.androidpunk.graphics.opengl.SpriteBatch;
+import net.androidpunk.graphics.opengl.TextureLoader;
+import net.androidpunk.graphics.opengl.TextureManager;
 import net.androidpunk.graphics.opengl.TextAtlas;
 import net.androidpunk.utils.Input;
 import android.app.Activity;
@@ -112,13 +111,18 @@ public class PunkActivity extends Activity implements OnTouchListener {
 			synchronized (mUpdateLock) {
 				
 				gl.glClear(GL10.GL_COLOR_BUFFER_BIT);
+				SpriteBatch.resetStats();
+				OpenGLSystem.resetFrameStats();
 	
+				TextureManager.newFrame();
+				TextureLoader.processUploads(gl, TextureLoader.uploadBudget);
 				OpenGLSystem.processQueue(14);
 				
 				// Iterate loop and draw them.
 				if (mEngine != null) {
 					mEngine.render();
 				}
+				SpriteBatch.flush(gl);
 				if (FP.debug) {
 					if (mDebugUpdateCount % 30 == 0) {
 						mFPS.setText(String.format("FPS: %3.0f", Math.min(FP.frameRate, 60)));
@@ -130,7 +134,11 @@ public class PunkActivity extends Activity implements OnTouchListener {
 					FP.point.set(0,0);
 					OpenGLSystem.processQueue(4);
 					mDebug.render(gl, FP.point, FP.point);
+					SpriteBatch.flush(gl);
 				}
+				TextureManager.restore(gl, TextureManager.restoreBudget);
+				TextureManager.trim(gl);
+				AtlasProfiler.endFrame();
 			}
 			
 			FP.renderTime = SystemClock.uptimeMillis() - mRenderTime;
@@ -187,16 +195,22 @@ public class PunkActivity extends Activity implements OnTouchListener {
 	         * on features of this particular context
 	         */
 			
+	        // New context, nothing we remember about the old one is true.
+	        OpenGLSystem.newContext();
+	        // Textures come back as they are drawn, see TextureManager.restore().
+	        TextureManager.contextLost();
+	        
 	        gl.glHint(GL10.GL_PERSPECTIVE_CORRECTION_HINT, GL10.GL_FASTEST);
 
 	        gl.glClearColor(0.1f, 0.1f, 0.1f, 1.0f);
-	        gl.glShadeModel(GL10.GL_FLAT);
+	        OpenGLSystem.setShadeModel(gl, GL10.GL_FLAT);
 	       
-	        gl.glEnableClientState(GL10.GL_VERTEX_ARRAY);
-	        gl.glEnableClientState(GL10.GL_TEXTURE_COORD_ARRAY);
+	        OpenGLSystem.enableClientState(gl, GL10.GL_VERTEX_ARRAY);
+	        OpenGLSystem.enableClientState(gl, GL10.GL_TEXTURE_COORD_ARRAY);
+	        OpenGLSystem.disableClientState(gl, GL10.GL_COLOR_ARRAY);
 	        
-	        gl.glEnable(GL10.GL_TEXTURE_2D);
-	        gl.glEnable(GL10.GL_SCISSOR_TEST);
+	        OpenGLSystem.enable(gl, GL10.GL_TEXTURE_2D);
+	        OpenGLSystem.enable(gl, GL10.GL_SCISSOR_TEST);
 
 	        /*
 	         * By default, OpenGL enables features that improve quality but reduce
@@ -211,8 +225,8 @@ public class PunkActivity extends Activity implements OnTouchListener {
 
 	        gl.glTexEnvx(GL10.GL_TEXTURE_ENV, GL10.GL_TEXTURE_ENV_MODE, GL10.GL_MODULATE);
 	        
-	        gl.glBlendFunc(GL10.GL_SRC_ALPHA, GL10.GL_ONE_MINUS_SRC_ALPHA);
-	        gl.glEnable(GL10.GL_BLEND);
+	        OpenGLSystem.setBlendFunc(gl, GL10.GL_SRC_ALPHA, GL10.GL_ONE_MINUS_SRC_ALPHA);
+	        OpenGLSystem.enable(gl, GL10.GL_BLEND);
 
 	        gl.glClear(GL10.GL_COLOR_BUFFER_BIT | GL10.GL_DEPTH_BUFFER_BIT);
 	       
@@ -406,35 +420,8 @@ public class PunkActivity extends Activity implements OnTouchListener {
 		if (result != AudioManager.AUDIOFOCUS_REQUEST_GRANTED) {
 			Log.e(TAG, "Failed to request focus. No sound.");
 		}
-		// A real resume to game state.
-		if (mEngine != null) {
-			// Reload the atlas
-			int count = Atlas.ATLAS.size();
-			for (int i = 0; i < count; i++) {
-				Atlas.ATLAS.get(i).reload();
-			}
-			// TODO make bitmap font so I can load that atlas instead of scowring the entities for the Text to reload.
-			Vector<Entity> v = new Vector<Entity>();
-			FP.getWorld().getAll(v);
-			count = v.size();
-			for (int i = 0; i < count; i++) {
-				Entity e = v.get(i);
-				Graphic g = e.getGraphic();
-				if (g instanceof Text) {
-					g.reload();
-				} else if (g instanceof GraphicList) {
-					GraphicList list = (GraphicList)g;
-					Vector<Graphic> glist = list.getChildren();
-					int glistCount = glist.size();
-					for (int k = 0; k < glistCount; k++ ) {
-						Graphic listGraphic = glist.get(k);
-						if (listGraphic instanceof Text) {
-							listGraphic.reload();
-						}
-					}
-				}
-			}
-		}
+		// Textures lost with the context are restored by the TextureManager
+		// when onSurfaceCreated gets a new one, buffer objects when next bound.
 	}
 	
 	@Override
@@ -284,6 +284,25 @@ public class Console {
 			}
 		};
 		registerCommand("step", step);
+		
+		Command pngbench = new Command() {
+			@Override
+			public String execute(String... args) {
+				if (args.length < 1) {
+					return "Usage: pngbench path [runs]\r\n";
+				}
+				int runs = 5;
+				if (args.length > 1) {
+					try {
+						runs = Integer.parseInt(args[1]);
+					} catch (NumberFormatException e) {
+						return String.format("runs must be a number, not '%s'.\r\n", args[1]);
+					}
+				}
+				return PNGBenchmark.run(args[0], runs);
+			}
+		};
+		registerCommand("pngbench", pngbench);
 	}
 	
 	/**
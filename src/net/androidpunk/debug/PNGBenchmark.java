@@ -0,0 +1,177 @@
+package net.androidpunk.debug;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+import net.androidpunk.FP;
+import net.androidpunk.graphics.opengl.PNGDecoder;
+import net.androidpunk.graphics.opengl.TextureFormat;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Debug;
+import android.util.Log;
+
+/**
+ * Times decoding PNG assets with BitmapFactory against PNGDecoder, and
+ * measures the peak Java and native heap each uses while decoding. Run it
+ * on the devices you ship to before turning on TextureLoader.usePNGDecoder.
+ *
+ * Both decode from scratch every time to 32 bits per pixel, PNGDecoder
+ * allocates a new RGBA_8888 buffer like BitmapFactory allocates a new
+ * ARGB_8888 Bitmap. Times are taken without the
+ * heap sampler running, the peaks in a separate pass with it.
+ *
+ * Registered in the Console as "pngbench path [runs]".
+ */
+public class PNGBenchmark {
+
+	private static final String TAG = "PNGBenchmark";
+
+	/**
+	 * How often the heap is sampled while measuring peaks, in milliseconds.
+	 */
+	public static int sampleInterval = 1;
+
+	private static final int BITMAP_FACTORY = 0;
+	private static final int PNG_DECODER = 1;
+
+	/**
+	 * Decodes an asset both ways and reports the averages.
+	 * @param	path		Asset path of a PNG.
+	 * @param	runs		Times to decode it each way, after one warm up run.
+	 * @return	The report, also logged.
+	 */
+	public static String run(String path, int runs) {
+		runs = Math.max(1, runs);
+		long time[] = new long[2];
+		long peak[][] = new long[2][];
+		int pixelBytes[] = new int[2];
+		try {
+			for (int i = -1; i < runs; i++) {
+				for (int which = BITMAP_FACTORY; which <= PNG_DECODER; which++) {
+					getJavaHeap();
+					long start = System.nanoTime();
+					Object pixels = decode(path, which);
+					long elapsed = System.nanoTime() - start;
+					if (i >= 0) {
+						time[which] += elapsed;
+					}
+					pixelBytes[which] = free(pixels);
+				}
+			}
+			for (int which = BITMAP_FACTORY; which <= PNG_DECODER; which++) {
+				peak[which] = measurePeak(path, which);
+			}
+		} catch (IOException e) {
+			return "Could not decode " + path + ": " + e.getMessage() + "\r\n";
+		}
+		String s = String.format("%s, %d runs\r\n", path, runs)
+				+ format("BitmapFactory", time[BITMAP_FACTORY] / runs, peak[BITMAP_FACTORY], pixelBytes[BITMAP_FACTORY])
+				+ format("PNGDecoder   ", time[PNG_DECODER] / runs, peak[PNG_DECODER], pixelBytes[PNG_DECODER]);
+		Log.d(TAG, s);
+		return s;
+	}
+
+	private static String format(String name, long nanos, long peak[], int pixelBytes) {
+		return String.format("%s: %.2f ms, peak java +%d KB, peak native +%d KB, pixels %d KB\r\n",
+				name, nanos / 1e6, peak[0] / 1024, peak[1] / 1024, pixelBytes / 1024);
+	}
+
+	/** @private Decodes once into a new Bitmap or ByteBuffer. */
+	private static Object decode(String path, int which) throws IOException {
+		InputStream is = open(path);
+		try {
+			if (which == BITMAP_FACTORY) {
+				BitmapFactory.Options opts = new BitmapFactory.Options();
+				opts.inPreferredConfig = Bitmap.Config.ARGB_8888;
+				Bitmap bm = BitmapFactory.decodeStream(is, null, opts);
+				if (bm == null) {
+					throw new IOException("BitmapFactory returned null");
+				}
+				return bm;
+			}
+			PNGDecoder decoder = new PNGDecoder(new BufferedInputStream(is, 8192));
+			// The same format as the ARGB_8888 Bitmap, so both do the same work.
+			return decoder.decode(null, TextureFormat.RGBA_8888, true, false, 1);
+		} finally {
+			is.close();
+		}
+	}
+
+	/** @private Frees what decode() returned, returns the size of the pixels. */
+	private static int free(Object pixels) {
+		if (pixels instanceof Bitmap) {
+			Bitmap bm = (Bitmap)pixels;
+			int bytes = bm.getRowBytes() * bm.getHeight();
+			bm.recycle();
+			return bytes;
+		}
+		return pixels != null ? ((ByteBuffer)pixels).capacity() : 0;
+	}
+
+	/**
+	 * @private Decodes once while another thread samples the heap.
+	 * @return	Peak Java and native heap above what was in use before, in bytes.
+	 */
+	private static long[] measurePeak(final String path, int which) throws IOException {
+		final long javaBase = getJavaHeap();
+		final long nativeBase = Debug.getNativeHeapAllocatedSize();
+		final long peak[] = new long[2];
+		final boolean done[] = new boolean[1];
+		Thread sampler = new Thread(new Runnable() {
+			public void run() {
+				Runtime r = Runtime.getRuntime();
+				while (true) {
+					synchronized (done) {
+						peak[0] = Math.max(peak[0], r.totalMemory() - r.freeMemory() - javaBase);
+						peak[1] = Math.max(peak[1], Debug.getNativeHeapAllocatedSize() - nativeBase);
+						if (done[0]) {
+							return;
+						}
+					}
+					try {
+						Thread.sleep(sampleInterval);
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+			}
+		}, TAG);
+		sampler.start();
+		Object pixels = null;
+		try {
+			// Held until the last sample so it is counted.
+			pixels = decode(path, which);
+		} finally {
+			synchronized (done) {
+				done[0] = true;
+			}
+			try {
+				sampler.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			free(pixels);
+		}
+		return peak;
+	}
+
+	private static InputStream open(String path) throws IOException {
+		InputStream is = FP.getAsset(path);
+		if (is == null) {
+			throw new IOException("No asset " + path);
+		}
+		return is;
+	}
+
+	/** @private Java heap in use after collecting, so garbage from earlier runs doesn't count. */
+	private static long getJavaHeap() {
+		Runtime r = Runtime.getRuntime();
+		System.gc();
+		System.runFinalization();
+		System.gc();
+		return r.totalMemory() - r.freeMemory();
+	}
+}
@@ -134,6 +134,11 @@ public class Text extends Graphic {
 		AtlasGraphic.setTextureBuffer(mTextureBuffer, mTexture, mRect);
 	}
 	
+	@Override
+	public int getTextureKey() {
+		return mTexture.mTextureName;
+	}
+	
 	@Override 
 	public void reload() {
 		updateTexture();
@@ -146,15 +151,16 @@ public class Text extends Graphic {
 			return;
 		}
 		
+		// After setTexture, its batch flush leaves the GL color undefined.
+		OpenGLSystem.setTexture(gl, mTexture);
 		mTexture.mColorFilter.setColor(mColor);
 		mTexture.mColorFilter.applyColorFilter(gl);
-		OpenGLSystem.setTexture(gl, mTexture);
 		
 		mPoint.x = (int)(point.x + x - camera.x * scrollX);
 		mPoint.y = (int)(point.y + y - camera.y * scrollY);
 		
-		gl.glEnable(GL10.GL_TEXTURE_2D);
-		gl.glEnableClientState(GL10.GL_TEXTURE_COORD_ARRAY);
+		OpenGLSystem.enableClientState(gl, GL10.GL_TEXTURE_COORD_ARRAY);
+		OpenGLSystem.disableClientState(gl, GL10.GL_COLOR_ARRAY);
 		
 		gl.glTexCoordPointer(2, GL10.GL_FLOAT, 0, mTextureBuffer);
     	gl.glVertexPointer(2, GL10.GL_FLOAT, 0, mVertexBuffer);
@@ -5,6 +5,7 @@ import javax.microedition.khronos.opengles.GL10;
 
 import net.androidpunk.android.OpenGLSystem;
 import net.androidpunk.graphics.opengl.Atlas;
+import net.androidpunk.graphics.opengl.AtlasProfiler;
 import net.androidpunk.graphics.opengl.GLGraphic;
 import net.androidpunk.graphics.opengl.SubTexture;
 import net.androidpunk.graphics.opengl.Texture;
@@ -15,32 +16,76 @@ public class AtlasGraphic extends GLGraphic {
 	private static final String TAG = "AtlasGraphic";
 	
 	private Texture mAtlas;
+	private boolean mReferenced = false;
 	
 	protected SubTexture mSubTexture;
 
 	public AtlasGraphic(Atlas atlas) {
-		mAtlas = atlas;
+		setAtlas(atlas);
 	}
 	
 	public AtlasGraphic(SubTexture subTexture) {
 		mSubTexture = subTexture;
-		mAtlas = subTexture.getTexture();
+		if (subTexture != null) {
+			setTexture(subTexture.getTexture());
+		}
 	}
 	
 	public void setAtlas(Atlas atlas) {
-		mAtlas = atlas;
+		setTexture(atlas);
+	}
+	
+	/** @private Swaps the texture reference held for the TextureManager. */
+	private synchronized void setTexture(Texture texture) {
+		if (texture == mAtlas) {
+			return;
+		}
+		releaseReferences();
+		mAtlas = texture;
+		acquireReference();
+	}
+	
+	/** @private Takes a reference to the texture if this graphic doesn't hold one. Renders and removes can be on different threads. */
+	private synchronized void acquireReference() {
+		if (!mReferenced && mAtlas != null) {
+			mAtlas.acquire();
+			mReferenced = true;
+		}
+	}
+	
+	/**
+	 * Gives up this graphic's reference to its texture, the texture is kept.
+	 */
+	@Override
+	public synchronized void releaseReferences() {
+		super.releaseReferences();
+		if (mReferenced) {
+			mAtlas.releaseReference();
+			mReferenced = false;
+		}
 	}
 	
+	/**
+	 * The texture, referenced again if the graphic was released and is being drawn.
+	 */
 	public Texture getAtlas() {
+		acquireReference();
 		return mAtlas;
 	}
+	
+	@Override
+	public int getTextureKey() {
+		return mAtlas != null ? mAtlas.mTextureName : 0;
+	}
 
 	/**
 	 * Sets the color filter and loads the texture if it is not already loaded.
 	 */
 	public void render(GL10 gl, Point point, Point camera) {
-		applyColor(gl);
+		// setTexture flushes the batch, which leaves the GL color undefined, so set the color after it.
 		OpenGLSystem.setTexture(gl, getAtlas());
+		applyColor(gl);
+		AtlasProfiler.record(mSubTexture);
 
 	}
 	
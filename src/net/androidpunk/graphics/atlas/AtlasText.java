@@ -1,15 +1,14 @@
 package net.androidpunk.graphics.atlas;
 
 import java.nio.FloatBuffer;
-import java.nio.ShortBuffer;
 import java.util.HashMap;
 import java.util.Map;
 
 import javax.microedition.khronos.opengles.GL10;
 
 import net.androidpunk.FP;
-import net.androidpunk.android.OpenGLSystem;
 import net.androidpunk.graphics.opengl.Atlas;
+import net.androidpunk.graphics.opengl.SpriteBatch;
 import net.androidpunk.graphics.opengl.TextAtlas;
 import net.androidpunk.graphics.opengl.Texture;
 import android.graphics.Point;
@@ -28,8 +27,7 @@ public class AtlasText extends AtlasGraphic {
 	private Texture mTexture;
 	
 	private FloatBuffer mGeometryBuffer, mTextureBuffer;
-	private ShortBuffer mIndexBuffer;
-	private int mIndexCount;
+	private int mQuadCount;
 	
 	private int mFontSize;
 	
@@ -130,8 +128,8 @@ public class AtlasText extends AtlasGraphic {
 		mGeometryBuffer = mTextAtlas.getStringGeometryBuffer(mText);
 		mTextureBuffer = mTextAtlas.getStringTextureBuffer(mText);
 		
-		mIndexBuffer = mTextAtlas.setBuffers(mText, mGeometryBuffer, mTextureBuffer);
-		mIndexCount = mText.length() * 6;
+		mTextAtlas.setBuffers(mText, mGeometryBuffer, mTextureBuffer);
+		mQuadCount = mText.length();
 	}
 	
 	public String getText() {
@@ -140,31 +138,15 @@ public class AtlasText extends AtlasGraphic {
 	
 	@Override
 	public void render(GL10 gl, Point point, Point camera) {
-		super.render(gl, point, camera);
 		if (!mTexture.isLoaded()) {
 			return;
 		}
 		
-		mTexture.mColorFilter.setColor(mColor);
-		mTexture.mColorFilter.applyColorFilter(gl);
-		OpenGLSystem.setTexture(gl, mTexture);
-		
 		mPoint.x = (int)(point.x + x - camera.x * scrollX);
 		mPoint.y = (int)(point.y + y - camera.y * scrollY);
 		
-		gl.glEnable(GL10.GL_TEXTURE_2D);
-		gl.glEnableClientState(GL10.GL_TEXTURE_COORD_ARRAY);
-		
-		
-		gl.glTexCoordPointer(2, GL10.GL_FLOAT, 0, mTextureBuffer);
-    	gl.glVertexPointer(2, GL10.GL_FLOAT, 0, mGeometryBuffer);
-    	
-    	gl.glPushMatrix();
-    	{
-    		setMatrix(gl);
-    		gl.glDrawElements(GL10.GL_TRIANGLES, mIndexCount, GL10.GL_UNSIGNED_SHORT, mIndexBuffer);
-    	}
-    	gl.glPopMatrix();
+		setBatchTransform();
+		SpriteBatch.draw(gl, mTexture, mGeometryBuffer, mTextureBuffer, mQuadCount);
 	}
 	
 	public int getWidth() {
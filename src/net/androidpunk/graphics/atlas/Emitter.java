@@ -1,32 +1,98 @@
 package net.androidpunk.graphics.atlas;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
 import java.util.HashMap;
 import java.util.Map;
 
 import javax.microedition.khronos.opengles.GL10;
 
 import net.androidpunk.FP;
+import net.androidpunk.android.OpenGLSystem;
 import net.androidpunk.flashcompat.OnEaseCallback;
+import net.androidpunk.graphics.opengl.AtlasProfiler;
+import net.androidpunk.graphics.opengl.SpriteBatch;
 import net.androidpunk.graphics.opengl.SubTexture;
-import android.graphics.Canvas;
-import android.graphics.ColorFilter;
+import net.androidpunk.masks.Grid;
 import android.graphics.Point;
-import android.graphics.Rect;
 import android.util.Log;
 
 /**
  * Particle emitter used for emitting and rendering particle sprites.
- * Good rendering performance with large amounts of particles.
+ * Particles are kept in preallocated arrays, one entry per particle, and all
+ * of them are drawn with a single call using per vertex colors.
+ * An Emitter never holds more than its particle budget, emit() fails instead.
+ * Particle types with an emit rate are emitted continuously while the Emitter is active.
+ * The Emitter keeps loose bounds around its particles and skips drawing them
+ * when they are off screen, and can update less often or stop emitting when far off screen.
  */
 public class Emitter extends AtlasGraphic {
 
 	private static final String TAG = "Emitter";
 	
-	// Particle infromation.
+	/**
+	 * Particle budget used when none is given.
+	 */
+	public static final int DEFAULT_MAX_PARTICLES = 1024;
+	
+	/**
+	 * Most particles drawn by one glDrawElements call, 4 vertices each must fit in a short index.
+	 */
+	public static final int MAX_QUADS_PER_DRAW = 16384;
+	
+	/**
+	 * How far off screen, in pixels, the particles and emitter must be before
+	 * offscreenSkip and emitOffscreen apply.
+	 */
+	public int offscreenMargin = 64;
+	
+	/**
+	 * Frames skipped between updates while far off screen, the skipped time is
+	 * caught up on the next update. 0 updates every frame.
+	 */
+	public int offscreenSkip = 0;
+	
+	/**
+	 * If particles are still emitted while far off screen.
+	 */
+	public boolean emitOffscreen = true;
+	
+	// Particle type information.
 	private Map<String, ParticleType> mTypes = new HashMap<String, ParticleType>();
-	private Particle mParticle;
-	private Particle mCache;
+	private ParticleType mTypeList[] = new ParticleType[4];
+	private int mTypeCount;
+	
+	// Particle information, index i of every array is the same particle.
+	private final int mMaxParticles;
 	private int mParticleCount;
+	private final float mX[];
+	private final float mY[];
+	private final float mMoveX[];
+	private final float mMoveY[];
+	private final float mTime[];
+	private final float mDuration[];
+	private final int mType[];
+	private final float mVelX[];
+	private final float mVelY[];
+	private final float mRotation[];
+	private final float mSpin[];
+	private final boolean mStuck[];
+	
+	// Where the emitter was last drawn, in world coordinates, for collision.
+	private float mOriginX;
+	private float mOriginY;
+	
+	// Bounds of every particle relative to the emitter, updated every update.
+	private float mMinX, mMinY, mMaxX, mMaxY;
+	
+	// Culling information, from the last render.
+	private boolean mFar = false;
+	private int mCulled = 0;
+	private int mSkipped = 0;
+	private float mSkippedTime = 0;
 
 	// Source information.
 	private int mWidth;
@@ -35,14 +101,28 @@ public class Emitter extends AtlasGraphic {
 	private int mFrameHeight;
 	private int mFrameCount;
 	
-	private final float matrix[] = new float[20];
-	
 	// Drawing information.
-	private Point mP = new Point();
-	private ColorFilter mTint = new ColorFilter();
-	private static final double SIN = Math.PI / 2;
-	private static final Canvas mCanvas = new Canvas();
+	private final float mVertices[];
+	private final float mTexCoords[];
+	private final int mColors[];
+	private final FloatBuffer mVertexBuffer;
+	private final FloatBuffer mTextureBuffer;
+	private final IntBuffer mColorBuffer;
 	
+	// Indices shared by every emitter, grown to the largest emitter drawn.
+	private static ShortBuffer mIndexBuffer;
+	private static int mIndexQuads = 0;
+	
+	// Sine table so emitting doesn't call Math.sin and Math.cos.
+	private static final int TRIG_SIZE = 4096;
+	private static final float mSin[] = new float[TRIG_SIZE];
+	private static final float DEG = (float)(Math.PI / 180);
+	
+	static {
+		for (int i = 0; i < TRIG_SIZE; i++) {
+			mSin[i] = (float)Math.sin(i * Math.PI * 2 / TRIG_SIZE);
+		}
+	}
 	
 	/**
 	 * Constructor. Sets the source image to use for newly added particle types.
@@ -59,9 +139,45 @@ public class Emitter extends AtlasGraphic {
 	 * @param	frameHeight		Frame height.
 	 */
 	public Emitter(SubTexture source, int frameWidth, int frameHeight)  {
+		this(source, frameWidth, frameHeight, DEFAULT_MAX_PARTICLES);
+	}
+	
+	/**
+	 * Constructor. Sets the source image to use for newly added particle types.
+	 * @param	source			Source image.
+	 * @param	frameWidth		Frame width.
+	 * @param	frameHeight		Frame height.
+	 * @param	maxParticles	Most particles that can exist at once.
+	 */
+	public Emitter(SubTexture source, int frameWidth, int frameHeight, int maxParticles)  {
 		super(source);
 		setSource(source, frameWidth, frameHeight);
 		active = true;
+		
+		if (maxParticles < 1) {
+			Log.e(TAG, "Particle budget must be at least 1");
+			maxParticles = 1;
+		}
+		mMaxParticles = maxParticles;
+		mX = new float[maxParticles];
+		mY = new float[maxParticles];
+		mMoveX = new float[maxParticles];
+		mMoveY = new float[maxParticles];
+		mTime = new float[maxParticles];
+		mDuration = new float[maxParticles];
+		mType = new int[maxParticles];
+		mVelX = new float[maxParticles];
+		mVelY = new float[maxParticles];
+		mRotation = new float[maxParticles];
+		mSpin = new float[maxParticles];
+		mStuck = new boolean[maxParticles];
+		
+		mVertices = new float[maxParticles * 8];
+		mTexCoords = new float[maxParticles * 8];
+		mColors = new int[maxParticles * 4];
+		mVertexBuffer = ByteBuffer.allocateDirect(maxParticles * 32).order(ByteOrder.nativeOrder()).asFloatBuffer();
+		mTextureBuffer = ByteBuffer.allocateDirect(maxParticles * 32).order(ByteOrder.nativeOrder()).asFloatBuffer();
+		mColorBuffer = ByteBuffer.allocateDirect(maxParticles * 16).order(ByteOrder.nativeOrder()).asIntBuffer();
 	}
 	
 	
@@ -88,114 +204,327 @@ public class Emitter extends AtlasGraphic {
 	
 	@Override 
 	public void update() {
+		float e = FP.fixed ? 1 : FP.elapsed;
+		
+		// far off screen, catch up later
+		if (mFar && offscreenSkip > 0) {
+			if (mSkipped < offscreenSkip) {
+				mSkipped++;
+				mSkippedTime += e;
+				return;
+			}
+			e += mSkippedTime;
+		}
+		mSkipped = 0;
+		mSkippedTime = 0;
+		
+		// continuous emission
+		for (int i = 0; i < mTypeCount && (emitOffscreen || !mFar); i++) {
+			ParticleType type = mTypeList[i];
+			if (type.mEmitRate <= 0)
+				continue;
+			type.mEmitCarry += type.mEmitRate * e;
+			while (type.mEmitCarry >= 1) {
+				if (!spawn(type, 0, 0)) {
+					// Out of budget, don't save up a burst for later.
+					type.mEmitCarry = 0;
+					break;
+				}
+				type.mEmitCarry -= 1;
+			}
+		}
+		
 		// quit if there are no particles
-		if (mParticle == null) 
+		if (mParticleCount == 0) 
 			return;
 
 		// particle info
-		float e = FP.fixed ? 1 : FP.elapsed;
-		Particle p = mParticle;
-		Particle n;
-		float t;
+		float time[] = mTime;
+		float duration[] = mDuration;
+		float minX = Float.MAX_VALUE, minY = Float.MAX_VALUE;
+		float maxX = -Float.MAX_VALUE, maxY = -Float.MAX_VALUE;
 		
 		// loop through the particles
-		while (p != null) {
+		int i = 0;
+		while (i < mParticleCount) {
 			// update time scale
-			p.mTime += e;
-			t = p.mTime / p.mDuration;
+			float t = time[i] + e;
 
-			// remove on time-out
-			if (p.mTime >= p.mDuration) {
-				if (p.mNext != null) 
-					p.mNext.mPrev = p.mPrev;
-				if (p.mPrev != null) 
-					p.mPrev.mNext = p.mNext;
-				else 
-					mParticle = p.mNext;
-				n = p.mNext;
-				p.mNext = mCache;
-				p.mPrev = null;
-				mCache = p;
-				p = n;
-				mParticleCount--;
+			// remove on time-out, the last particle takes its place
+			if (t >= duration[i]) {
+				remove(i);
 				continue;
 			}
-
-			// get next particle
-			p = p.mNext;
+			time[i] = t;
+			
+			ParticleType type = mTypeList[mType[i]];
+			if (type.mPhysics && !mStuck[i]) {
+				float oldX = mX[i];
+				float oldY = mY[i];
+				float vx = mVelX[i] + type.mGravityX * e;
+				float vy = mVelY[i] + type.mGravityY * e;
+				if (type.mDrag != 0) {
+					float keep = 1 - type.mDrag * e;
+					if (keep < 0)
+						keep = 0;
+					vx *= keep;
+					vy *= keep;
+				}
+				mVelX[i] = vx;
+				mVelY[i] = vy;
+				mX[i] += vx * e;
+				mY[i] += vy * e;
+				mRotation[i] += mSpin[i] * e;
+				if (type.mCollide != ParticleType.COLLIDE_NONE && !collide(i, type, oldX, oldY)) {
+					remove(i);
+					continue;
+				}
+			}
+			
+			// grow the bounds by everywhere the tween can take the particle, at its largest
+			float x0 = mX[i], y0 = mY[i];
+			float x1 = x0 + mMoveX[i], y1 = y0 + mMoveY[i];
+			float cx = type.mFrame.width() * 0.5f, cy = type.mFrame.height() * 0.5f;
+			float r = type.mExtent;
+			minX = Math.min(minX, Math.min(x0, x1) + cx - r);
+			minY = Math.min(minY, Math.min(y0, y1) + cy - r);
+			maxX = Math.max(maxX, Math.max(x0, x1) + cx + r);
+			maxY = Math.max(maxY, Math.max(y0, y1) + cy + r);
+			i++;
 		}
+		mMinX = minX;
+		mMinY = minY;
+		mMaxX = maxX;
+		mMaxY = maxY;
+	}
+	
+	/**
+	 * @private Tests a particle that moved from (oldX, oldY) against its type's Grid,
+	 * reading the packed tile bits directly.
+	 * @return	false if the particle should be removed.
+	 */
+	private boolean collide(int i, ParticleType type, float oldX, float oldY) {
+		Grid grid = type.mGrid;
+		int bits[] = grid.getPackedData();
+		int columns = grid.getColumns();
+		int rows = grid.getRows();
+		float tw = grid.getTileWidth();
+		float th = grid.getTileHeight();
+		
+		// Particle centers relative to the grid.
+		float offX = mOriginX + type.mFrame.width() * 0.5f - grid.getX() - (grid.parent != null ? grid.parent.x : 0);
+		float offY = mOriginY + type.mFrame.height() * 0.5f - grid.getY() - (grid.parent != null ? grid.parent.y : 0);
+		
+		int column = (int)Math.floor((mX[i] + offX) / tw);
+		int row = (int)Math.floor((mY[i] + offY) / th);
+		if (!isSolid(bits, columns, rows, column, row)) {
+			return true;
+		}
+		
+		switch (type.mCollide) {
+		case ParticleType.COLLIDE_DIE:
+			return false;
+		case ParticleType.COLLIDE_STICK:
+			mX[i] = oldX;
+			mY[i] = oldY;
+			mVelX[i] = mVelY[i] = mSpin[i] = 0;
+			mStuck[i] = true;
+			return true;
+		}
+		
+		// Bounce each axis separately so particles slide along walls.
+		int oldColumn = (int)Math.floor((oldX + offX) / tw);
+		int oldRow = (int)Math.floor((oldY + offY) / th);
+		float r = type.mRestitution;
+		boolean hitX = isSolid(bits, columns, rows, column, oldRow);
+		boolean hitY = isSolid(bits, columns, rows, oldColumn, row);
+		if (!hitX && !hitY) {
+			// Moved diagonally into a corner, both axes were clear on their own.
+			hitX = hitY = true;
+		}
+		if (hitX) {
+			mX[i] = oldX;
+			mVelX[i] = -mVelX[i] * r;
+		}
+		if (hitY) {
+			mY[i] = oldY;
+			mVelY[i] = -mVelY[i] * r;
+		}
+		return true;
+	}
+	
+	/** @private Reads a tile from packed Grid data, outside the grid is empty. */
+	private static boolean isSolid(int bits[], int columns, int rows, int column, int row) {
+		if (column < 0 || row < 0 || column >= columns || row >= rows)
+			return false;
+		int index = row * columns + column;
+		return (bits[index >> 5] & (1 << (index & 31))) != 0;
+	}
+	
+	/** @private Removes a particle by moving the last particle into its place. */
+	private void remove(int i) {
+		int last = --mParticleCount;
+		if (i == last)
+			return;
+		mX[i] = mX[last];
+		mY[i] = mY[last];
+		mMoveX[i] = mMoveX[last];
+		mMoveY[i] = mMoveY[last];
+		mTime[i] = mTime[last];
+		mDuration[i] = mDuration[last];
+		mType[i] = mType[last];
+		mVelX[i] = mVelX[last];
+		mVelY[i] = mVelY[last];
+		mRotation[i] = mRotation[last];
+		mSpin[i] = mSpin[last];
+		mStuck[i] = mStuck[last];
 	}
 	
 	/** @private Renders the particles. */
 	@Override 
 	public void render(GL10 gl, Point point, Point camera) {
-		super.render(gl, point, camera);
+		mOriginX = point.x + x;
+		mOriginY = point.y + y;
 		if (!getAtlas().isLoaded()) {
 			return;
 		}
 		
-		// quit if there are no particles
-		if (mParticle == null)
-			return;
-		
 		// get rendering position
 		mPoint.x = (int)(point.x + x - camera.x * scrollX);
 		mPoint.y = (int)(point.y + y - camera.y * scrollY);
+		
+		// quit if there are no particles, or none of them are on screen
+		int count = mParticleCount;
+		mCulled = 0;
+		if (count == 0) {
+			mFar = isOffscreen(mPoint.x, mPoint.y, mPoint.x, mPoint.y, offscreenMargin);
+			return;
+		}
+		float left = mPoint.x + mMinX, top = mPoint.y + mMinY;
+		float right = mPoint.x + mMaxX, bottom = mPoint.y + mMaxY;
+		mFar = isOffscreen(Math.min(left, mPoint.x), Math.min(top, mPoint.y), Math.max(right, mPoint.x), Math.max(bottom, mPoint.y), offscreenMargin);
+		if (isOffscreen(left, top, right, bottom, 0)) {
+			mCulled = count;
+			return;
+		}
 
 		// particle info
-		float t, td;
-		Particle p = mParticle;
-		ParticleType type;
-		Rect rect;
+		float v[] = mVertices;
+		float uv[] = mTexCoords;
+		int colors[] = mColors;
+		float px = mPoint.x, py = mPoint.y;
 
-		// loop through the particles
-		while (p != null) {
+		// build the quads
+		for (int i = 0; i < count; i++) {
 			// get time scale
-			t = p.mTime / p.mDuration;
+			float t = mTime[i] / mDuration[i];
 
 			// get particle type
-			type = p.mType;
-			rect = type.mFrame;
+			ParticleType type = mTypeList[mType[i]];
 
 			// get position
-			td = (type.mEase == null) ? t : type.mEase.ease(t);
-			mP.x = (int)(mPoint.x + p.mX + p.mMoveX * td);
-			mP.y = (int)(mPoint.y + p.mY + p.mMoveY * td);
+			float td = (type.mEase == null) ? t : type.mEase.ease(t);
+			left = (int)(px + mX[i] + mMoveX[i] * td);
+			top = (int)(py + mY[i] + mMoveY[i] * td);
+			float halfWidth = type.mFrame.width() * 0.5f;
+			float halfHeight = type.mFrame.height() * 0.5f;
 			
-			gl.glPushMatrix(); 
-			{
-//				setGeometryBuffer(QUAD_FLOAT_BUFFER_1, mP.x, mP.y, rect.width(), rect.height());
-//				if (type.mFrames != null) {
-//					setTextureBuffer(QUAD_FLOAT_BUFFER_2, mSubTexture, type.mFrames[(int)(td * type.mFrameCount)], rect.width(), rect.height());
-//				} else {
-//					setTextureBuffer(QUAD_FLOAT_BUFFER_2, mSubTexture, 0, rect.width(), rect.height());
-//				}
-				if (type.mFrames != null) {
-					type.mTextureBuffer.position(8 * type.mFrames[(int)(td * type.mFrameCount)]);
-				} else {
-					type.mTextureBuffer.position(0);
-				}
-				setBuffers(gl, type.mVertexBuffer, type.mTextureBuffer);
-				
-				
-				// draw particle
-
-				// get color
-				td = (type.mColorEase == null) ? t : type.mColorEase.ease(t);
-					
-				float red = (type.mRed + type.mRedRange * td) / 255.0f;
-				float green = (type.mGreen + type.mGreenRange * td) / 255.0f;
-				float blue = (type.mBlue + type.mBlueRange * td) / 255.0f;
-				float alpha = (type.mAlpha + type.mAlphaRange * ((type.mAlphaEase == null) ? t : type.mAlphaEase.ease(t))) / 255.0f;
-				gl.glColor4f(red, green, blue, alpha);
-				gl.glTranslatef(mP.x, mP.y, 0.0f);
-				gl.glDrawArrays(GL10.GL_TRIANGLE_STRIP, 0, 4);
+			// get scale and rotation, around the center of the frame
+			float scale = type.mScale;
+			if (type.mScaleRange != 0)
+				scale += type.mScaleRange * ((type.mScaleEase == null) ? t : type.mScaleEase.ease(t));
+			float rotation = mRotation[i];
+			
+			int k = i * 8;
+			if (rotation == 0 && scale == 1) {
+				right = left + type.mFrame.width();
+				bottom = top + type.mFrame.height();
+				v[k] = left;	v[k + 1] = top;
+				v[k + 2] = right;	v[k + 3] = top;
+				v[k + 4] = left;	v[k + 5] = bottom;
+				v[k + 6] = right;	v[k + 7] = bottom;
+			} else {
+				float cx = left + halfWidth;
+				float cy = top + halfHeight;
+				float cos = cos(rotation * DEG) * scale;
+				float sin = sin(rotation * DEG) * scale;
+				// Corners relative to the center, rotated and scaled.
+				float ax = halfWidth * cos, ay = halfWidth * sin;
+				float bx = -halfHeight * sin, by = halfHeight * cos;
+				v[k] = cx - ax - bx;	v[k + 1] = cy - ay - by;
+				v[k + 2] = cx + ax - bx;	v[k + 3] = cy + ay - by;
+				v[k + 4] = cx - ax + bx;	v[k + 5] = cy - ay + by;
+				v[k + 6] = cx + ax + bx;	v[k + 7] = cy + ay + by;
+			}
+			
+			int frame = 0;
+			if (type.mFrameCount > 1) {
+				frame = Math.min((int)(td * type.mFrameCount), type.mFrameCount - 1);
 			}
-			gl.glPopMatrix();
+			System.arraycopy(type.mTexCoords, frame * 8, uv, k, 8);
+			
+			// get color
+			td = (type.mColorEase == null) ? t : type.mColorEase.ease(t);
 			
-			// get next particle
-			p = p.mNext;
+			int red = (int)(type.mRed + type.mRedRange * td);
+			int green = (int)(type.mGreen + type.mGreenRange * td);
+			int blue = (int)(type.mBlue + type.mBlueRange * td);
+			int alpha = (int)(type.mAlpha + type.mAlphaRange * ((type.mAlphaEase == null) ? t : type.mAlphaEase.ease(t)));
+			
+			int c = i * 4;
+			colors[c] = colors[c + 1] = colors[c + 2] = colors[c + 3] = SpriteBatch.toVertexColor(red, green, blue, alpha);
 		}
+		
+		mVertexBuffer.position(0);
+		mVertexBuffer.put(v, 0, count * 8);
+		mTextureBuffer.position(0);
+		mTextureBuffer.put(uv, 0, count * 8);
+		mColorBuffer.position(0);
+		mColorBuffer.put(colors, 0, count * 4);
+		ShortBuffer indices = getIndexBuffer(Math.min(count, MAX_QUADS_PER_DRAW));
+		
+		// draw every particle, setTexture flushes the sprite batch first
+		OpenGLSystem.setTexture(gl, getAtlas());
+		AtlasProfiler.record(mSubTexture);
+		OpenGLSystem.enableClientState(gl, GL10.GL_COLOR_ARRAY);
+		OpenGLSystem.enableClientState(gl, GL10.GL_TEXTURE_COORD_ARRAY);
+		for (int first = 0; first < count; first += MAX_QUADS_PER_DRAW) {
+			int quads = Math.min(count - first, MAX_QUADS_PER_DRAW);
+			mVertexBuffer.position(first * 8);
+			mTextureBuffer.position(first * 8);
+			mColorBuffer.position(first * 4);
+			gl.glColorPointer(4, GL10.GL_UNSIGNED_BYTE, 0, mColorBuffer);
+			gl.glTexCoordPointer(2, GL10.GL_FLOAT, 0, mTextureBuffer);
+			gl.glVertexPointer(2, GL10.GL_FLOAT, 0, mVertexBuffer);
+			gl.glDrawElements(GL10.GL_TRIANGLES, quads * 6, GL10.GL_UNSIGNED_SHORT, indices);
+		}
+		OpenGLSystem.invalidateColor();
+		mVertexBuffer.position(0);
+		mTextureBuffer.position(0);
+		mColorBuffer.position(0);
+	}
+	
+	/** @private If a rectangle in screen coordinates is further than margin off screen. */
+	private static boolean isOffscreen(float left, float top, float right, float bottom, int margin) {
+		return right < -margin || bottom < -margin || left > FP.width + margin || top > FP.height + margin;
+	}
+	
+	/** @private Gets the shared index buffer, making sure it can draw the quads. */
+	private static ShortBuffer getIndexBuffer(int quads) {
+		if (mIndexQuads < quads) {
+			// Grow in steps so a slowly filling emitter doesn't rebuild every frame.
+			int size = Math.min(Math.max(quads, mIndexQuads * 2), MAX_QUADS_PER_DRAW);
+			ShortBuffer buffer = ByteBuffer.allocateDirect(size * 12).order(ByteOrder.nativeOrder()).asShortBuffer();
+			for (int i = 0; i < size; i++) {
+				short v = (short)(i * 4);
+				buffer.put(v).put((short)(v + 1)).put((short)(v + 2));
+				buffer.put((short)(v + 1)).put((short)(v + 3)).put((short)(v + 2));
+			}
+			buffer.position(0);
+			mIndexBuffer = buffer;
+			mIndexQuads = size;
+		}
+		return mIndexBuffer;
 	}
 	
 	/**
@@ -219,6 +548,13 @@ public class Emitter extends AtlasGraphic {
 			return mTypes.get(name);
 		}
 		ParticleType p = new ParticleType(name, frames, mSubTexture, mFrameWidth, mFrameHeight);
+		if (mTypeCount == mTypeList.length) {
+			ParticleType list[] = new ParticleType[mTypeCount * 2];
+			System.arraycopy(mTypeList, 0, list, 0, mTypeCount);
+			mTypeList = list;
+		}
+		p.mIndex = mTypeCount;
+		mTypeList[mTypeCount++] = p;
 		mTypes.put(name, p);
 		return p; 
 	}
@@ -347,43 +683,126 @@ public class Emitter extends AtlasGraphic {
 	 * @param	name		Particle type to emit.
 	 * @param	x			X point to emit from.
 	 * @param	y			Y point to emit from.
-	 * @return
+	 * @return	false if the type does not exist or the particle budget is used up.
 	 */
-	public Particle emit(String name, int x, int y) {
-		Particle p;
+	public boolean emit(String name, int x, int y) {
 		ParticleType type = mTypes.get(name);
 		if (type == null) {
 			Log.e(TAG, "Particle type \"" + name + "\" does not exist.");
-			return null;
+			return false;
 		}
-		
-		if (mCache != null) {
-			p = mCache;
-			mCache = p.mNext;
+		return spawn(type, x, y);
+	}
+	
+	/**
+	 * Emits several particles at once, each from a random point of the type's emission area.
+	 * @param	name		Particle type to emit.
+	 * @param	x			X point to emit from.
+	 * @param	y			Y point to emit from.
+	 * @param	count		How many particles to emit.
+	 * @return	How many particles were emitted, less than count if the budget ran out.
+	 */
+	public int emitBurst(String name, int x, int y, int count) {
+		ParticleType type = mTypes.get(name);
+		if (type == null) {
+			Log.e(TAG, "Particle type \"" + name + "\" does not exist.");
+			return 0;
 		}
-		else
-			p = new Particle();
-		p.mNext = mParticle;
-		p.mPrev = null;
-		if (p.mNext != null)
-			p.mNext.mPrev = p;
-
-		p.mType = type;
-		p.mTime = 0;
-		p.mDuration = (float)(type.mDuration + type.mDurationRange * FP.random());
-		double a = type.mAngle + type.mAngleRange * FP.random();
-		double d = type.mDistance + type.mDistanceRange * FP.random();
+		int emitted = 0;
+		while (emitted < count && spawn(type, x, y)) {
+			emitted++;
+		}
+		return emitted;
+	}
+	
+	/** @private Creates a particle of the type, x and y is where the emission area is. */
+	private boolean spawn(ParticleType type, float x, float y) {
+		if (mParticleCount == mMaxParticles) {
+			return false;
+		}
+		
+		int i = mParticleCount++;
+		mType[i] = type.mIndex;
+		mTime[i] = 0;
+		mDuration[i] = (float)(type.mDuration + type.mDurationRange * FP.random());
+		float a = (float)(type.mAngle + type.mAngleRange * FP.random());
+		float d = (float)(type.mDistance + type.mDistanceRange * FP.random());
 
-		p.mMoveX = (float)(Math.cos(a) * d);
-		p.mMoveY = (float)(Math.sin(a) * d);
-		p.mX = x;
-		p.mY = y;
-		mParticleCount++;
-		return (mParticle = p);
+		mMoveX[i] = cos(a) * d;
+		mMoveY[i] = sin(a) * d;
+		
+		switch (type.mArea) {
+		case ParticleType.AREA_RECT:
+			x += type.mAreaX + type.mAreaWidth * (float)FP.random();
+			y += type.mAreaY + type.mAreaHeight * (float)FP.random();
+			break;
+		case ParticleType.AREA_CIRCLE:
+			// sqrt keeps the points evenly spread instead of bunched in the middle.
+			float r = type.mAreaWidth * (float)Math.sqrt(FP.random());
+			float ra = (float)(FP.random() * Math.PI * 2);
+			x += type.mAreaX + cos(ra) * r;
+			y += type.mAreaY + sin(ra) * r;
+			break;
+		}
+		mX[i] = x;
+		mY[i] = y;
+		
+		if (type.mPhysics) {
+			float va = (float)(type.mVelocityAngle + type.mVelocityAngleRange * FP.random());
+			float speed = (float)(type.mSpeed + type.mSpeedRange * FP.random());
+			mVelX[i] = cos(va) * speed;
+			mVelY[i] = sin(va) * speed;
+			mSpin[i] = (float)(type.mSpin + type.mSpinRange * FP.random());
+		} else {
+			mVelX[i] = mVelY[i] = mSpin[i] = 0;
+		}
+		mStuck[i] = false;
+		
+		// new particles must not be culled before the next update measures them
+		float cx = type.mFrame.width() * 0.5f, cy = type.mFrame.height() * 0.5f;
+		float r = type.mExtent;
+		mMinX = Math.min(mMinX, Math.min(x, x + mMoveX[i]) + cx - r);
+		mMinY = Math.min(mMinY, Math.min(y, y + mMoveY[i]) + cy - r);
+		mMaxX = Math.max(mMaxX, Math.max(x, x + mMoveX[i]) + cx + r);
+		mMaxY = Math.max(mMaxY, Math.max(y, y + mMoveY[i]) + cy + r);
+		mRotation[i] = type.mRotationRange == 0 ? type.mRotation : (float)(type.mRotation + type.mRotationRange * FP.random());
+		return true;
+	}
+	
+	/**
+	 * Removes every particle.
+	 */
+	public void clear() {
+		mParticleCount = 0;
+	}
+	
+	/** @private Table sine of an angle in radians. */
+	protected static float sin(float angle) {
+		return mSin[(int)(angle * (TRIG_SIZE / (Math.PI * 2))) & (TRIG_SIZE - 1)];
+	}
+	
+	/** @private Table cosine of an angle in radians. */
+	protected static float cos(float angle) {
+		return mSin[((int)(angle * (TRIG_SIZE / (Math.PI * 2))) + TRIG_SIZE / 4) & (TRIG_SIZE - 1)];
 	}
 	
 	/**
 	 * Amount of currently existing particles.
 	 */
 	public int getParticleCount() { return mParticleCount; }
+	
+	/**
+	 * Amount of particles that were not drawn in the last render because they were off screen.
+	 */
+	public int getCulledCount() { return mCulled; }
+	
+	/**
+	 * If the emitter and its particles were further than offscreenMargin off screen in the last render.
+	 */
+	public boolean isFarOffscreen() { return mFar; }
+	
+	/**
+	 * Most particles that can exist at once.
+	 */
+	public int getMaxParticles() { return mMaxParticles; }
 }
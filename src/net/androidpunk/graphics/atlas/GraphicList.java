@@ -65,6 +65,26 @@ public class GraphicList extends Graphic {
 		}
 	}
 	
+	/** @private Releases the Graphics in the list. */
+	@Override
+	public void release() {
+		super.release();
+		int size = mGraphics.size();
+		for (int i = 0; i < size; i++) {
+			mGraphics.get(i).release();
+		}
+	}
+	
+	/** @private Gives up the texture references of the Graphics in the list. */
+	@Override
+	public void releaseReferences() {
+		super.releaseReferences();
+		int size = mGraphics.size();
+		for (int i = 0; i < size; i++) {
+			mGraphics.get(i).releaseReferences();
+		}
+	}
+	
 	/**
 	 * Adds the Graphic to the list.
 	 * @param	graphic		The Graphic to add.
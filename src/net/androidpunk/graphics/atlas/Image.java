@@ -4,6 +4,8 @@ import java.nio.FloatBuffer;
 
 import javax.microedition.khronos.opengles.GL10;
 
+import net.androidpunk.graphics.opengl.AtlasProfiler;
+import net.androidpunk.graphics.opengl.SpriteBatch;
 import net.androidpunk.graphics.opengl.SubTexture;
 import android.graphics.Point;
 import android.graphics.Rect;
@@ -42,22 +44,15 @@ public class Image extends AtlasGraphic {
 
 	@Override
 	public void render(GL10 gl, Point point, Point camera) {
-		super.render(gl, point, camera);
 		if (!getAtlas().isLoaded()) {
 			return;
 		}
 		mPoint.x = (int)(point.x + x - camera.x * scrollX);
 		mPoint.y = (int)(point.y + y - camera.y * scrollY);
 		
-		
-		setBuffers(gl, mVertexBuffer, mTextureBuffer);
-		
-		gl.glPushMatrix(); 
-		{
-			setMatrix(gl);
-			gl.glDrawArrays(GL10.GL_TRIANGLE_STRIP, 0, 4);
-		}
-		gl.glPopMatrix();
+		AtlasProfiler.record(mSubTexture);
+		setBatchTransform();
+		SpriteBatch.draw(gl, getAtlas(), 0, 0, mClipRect.width(), mClipRect.height(), mTextureBuffer, 0);
 	}
 
 	@Override
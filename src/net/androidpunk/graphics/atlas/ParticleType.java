@@ -1,15 +1,14 @@
 package net.androidpunk.graphics.atlas;
 
-import java.nio.FloatBuffer;
-
 import net.androidpunk.FP;
 import net.androidpunk.flashcompat.OnEaseCallback;
-import net.androidpunk.graphics.opengl.GLGraphic;
 import net.androidpunk.graphics.opengl.SubTexture;
 import net.androidpunk.graphics.opengl.Texture;
+import net.androidpunk.masks.Grid;
 import android.graphics.Bitmap;
 import android.graphics.Color;
 import android.graphics.Rect;
+import android.util.Log;
 
 /**
  * Template used to define a particle type used by the Emitter class. Instead
@@ -19,8 +18,29 @@ public class ParticleType {
 	
 	private static final String TAG = "ParticleType";
 	
+	/**
+	 * Particles pass through the Grid.
+	 */
+	public static final int COLLIDE_NONE = 0;
+	
+	/**
+	 * Particles bounce off solid tiles, losing speed by the restitution.
+	 */
+	public static final int COLLIDE_BOUNCE = 1;
+	
+	/**
+	 * Particles stop where they hit a solid tile and stay there until they expire.
+	 */
+	public static final int COLLIDE_STICK = 2;
+	
+	/**
+	 * Particles are removed when they hit a solid tile.
+	 */
+	public static final int COLLIDE_DIE = 3;
+	
 	// Particle information.
 	protected String mName;
+	protected int mIndex;
 	protected int mWidth;
 	protected Rect mFrame;
 	protected int[] mFrames;
@@ -49,15 +69,53 @@ public class ParticleType {
 	protected int mBlueRange = 0;
 	protected OnEaseCallback mColorEase;
 
+	// Physics information.
+	protected float mGravityX;
+	protected float mGravityY;
+	protected float mVelocityAngle;
+	protected float mVelocityAngleRange;
+	protected float mSpeed;
+	protected float mSpeedRange;
+	protected float mDrag;
+	protected float mSpin;
+	protected float mSpinRange;
+	protected boolean mPhysics;
+
+	// Collision information.
+	protected Grid mGrid;
+	protected int mCollide = COLLIDE_NONE;
+	protected float mRestitution = 0.5f;
+
+	// Rotation and scale information.
+	protected float mRotation;
+	protected float mRotationRange;
+	protected float mScale = 1;
+	protected float mScaleRange = 0;
+	protected OnEaseCallback mScaleEase;
+	
+	// Furthest a corner can be from the center of the frame, for the Emitter's bounds.
+	protected float mExtent;
+
+	// Emission information.
+	protected static final int AREA_POINT = 0;
+	protected static final int AREA_RECT = 1;
+	protected static final int AREA_CIRCLE = 2;
+	protected int mArea = AREA_POINT;
+	protected float mAreaX;
+	protected float mAreaY;
+	protected float mAreaWidth;
+	protected float mAreaHeight;
+	protected float mEmitRate;
+	protected float mEmitCarry;
+
 	// Buffer information.
 	protected Bitmap mBuffer;
 	protected Rect mBufferRect = new Rect();
 	
 	protected SubTexture mSubTexture;
 	
-
-	protected FloatBuffer mVertexBuffer = GLGraphic.getDirectFloatBuffer(8);
-	protected FloatBuffer mTextureBuffer;
+	// Texture coordinates of every frame, 8 floats each, for the Emitter's buffers.
+	protected float mTexCoords[];
 	
 	/**
 	 * Constructor.
@@ -80,20 +138,21 @@ public class ParticleType {
 			mFrameCount = 1;
 		}
 		
-		GLGraphic.setGeometryBuffer(mVertexBuffer,0, 0, frameWidth, frameHeight);
+		updateExtent();
 		
-		mTextureBuffer = GLGraphic.getDirectFloatBuffer(8*mFrameCount);
+		mTexCoords = new float[8*mFrameCount];
 		Rect r = FP.rect;
-		
-		mTextureBuffer.position(0);
 		Texture t = source.getTexture();
+		float uv[] = mTexCoords;
 		for( int i = 0; i < mFrameCount; i++) {
-			source.getFrame(r, i, frameWidth, frameHeight);
+			// Slot i holds the i'th frame of the animation.
+			source.getFrame(r, frames != null ? frames[i] : 0, frameWidth, frameHeight);
 			
-			mTextureBuffer.put((float)r.left/t.getWidth()).put((float)r.top/t.getHeight());
-			mTextureBuffer.put((float)(r.left + r.width())/t.getWidth()).put((float)r.top/t.getHeight());
-			mTextureBuffer.put((float)r.left/t.getWidth()).put((float)(r.top + r.height())/t.getHeight());
-			mTextureBuffer.put((float)(r.left + r.width())/t.getWidth()).put((float)(r.top + r.height())/t.getHeight());
+			int k = i * 8;
+			uv[k] = (float)r.left/t.getWidth();						uv[k+1] = (float)r.top/t.getHeight();
+			uv[k+2] = (float)(r.left + r.width())/t.getWidth();		uv[k+3] = (float)r.top/t.getHeight();
+			uv[k+4] = (float)r.left/t.getWidth();					uv[k+5] = (float)(r.top + r.height())/t.getHeight();
+			uv[k+6] = (float)(r.left + r.width())/t.getWidth();		uv[k+7] = (float)(r.top + r.height())/t.getHeight();
 		}
 	}
 	
@@ -187,6 +246,209 @@ public class ParticleType {
 		return this;
 	}
 	
+	/**
+	 * Sets a constant acceleration, in pixels per second per second (or per frame per frame if FP.fixed).
+	 * @param	x				X acceleration.
+	 * @param	y				Y acceleration, positive is down.
+	 * @return	This ParticleType object.
+	 */
+	public ParticleType setGravity(float x, float y) {
+		mGravityX = x;
+		mGravityY = y;
+		updatePhysics();
+		return this;
+	}
+	
+	/**
+	 * Sets the starting velocity. Unlike setMotion() the particle keeps moving
+	 * and is affected by gravity and drag.
+	 * @param	angle			Launch direction.
+	 * @param	speed			Speed in pixels per second (or per frame if FP.fixed).
+	 * @return	This ParticleType object.
+	 */
+	public ParticleType setVelocity(float angle, float speed) {
+		return setVelocity(angle, speed, 0, 0);
+	}
+	
+	/**
+	 * Sets the starting velocity. Unlike setMotion() the particle keeps moving
+	 * and is affected by gravity and drag.
+	 * @param	angle			Launch direction.
+	 * @param	speed			Speed in pixels per second (or per frame if FP.fixed).
+	 * @param	angleRange		Random amount to add to the direction.
+	 * @param	speedRange		Random amount to add to the speed.
+	 * @return	This ParticleType object.
+	 */
+	public ParticleType setVelocity(float angle, float speed, float angleRange, float speedRange) {
+		mVelocityAngle = angle * FP.RAD;
+		mVelocityAngleRange = angleRange * FP.RAD;
+		mSpeed = speed;
+		mSpeedRange = speedRange;
+		updatePhysics();
+		return this;
+	}
+	
+	/**
+	 * Sets how quickly the velocity dies down.
+	 * @param	drag			Fraction of the velocity lost per second (or per frame if FP.fixed).
+	 * @return	This ParticleType object.
+	 */
+	public ParticleType setDrag(float drag) {
+		mDrag = drag < 0 ? 0 : drag;
+		updatePhysics();
+		return this;
+	}
+	
+	/**
+	 * Sets the starting rotation.
+	 * @param	angle			Rotation in degrees.
+	 * @param	angleRange		Random amount to add to the rotation.
+	 * @return	This ParticleType object.
+	 */
+	public ParticleType setRotation(float angle, float angleRange) {
+		mRotation = angle;
+		mRotationRange = angleRange;
+		return this;
+	}
+	
+	/**
+	 * Sets the angular velocity.
+	 * @param	spin			Degrees per second (or per frame if FP.fixed).
+	 * @param	spinRange		Random amount to add to the angular velocity.
+	 * @return	This ParticleType object.
+	 */
+	public ParticleType setAngularVelocity(float spin, float spinRange) {
+		mSpin = spin;
+		mSpinRange = spinRange;
+		updatePhysics();
+		return this;
+	}
+	
+	/**
+	 * Sets the scale range of this particle type.
+	 * @param	start		The starting scale.
+	 * @param	finish		The finish scale.
+	 * @return	This ParticleType object.
+	 */
+	public ParticleType setScale(float start, float finish) {
+		return setScale(start, finish, null);
+	}
+	
+	/**
+	 * Sets the scale range of this particle type.
+	 * @param	start		The starting scale.
+	 * @param	finish		The finish scale.
+	 * @param	ease		easer function.
+	 * @return	This ParticleType object.
+	 */
+	public ParticleType setScale(float start, float finish, OnEaseCallback ease) {
+		mScale = start;
+		mScaleRange = finish - start;
+		mScaleEase = ease;
+		updateExtent();
+		return this;
+	}
+	
+	/** @private Rotated and at its largest scale, a frame's corners stay within this of its center. */
+	private void updateExtent() {
+		float halfWidth = mFrame.width() * 0.5f;
+		float halfHeight = mFrame.height() * 0.5f;
+		float scale = Math.max(Math.abs(mScale), Math.abs(mScale + mScaleRange));
+		mExtent = (float)Math.sqrt(halfWidth * halfWidth + halfHeight * halfHeight) * scale;
+	}
+	
+	/**
+	 * Particles are emitted from a random point in the rectangle, relative to the emit position.
+	 * @param	x			Left of the area.
+	 * @param	y			Top of the area.
+	 * @param	width		Width of the area.
+	 * @param	height		Height of the area.
+	 * @return	This ParticleType object.
+	 */
+	public ParticleType setEmitRect(float x, float y, float width, float height) {
+		mArea = AREA_RECT;
+		mAreaX = x;
+		mAreaY = y;
+		mAreaWidth = width;
+		mAreaHeight = height;
+		return this;
+	}
+	
+	/**
+	 * Particles are emitted from a random point in the circle, relative to the emit position.
+	 * @param	x			Center of the area.
+	 * @param	y			Center of the area.
+	 * @param	radius		Radius of the area.
+	 * @return	This ParticleType object.
+	 */
+	public ParticleType setEmitCircle(float x, float y, float radius) {
+		mArea = AREA_CIRCLE;
+		mAreaX = x;
+		mAreaY = y;
+		mAreaWidth = mAreaHeight = radius;
+		return this;
+	}
+	
+	/**
+	 * Particles are emitted from exactly the emit position. This is the default.
+	 * @return	This ParticleType object.
+	 */
+	public ParticleType setEmitPoint() {
+		mArea = AREA_POINT;
+		mAreaX = mAreaY = mAreaWidth = mAreaHeight = 0;
+		return this;
+	}
+	
+	/**
+	 * Makes the Emitter emit this type on its own, from the emission area around the Emitter's origin.
+	 * @param	rate		Particles per second (or per frame if FP.fixed), 0 to stop.
+	 * @return	This ParticleType object.
+	 */
+	public ParticleType setEmitRate(float rate) {
+		mEmitRate = rate < 0 ? 0 : rate;
+		if (mEmitRate == 0) {
+			mEmitCarry = 0;
+		}
+		return this;
+	}
+	
+	/**
+	 * Makes particles collide with the solid tiles of a Grid. The test is made at
+	 * the center of each particle. Only particles moved by setVelocity() or
+	 * setGravity() collide, setMotion() movement is not affected.
+	 * @param	grid		The Grid to collide with, null to stop colliding.
+	 * @param	mode		COLLIDE_NONE, COLLIDE_BOUNCE, COLLIDE_STICK or COLLIDE_DIE.
+	 * @return	This ParticleType object.
+	 */
+	public ParticleType setCollision(Grid grid, int mode) {
+		return setCollision(grid, mode, mRestitution);
+	}
+	
+	/**
+	 * Makes particles collide with the solid tiles of a Grid. The test is made at
+	 * the center of each particle. Only particles moved by setVelocity() or
+	 * setGravity() collide, setMotion() movement is not affected.
+	 * @param	grid		The Grid to collide with, null to stop colliding.
+	 * @param	mode		COLLIDE_NONE, COLLIDE_BOUNCE, COLLIDE_STICK or COLLIDE_DIE.
+	 * @param	restitution	Fraction of the speed kept after a bounce.
+	 * @return	This ParticleType object.
+	 */
+	public ParticleType setCollision(Grid grid, int mode, float restitution) {
+		if (mode < COLLIDE_NONE || mode > COLLIDE_DIE) {
+			Log.e(TAG, "Unknown collision mode " + mode);
+			mode = COLLIDE_NONE;
+		}
+		mGrid = grid;
+		mCollide = grid == null ? COLLIDE_NONE : mode;
+		mRestitution = restitution;
+		return this;
+	}
+	
+	/** @private Particles only need integrating if something moves them over time. */
+	private void updatePhysics() {
+		mPhysics = mGravityX != 0 || mGravityY != 0 || mSpeed != 0 || mSpeedRange != 0 || mDrag != 0 || mSpin != 0 || mSpinRange != 0;
+	}
+	
 	/**
 	 * Sets the alpha range of this particle type ending at zero
 	 * @param	start		The starting alpha.
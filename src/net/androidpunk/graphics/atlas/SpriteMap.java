@@ -7,6 +7,8 @@ import java.util.Map;
 import javax.microedition.khronos.opengles.GL10;
 
 import net.androidpunk.FP;
+import net.androidpunk.graphics.opengl.AtlasProfiler;
+import net.androidpunk.graphics.opengl.SpriteBatch;
 import net.androidpunk.graphics.opengl.SubTexture;
 import net.androidpunk.graphics.opengl.Texture;
 import android.graphics.Point;
@@ -117,7 +119,6 @@ public class SpriteMap extends AtlasGraphic {
 	
 	@Override
 	public void render(GL10 gl, Point point, Point camera) {
-		super.render(gl, point, camera);
 		if (!getAtlas().isLoaded()) {
 			return;
 		}
@@ -128,15 +129,9 @@ public class SpriteMap extends AtlasGraphic {
 		originX = mFrameWidth/2;
 		originY = mFrameHeight/2;
 		
-		mTextureBuffer.position(8 * mFrame);
-		setBuffers(gl, mVertexBuffer, mTextureBuffer);
-		
-		gl.glPushMatrix(); 
-		{
-			setMatrix(gl);
-			gl.glDrawArrays(GL10.GL_TRIANGLE_STRIP, 0, 4);
-		}
-		gl.glPopMatrix();
+		AtlasProfiler.record(mSubTexture);
+		setBatchTransform();
+		SpriteBatch.draw(gl, getAtlas(), 0, 0, mFrameWidth, mFrameHeight, mTextureBuffer, 8 * mFrame);
 	}
 
 	/** @private Updates the animation. */
@@ -4,6 +4,8 @@ import java.nio.FloatBuffer;
 
 import javax.microedition.khronos.opengles.GL10;
 
+import net.androidpunk.graphics.opengl.AtlasProfiler;
+import net.androidpunk.graphics.opengl.SpriteBatch;
 import net.androidpunk.graphics.opengl.SubTexture;
 import android.graphics.Point;
 
@@ -41,7 +43,6 @@ public class Stamp extends AtlasGraphic {
 	/** @private Renders the Graphic. */
 	@Override 
 	public void render(GL10 gl, Point point, Point camera) {
-		super.render(gl, point, camera);
 		if (!getAtlas().isLoaded()) {
 			return;
 		}
@@ -49,11 +50,10 @@ public class Stamp extends AtlasGraphic {
 		mPoint.x = (int)(point.x + x - camera.x * scrollX);
 		mPoint.y = (int)(point.y + y - camera.y * scrollY);
 		
-		setGeometryBuffer(QUAD_FLOAT_BUFFER_1, mPoint.x, mPoint.y, mSubTexture.getWidth(), mSubTexture.getHeight());
-		setBuffers(gl, QUAD_FLOAT_BUFFER_1, mTextureBuffer);
-		
-		gl.glDrawArrays(GL10.GL_TRIANGLE_STRIP, 0, 4);
-		
+		AtlasProfiler.record(mSubTexture);
+		SpriteBatch.setTranslation(mPoint.x, mPoint.y);
+		SpriteBatch.setColor(mColor);
+		SpriteBatch.draw(gl, getAtlas(), 0, 0, mSubTexture.getWidth(), mSubTexture.getHeight(), mTextureBuffer, 0);
 	}
 	
 	/**
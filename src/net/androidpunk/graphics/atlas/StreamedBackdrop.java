@@ -0,0 +1,431 @@
+package net.androidpunk.graphics.atlas;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.FloatBuffer;
+import java.util.Vector;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import javax.microedition.khronos.opengles.GL10;
+
+import net.androidpunk.FP;
+import net.androidpunk.graphics.opengl.GLGraphic;
+import net.androidpunk.graphics.opengl.SpriteBatch;
+import net.androidpunk.graphics.opengl.Texture;
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.Config;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Canvas;
+import android.graphics.Point;
+import android.graphics.Rect;
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * A backdrop too big for one texture, eg. a hand painted 8192 pixel wide level.
+ * The image is split into square tiles which are decoded from the compressed
+ * asset with a BitmapRegionDecoder when they come near the screen. Only a
+ * limited number of tiles stay in video memory, the least recently seen are
+ * dropped first. Tiles ahead of the camera's movement are decoded early.
+ */
+public class StreamedBackdrop extends GLGraphic {
+
+	private static final String TAG = "StreamedBackdrop";
+
+	/**
+	 * Default width and height of a tile.
+	 */
+	public static final int DEFAULT_TILE_SIZE = 512;
+
+	/**
+	 * Most tiles kept in video memory.
+	 */
+	public int maxResidentTiles = 24;
+
+	/**
+	 * Tiles around the screen to decode before they are seen.
+	 */
+	public int prefetchTiles = 1;
+
+	/**
+	 * Frames of camera movement to look ahead when prefetching.
+	 */
+	public float prefetchFrames = 30;
+
+	/**
+	 * Most tiles uploaded per frame.
+	 */
+	public int uploadsPerFrame = 2;
+
+	// Tile states.
+	private static final int EMPTY = 0;
+	private static final int QUEUED = 1;
+	private static final int DECODED = 2;
+	private static final int RESIDENT = 3;
+
+	private static class Tile {
+		public final int column, row;
+		public final Rect rect;
+		public final Texture texture = new Texture();
+		public final FloatBuffer uvs = getDirectFloatBuffer(8);
+		public volatile int state = EMPTY;
+		public volatile int lastUsed;
+		public Bitmap bitmap;
+
+		public Tile(int column, int row, Rect rect, int tileSize) {
+			this.column = column;
+			this.row = row;
+			this.rect = rect;
+			// Edge tiles only fill part of their texture.
+			float u = (float)rect.width() / tileSize;
+			float v = (float)rect.height() / tileSize;
+			uvs.put(0).put(0).put(u).put(0).put(0).put(v).put(u).put(v);
+			uvs.position(0);
+		}
+	}
+
+	// One thread decodes tiles for every backdrop.
+	private static ExecutorService mDecodePool;
+
+	private final String mPath;
+	private BitmapRegionDecoder mDecoder;
+	// Held while decoding, so release() can't recycle the decoder part way through a region.
+	private final Object mDecoderLock = new Object();
+	private final int mTileSize;
+	private int mWidth, mHeight;
+	private int mColumns, mRows;
+	private Tile mTiles[] = new Tile[0];
+
+	private final Vector<Tile> mQueued = new Vector<Tile>();
+	private final ConcurrentLinkedQueue<Tile> mDecoded = new ConcurrentLinkedQueue<Tile>();
+	private int mResident = 0;
+	private volatile int mFrame = 0;
+
+	// Where the screen's center is on the image, for decoding the nearest first.
+	private volatile float mCenterX, mCenterY;
+
+	// Camera movement in pixels per frame, smoothed.
+	private float mVelocityX, mVelocityY;
+	private int mLastX, mLastY;
+	private boolean mMoved = false;
+
+	/**
+	 * Constructor, with 512 pixel tiles.
+	 * @param	assetPath	Asset path of the image, a png or jpeg.
+	 */
+	public StreamedBackdrop(String assetPath) {
+		this(assetPath, DEFAULT_TILE_SIZE);
+	}
+
+	/**
+	 * Constructor.
+	 * @param	assetPath	Asset path of the image, a png or jpeg.
+	 * @param	tileSize	Width and height of each tile, rounded up to a power of two.
+	 */
+	public StreamedBackdrop(String assetPath, int tileSize) {
+		mPath = assetPath;
+		mTileSize = Texture.nextHigher2(tileSize);
+		InputStream is = FP.getAsset(assetPath);
+		if (is == null) {
+			Log.e(TAG, "Could not open " + assetPath);
+			return;
+		}
+		try {
+			mDecoder = BitmapRegionDecoder.newInstance(is, false);
+		} catch (IOException e) {
+			Log.e(TAG, "Could not read " + assetPath + ": " + e.getMessage());
+			return;
+		} finally {
+			try {
+				is.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+		mWidth = mDecoder.getWidth();
+		mHeight = mDecoder.getHeight();
+		mColumns = (mWidth + mTileSize - 1) / mTileSize;
+		mRows = (mHeight + mTileSize - 1) / mTileSize;
+		mTiles = new Tile[mColumns * mRows];
+		for (int row = 0; row < mRows; row++) {
+			for (int column = 0; column < mColumns; column++) {
+				int left = column * mTileSize;
+				int top = row * mTileSize;
+				Rect r = new Rect(left, top, Math.min(left + mTileSize, mWidth), Math.min(top + mTileSize, mHeight));
+				mTiles[row * mColumns + column] = new Tile(column, row, r, mTileSize);
+			}
+		}
+	}
+
+	@Override
+	public void render(GL10 gl, Point point, Point camera) {
+		if (mDecoder == null) {
+			return;
+		}
+		mFrame++;
+		mPoint.x = (int)(point.x + x - camera.x * scrollX);
+		mPoint.y = (int)(point.y + y - camera.y * scrollY);
+
+		// The camera moving right moves the image left.
+		if (mMoved) {
+			mVelocityX = mVelocityX * 0.8f + (mLastX - mPoint.x) * 0.2f;
+			mVelocityY = mVelocityY * 0.8f + (mLastY - mPoint.y) * 0.2f;
+		}
+		mLastX = mPoint.x;
+		mLastY = mPoint.y;
+		mMoved = true;
+
+		// Visible part of the image.
+		int left = -mPoint.x;
+		int top = -mPoint.y;
+		int right = left + FP.screen.getWidth();
+		int bottom = top + FP.screen.getHeight();
+		mCenterX = (left + right) / 2f;
+		mCenterY = (top + bottom) / 2f;
+
+		int c0 = clampColumn(left / mTileSize);
+		int c1 = clampColumn((right - 1) / mTileSize);
+		int r0 = clampRow(top / mTileSize);
+		int r1 = clampRow((bottom - 1) / mTileSize);
+		boolean visible = right > 0 && bottom > 0 && left < mWidth && top < mHeight;
+
+		uploadDecoded(gl);
+
+		if (visible) {
+			SpriteBatch.setTranslation(mPoint.x, mPoint.y);
+			SpriteBatch.setColor(mColor);
+			for (int row = r0; row <= r1; row++) {
+				for (int column = c0; column <= c1; column++) {
+					Tile t = mTiles[row * mColumns + column];
+					t.lastUsed = mFrame;
+					if (t.state == RESIDENT && !t.texture.isLoaded()) {
+						// Lost with the context.
+						t.state = EMPTY;
+						mResident--;
+					}
+					if (t.state == RESIDENT) {
+						Rect r = t.rect;
+						SpriteBatch.draw(gl, t.texture, r.left, r.top, r.right, r.bottom, t.uvs, 0);
+					} else {
+						request(t);
+					}
+				}
+			}
+		}
+
+		// Around the screen and where the camera is heading.
+		int ahead = (int)(mVelocityX * prefetchFrames);
+		int aheadY = (int)(mVelocityY * prefetchFrames);
+		int margin = prefetchTiles * mTileSize;
+		prefetch(Math.min(left, left + ahead) - margin, Math.min(top, top + aheadY) - margin,
+				Math.max(right, right + ahead) + margin, Math.max(bottom, bottom + aheadY) + margin);
+
+		evict(gl);
+	}
+
+	private int clampColumn(int column) {
+		return column < 0 ? 0 : (column >= mColumns ? mColumns - 1 : column);
+	}
+
+	private int clampRow(int row) {
+		return row < 0 ? 0 : (row >= mRows ? mRows - 1 : row);
+	}
+
+	private void prefetch(int left, int top, int right, int bottom) {
+		if (right <= 0 || bottom <= 0 || left >= mWidth || top >= mHeight) {
+			return;
+		}
+		int c0 = clampColumn(left / mTileSize);
+		int c1 = clampColumn((right - 1) / mTileSize);
+		int r0 = clampRow(top / mTileSize);
+		int r1 = clampRow((bottom - 1) / mTileSize);
+		for (int row = r0; row <= r1; row++) {
+			for (int column = c0; column <= c1; column++) {
+				Tile t = mTiles[row * mColumns + column];
+				t.lastUsed = mFrame;
+				if (t.state == EMPTY) {
+					request(t);
+				}
+			}
+		}
+	}
+
+	private void request(Tile t) {
+		if (t.state != EMPTY) {
+			return;
+		}
+		t.state = QUEUED;
+		mQueued.add(t);
+		getDecodePool().execute(new Runnable() {
+			public void run() {
+				decodeNearest();
+			}
+		});
+	}
+
+	/** @private Runs on the decode thread, decodes the queued tile closest to the screen. */
+	private void decodeNearest() {
+		Tile nearest = null;
+		synchronized (mQueued) {
+			float best = Float.MAX_VALUE;
+			for (int i = mQueued.size() - 1; i >= 0; i--) {
+				Tile t = mQueued.get(i);
+				if (mFrame - t.lastUsed > 60) {
+					// Nothing wants it any more.
+					mQueued.remove(i);
+					t.state = EMPTY;
+					continue;
+				}
+				float dx = t.rect.exactCenterX() - mCenterX;
+				float dy = t.rect.exactCenterY() - mCenterY;
+				float d = dx * dx + dy * dy;
+				if (d < best) {
+					best = d;
+					nearest = t;
+				}
+			}
+			if (nearest == null) {
+				return;
+			}
+			mQueued.remove(nearest);
+		}
+		Bitmap region;
+		synchronized (mDecoderLock) {
+			BitmapRegionDecoder decoder = mDecoder;
+			if (decoder == null || decoder.isRecycled()) {
+				nearest.state = EMPTY;
+				return;
+			}
+			region = decoder.decodeRegion(nearest.rect, new BitmapFactory.Options());
+		}
+		if (region == null) {
+			Log.e(TAG, "Could not decode " + nearest.rect + " of " + mPath);
+			nearest.state = EMPTY;
+			return;
+		}
+		if (region.getWidth() != mTileSize || region.getHeight() != mTileSize) {
+			// Textures have to be a power of two.
+			Bitmap full = Bitmap.createBitmap(mTileSize, mTileSize, Config.ARGB_8888);
+			new Canvas(full).drawBitmap(region, 0, 0, null);
+			region.recycle();
+			region = full;
+		}
+		nearest.bitmap = region;
+		nearest.state = DECODED;
+		mDecoded.add(nearest);
+	}
+
+	private void uploadDecoded(GL10 gl) {
+		Tile t;
+		for (int i = 0; i < uploadsPerFrame && (t = mDecoded.poll()) != null; i++) {
+			Bitmap bm = t.bitmap;
+			t.bitmap = null;
+			if (mFrame - t.lastUsed > 60) {
+				// Went out of range while it was decoding.
+				bm.recycle();
+				t.state = EMPTY;
+				i--;
+				continue;
+			}
+			t.texture.upload(gl, bm);
+			t.state = RESIDENT;
+			mResident++;
+		}
+	}
+
+	/** @private Drops the least recently used tiles over the limit. Runs on the GL thread. */
+	private void evict(GL10 gl) {
+		while (mResident > maxResidentTiles) {
+			Tile oldest = null;
+			for (int i = 0; i < mTiles.length; i++) {
+				Tile t = mTiles[i];
+				if (t.state == RESIDENT && t.lastUsed != mFrame && (oldest == null || t.lastUsed < oldest.lastUsed)) {
+					oldest = t;
+				}
+			}
+			if (oldest == null) {
+				// Everything resident is needed this frame.
+				return;
+			}
+			// Deleted now, the tile may be uploaded again before a queued release would run.
+			oldest.texture.release(gl);
+			oldest.state = EMPTY;
+			mResident--;
+		}
+	}
+
+	/**
+	 * Frees the decoder and every tile.
+	 */
+	@Override
+	public void release() {
+		super.release();
+		synchronized (mQueued) {
+			mQueued.clear();
+		}
+		synchronized (mDecoderLock) {
+			if (mDecoder != null) {
+				mDecoder.recycle();
+				mDecoder = null;
+			}
+		}
+		for (int i = 0; i < mTiles.length; i++) {
+			Tile t = mTiles[i];
+			if (t.state == RESIDENT) {
+				t.texture.release();
+			}
+			t.state = EMPTY;
+		}
+		Tile t;
+		while ((t = mDecoded.poll()) != null) {
+			if (t.bitmap != null) {
+				t.bitmap.recycle();
+				t.bitmap = null;
+			}
+		}
+		mResident = 0;
+	}
+
+	/**
+	 * Number of tiles in video memory.
+	 */
+	public int getResidentCount() {
+		return mResident;
+	}
+
+	/**
+	 * Width of the whole image.
+	 */
+	public int getWidth() {
+		return mWidth;
+	}
+
+	/**
+	 * Height of the whole image.
+	 */
+	public int getHeight() {
+		return mHeight;
+	}
+
+	private static synchronized ExecutorService getDecodePool() {
+		if (mDecodePool == null) {
+			mDecodePool = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				public Thread newThread(final Runnable r) {
+					Thread t = new Thread(new Runnable() {
+						public void run() {
+							Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+							r.run();
+						}
+					}, TAG);
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		return mDecodePool;
+	}
+}
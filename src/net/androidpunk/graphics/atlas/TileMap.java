@@ -2,13 +2,15 @@ package net.androidpunk.graphics.atlas;
 
 import java.nio.CharBuffer;
 import java.nio.FloatBuffer;
+import java.util.Vector;
 
 import javax.microedition.khronos.opengles.GL10;
 
 import net.androidpunk.FP;
+import net.androidpunk.android.OpenGLSystem;
+import net.androidpunk.android.OpenGLSystem.OpenGLRunnable;
+import net.androidpunk.graphics.opengl.GLBuffer;
 import net.androidpunk.graphics.opengl.SubTexture;
-import android.graphics.Bitmap;
-import android.graphics.Bitmap.Config;
 import android.graphics.Canvas;
 import android.graphics.Point;
 import android.graphics.Rect;
@@ -16,6 +18,8 @@ import android.util.Log;
 
 /**
  * A canvas to which Tiles can be drawn for fast multiple tile rendering.
+ * A TileMap can hold several layers of tiles which are drawn together, chunk by
+ * chunk, with layer 0 at the back. Tiles can be animated with addAnimatedTile().
  */
 public class TileMap extends AtlasGraphic {
 
@@ -25,18 +29,40 @@ public class TileMap extends AtlasGraphic {
 	 */
 	public boolean usePositions = false;
 	
-	private FloatBuffer mVertexBuffer;
-	private FloatBuffer mTextureBuffer;
-	private CharBuffer mIndexBuffer;
+	/**
+	 * The layer that setTile(), getTile(), clearTile(), the rect functions and
+	 * loadFromString()/saveToString() work on.
+	 */
+	public int layer = 0;
+	
+	/**
+	 * Most layers a TileMap can have, every layer of a chunk must fit in a short index.
+	 */
+	public static final int MAX_LAYERS = 16;
+	
+	/**
+	 * Width and height of a chunk, in tiles. Each chunk has its own buffers and is
+	 * skipped when it is off screen. 32x32 tiles keeps a chunk's indices in a short.
+	 */
+	public static final int CHUNK_SIZE = 32;
 	
-	private int mIndexCount;
-	private int mVerticesCount;
-	private int mVerticiesAcross;
-	private int mVerticiesDown;
+	// Chunk information.
+	private Chunk mChunks[];
+	private int mChunkColumns;
+	private int mChunkRows;
+	private int mChunksDrawn;
+	private final Rect mVisible = new Rect();
 	
-	// Tilemap information.
-	protected Bitmap mMap;
-	private Bitmap mTemp;
+	// Shared scratch space for building chunk buffers.
+	private static final float mFloats[] = new float[CHUNK_SIZE * CHUNK_SIZE * 8];
+	private static final char mChars[] = new char[CHUNK_SIZE * CHUNK_SIZE * 6];
+	
+	// Value stored for a cleared tile, same as what getTile() has always returned.
+	private static final int EMPTY = 0x00ffffff;
+	
+	// Tilemap information, tile indices stored row by row, one layer after another.
+	protected int mMap[];
+	private int mLayers;
 	private int mWidth;
 	private int mHeight;
 	private int mColumns;
@@ -48,6 +74,12 @@ public class TileMap extends AtlasGraphic {
 	private int mSetRows;
 	private int mSetCount;
 	private Rect mTile;
+	
+	// Animation information.
+	private final Vector<TileAnim> mAnims = new Vector<TileAnim>();
+	private TileAnim mAnimByTile[];
+	private boolean mAnimsDirty;
+	private float mClock;
 
 	// Global objects.
 	private Rect mRect = FP.rect;
@@ -62,40 +94,45 @@ public class TileMap extends AtlasGraphic {
 	 * @param	tileHeight		Tile height.
 	 */
 	public TileMap(SubTexture tileset, int width, int height, int tileWidth, int tileHeight) {
+		this(tileset, width, height, tileWidth, tileHeight, 1);
+	}
+	
+	/**
+	 * Constructor.
+	 * @param	tileset			The source tileset image.
+	 * @param	width			Width of the tilemap, in pixels.
+	 * @param	height			Height of the tilemap, in pixels.
+	 * @param	tileWidth		Tile width.
+	 * @param	tileHeight		Tile height.
+	 * @param	layers			How many layers of tiles, up to MAX_LAYERS.
+	 */
+	public TileMap(SubTexture tileset, int width, int height, int tileWidth, int tileHeight, int layers) {
 		super(tileset);
+		if (layers < 1 || layers > MAX_LAYERS) {
+			Log.e(TAG, "Layer count must be between 1 and " + MAX_LAYERS);
+			layers = Math.max(1, Math.min(layers, MAX_LAYERS));
+		}
 		// set some tilemap information
 		mWidth = width - (width % tileWidth);
 		mHeight = height - (height % tileHeight);
 		mColumns = mWidth / tileWidth;
 		mRows = mHeight / tileHeight;
-		mMap = Bitmap.createBitmap(mColumns, mRows, Config.ARGB_8888);
-		//mTemp = mMap.copy(Config.ARGB_8888, true);
+		mLayers = layers;
+		mMap = new int[mColumns * mRows * mLayers];
 		mTile = new Rect(0, 0, tileWidth, tileHeight);
 		
-		/*
-         * Initialize triangle list mesh.
-         *
-         *     [0]------[1]   [2]------[3] ...
-         *      |    /   |     |    /   |
-         *      |   /    |     |   /    |
-         *      |  /     |     |  /     |
-         *     [w]-----[w+1] [w+2]----[w+3]...
-         *      |       |
-         *
-         */
-		mVerticiesAcross = mColumns * 2;
-		mVerticiesDown = mRows * 2;
-		mVerticesCount = mVerticiesAcross * mVerticiesDown;
-		mVertexBuffer = getDirectFloatBuffer(mVerticesCount * 2);
-		mTextureBuffer = getDirectFloatBuffer(mVerticesCount * 2);
-		
-		Log.d(TAG, String.format("%d vertices", mVerticesCount));
-		
-		//mIndexCount = mColumns * mRows * 6;
-		mIndexBuffer = getDirectCharBuffer(mColumns * mRows * 6);
-		
-		setTileVerticesBuffer();
-		mIndexCount = setTileIndexBuffer();
+		// Split the map into chunks, the last row and column may be smaller.
+		mChunkColumns = (mColumns + CHUNK_SIZE - 1) / CHUNK_SIZE;
+		mChunkRows = (mRows + CHUNK_SIZE - 1) / CHUNK_SIZE;
+		mChunks = new Chunk[mChunkColumns * mChunkRows];
+		for (int y = 0; y < mChunkRows; y++) {
+			for (int x = 0; x < mChunkColumns; x++) {
+				int column = x * CHUNK_SIZE;
+				int row = y * CHUNK_SIZE;
+				mChunks[y * mChunkColumns + x] = new Chunk(column, row, Math.min(CHUNK_SIZE, mColumns - column), Math.min(CHUNK_SIZE, mRows - row));
+			}
+		}
+		Log.d(TAG, String.format("%d chunks", mChunks.length));
 		
 		// load the tileset graphic
 		mSet = tileset;
@@ -108,121 +145,333 @@ public class TileMap extends AtlasGraphic {
 		mSetCount = mSetColumns * mSetRows;
 	}
 	
-	private void setTileVerticesBuffer() {
-		float f[] = new float[mVerticesCount * 2];
-		int i = 0;
-		mVertexBuffer.position(0);
+	/**
+	 * A block of up to CHUNK_SIZE x CHUNK_SIZE tiles with its own geometry.
+	 * Every tile has 4 vertices in triangle strip order, positioned in map pixels.
+	 * Each layer has its own copy of the vertices, stored one layer after another,
+	 * so all layers are drawn with one call.
+	 */
+	private class Chunk {
+		public final int column;
+		public final int row;
+		public final int columns;
+		public final int rows;
+		
+		// Bounds in map pixels.
+		public final Rect bounds = new Rect();
 		
-		for(int y = 0; y < mRows; y++) {
-			for(int x = 0; x < mColumns; x++) {
-				//mVertexBuffer.put(x * mTile.width()).put(y * mTile.height());
-				f[i++] = x * mTile.width();
-				f[i++] = y * mTile.height();
-				//index += 2;
-				//mVertexBuffer.put((x+1) * mTile.width()).put(y * mTile.height());
-				f[i++] = (x+1) * mTile.width();
-				f[i++] = y * mTile.height();
-				//index += 2;
-				//Log.d(TAG, String.format("quad top %d,%d value %d,%d - %d,%d", x, y, 
-				//		x * mTile.width(), y * mTile.height(), (x+1) * mTile.width(), y * mTile.height()));
+		public final FloatBuffer vertices;
+		public final FloatBuffer texCoords;
+		public final CharBuffer indices;
+		public final GLBuffer vertexVBO;
+		public final GLBuffer textureVBO;
+		public final GLBuffer indexVBO;
+		public int indexCount;
+		
+		// Set when a tile was cleared or filled, the indices are rebuilt before the next draw.
+		public boolean indicesDirty;
+		
+		public Chunk(int column, int row, int columns, int rows) {
+			this.column = column;
+			this.row = row;
+			this.columns = columns;
+			this.rows = rows;
+			bounds.set(column * mTile.width(), row * mTile.height(), (column + columns) * mTile.width(), (row + rows) * mTile.height());
+			
+			int tiles = columns * rows * mLayers;
+			vertices = getDirectFloatBuffer(tiles * 8);
+			texCoords = getDirectFloatBuffer(tiles * 8);
+			indices = getDirectCharBuffer(tiles * 6);
+			vertexVBO = new GLBuffer(GLBuffer.ARRAY_BUFFER, vertices, tiles * 8);
+			textureVBO = new GLBuffer(GLBuffer.ARRAY_BUFFER, texCoords, tiles * 8);
+			indexVBO = new GLBuffer(GLBuffer.ELEMENT_ARRAY_BUFFER, indices, tiles * 6);
+			
+			buildVertices();
+			if (mSubTexture != null) {
+				buildTexCoords();
+			}
+			buildIndices();
+		}
+		
+		public void buildVertices() {
+			float f[] = mFloats;
+			int i = 0;
+			int w = mTile.width();
+			int h = mTile.height();
+			for (int y = row; y < row + rows; y++) {
+				for (int x = column; x < column + columns; x++) {
+					f[i++] = x * w;			f[i++] = y * h;
+					f[i++] = (x + 1) * w;	f[i++] = y * h;
+					f[i++] = x * w;			f[i++] = (y + 1) * h;
+					f[i++] = (x + 1) * w;	f[i++] = (y + 1) * h;
+				}
 			}
-			for(int x = 0; x < mColumns; x++) {
-				//mVertexBuffer.put(x * mTile.width()).put((y+1) * mTile.height());
-				f[i++] = x * mTile.width();
-				f[i++] = (y+1) * mTile.height();
-				//index += 2;
-				//mVertexBuffer.put((x+1) * mTile.width()).put((y+1) * mTile.height());
-				f[i++] = (x+1) * mTile.width();
-				f[i++] = (y+1) * mTile.height();
-				//index += 2;
-				//Log.d(TAG, String.format("quad bottom %d,%d value %d,%d - %d,%d", x, y,
-				//		x * mTile.width(), (y+1) * mTile.height(), (x+1) * mTile.width(), (y+1) * mTile.height()));
+			vertices.position(0);
+			for (int l = 0; l < mLayers; l++) {
+				vertices.put(f, 0, i);
+			}
+			vertices.position(0);
+			vertexVBO.markDirty();
+		}
+		
+		public void buildTexCoords() {
+			float f[] = mFloats;
+			texCoords.position(0);
+			for (int l = 0; l < mLayers; l++) {
+				int i = 0;
+				for (int y = row; y < row + rows; y++) {
+					for (int x = column; x < column + columns; x++) {
+						putFrame(f, i, mMap[getMapIndex(l, x, y)]);
+						i += 8;
+					}
+				}
+				texCoords.put(f, 0, i);
+			}
+			texCoords.position(0);
+			textureVBO.markDirty();
+		}
+		
+		/**
+		 * Rewrites the texture coordinates of one tile in place.
+		 * Only those 8 floats are uploaded the next time the chunk is drawn.
+		 */
+		public void updateTexCoords(int l, int x, int y) {
+			int i = ((l * rows + y - row) * columns + (x - column)) * 8;
+			putFrame(mFloats, 0, mMap[getMapIndex(l, x, y)]);
+			texCoords.position(i);
+			texCoords.put(mFloats, 0, 8).position(0);
+			textureVBO.markDirty(i, i + 8);
+		}
+		
+		public void buildIndices() {
+			char c[] = mChars;
+			int count = 0;
+			int tile = 0;
+			indices.position(0);
+			// Layers in order, so higher layers draw over lower ones.
+			for (int l = 0; l < mLayers; l++) {
+				int i = 0;
+				for (int y = row; y < row + rows; y++) {
+					for (int x = column; x < column + columns; x++, tile++) {
+						if (mMap[getMapIndex(l, x, y)] == EMPTY) {
+							continue;
+						}
+						char a = (char)(tile * 4);
+						c[i++] = a;
+						c[i++] = (char)(a + 1);
+						c[i++] = (char)(a + 2);
+						c[i++] = (char)(a + 1);
+						c[i++] = (char)(a + 3);
+						c[i++] = (char)(a + 2);
+					}
+				}
+				indices.put(c, 0, i);
+				count += i;
 			}
+			indices.position(0);
+			indexVBO.markDirty(0, count);
+			indexCount = count;
+			indicesDirty = false;
+		}
+		
+		public void render(GL10 gl) {
+			OpenGLSystem.enableClientState(gl, GL10.GL_TEXTURE_COORD_ARRAY);
+			OpenGLSystem.disableClientState(gl, GL10.GL_COLOR_ARRAY);
+			vertexVBO.setVertexPointer(gl, 2);
+			textureVBO.setTexCoordPointer(gl, 2);
+			indexVBO.drawElements(gl, 0, indexCount);
+		}
+		
+		public void release(GL10 gl) {
+			vertexVBO.release(gl);
+			textureVBO.release(gl);
+			indexVBO.release(gl);
 		}
-		mVertexBuffer.put(f).position(0);
 	}
 	
-	private void setTileTextureBuffer() {
-		float f[] = new float[mVerticesCount * 2];
-		int i = 0;
-		Rect r = new Rect();
-		int texWidth = mSubTexture.getTexture().getWidth();
-		int texHeight = mSubTexture.getTexture().getHeight();
+	/**
+	 * A tile index that shows a sequence of frames instead of a single tile.
+	 */
+	private static class TileAnim {
+		public int tile;
+		public int frames[];
+		public float frameRate;
+		public int frame = -1;
 		
-		mTextureBuffer.position(0);
-		for(int y = 0; y < mRows; y++) {
-			for(int x = 0; x < mColumns; x++) {
-				int tile = getTile(x, y);
-				mSubTexture.getFrame(r, tile, mTile.width(), mTile.height());
-				//mTextureBuffer.put((float)r.left/texWidth).put((float)r.top/texHeight);
-				f[i++] = (float)r.left/texWidth;
-				f[i++] = (float)r.top/texHeight;
-				//mTextureBuffer.put((float)(r.left + r.width())/texWidth).put((float)r.top/texHeight);
-				f[i++] = (float)(r.left + r.width())/texWidth;
-				f[i++] = (float)r.top/texHeight;
-				//Log.d(TAG, String.format("texture quad top %d,%d value %d,%d - %d,%d", x, y, 
-				//		r.left, r.top, r.left + r.width(), r.top));
+		// Map indices of the tiles using this animation.
+		public int positions[] = new int[16];
+		public int count;
+	}
+	
+	/**
+	 * Animates every tile with the index. Frames are shown at the frame rate from a
+	 * clock shared by all animations of this map, only the texture coordinates
+	 * of the animated tiles are changed when the frame changes.
+	 * @param	tile		Tile index to animate, as passed to setTile().
+	 * @param	frames		Tile indices to show in order.
+	 * @param	frameRate	Frames per second, or per frame if FP.fixed.
+	 */
+	public void addAnimatedTile(int tile, int frames[], float frameRate) {
+		if (tile < 0 || tile >= mSetCount || frames == null || frames.length == 0) {
+			Log.e(TAG, "Invalid animated tile " + tile);
+			return;
+		}
+		if (mAnimByTile == null) {
+			mAnimByTile = new TileAnim[mSetCount];
+		}
+		TileAnim a = mAnimByTile[tile];
+		if (a == null) {
+			a = new TileAnim();
+			a.tile = tile;
+			mAnimByTile[tile] = a;
+			mAnims.add(a);
+		}
+		a.frames = frames;
+		a.frameRate = frameRate;
+		a.frame = -1;
+		mAnimsDirty = true;
+		active = true;
+	}
+	
+	/**
+	 * Stops all tile animations, the tiles show their own index again.
+	 */
+	public void clearAnimatedTiles() {
+		mAnims.clear();
+		mAnimByTile = null;
+		for (int i = 0; i < mChunks.length; i++) {
+			mChunks[i].buildTexCoords();
+		}
+	}
+	
+	@Override
+	public void update() {
+		int animCount = mAnims.size();
+		if (animCount == 0) {
+			return;
+		}
+		if (mAnimsDirty) {
+			findAnimatedTiles();
+		}
+		mClock += FP.fixed ? 1 : FP.elapsed;
+		int layerSize = mColumns * mRows;
+		for (int i = 0; i < animCount; i++) {
+			TileAnim a = mAnims.get(i);
+			int frame = (int)(mClock * a.frameRate) % a.frames.length;
+			if (frame == a.frame) {
+				continue;
 			}
-			for(int x = 0; x < mColumns; x++) {
-				int tile = getTile(x, y);
-				mSubTexture.getFrame(r, tile, mTile.width(), mTile.height());
-				//mTextureBuffer.put((float)r.left/texWidth).put((float)(r.top + r.height())/ texHeight);
-				f[i++] = (float)r.left/texWidth;
-				f[i++] = (float)(r.top + r.height())/ texHeight;
-				//mTextureBuffer.put((float)(r.left + r.width())/texWidth).put((float)(r.top + r.height())/ texHeight);
-				f[i++] = (float)(r.left + r.width())/texWidth;
-				f[i++] = (float)(r.top + r.height())/ texHeight;
-				//Log.d(TAG, String.format("texture quad bottom %d,%d value %d,%d - %d,%d", x, y,
-				//		r.left, r.top + r.height(), r.left + r.width(), r.top + r.height()));
+			a.frame = frame;
+			for (int p = 0; p < a.count; p++) {
+				int index = a.positions[p];
+				int l = index / layerSize;
+				int column = index % mColumns;
+				int row = (index % layerSize) / mColumns;
+				getChunk(column, row).updateTexCoords(l, column, row);
 			}
 		}
-		
-		mTextureBuffer.put(f).position(0);
 	}
 	
-	private int setTileIndexBuffer() {
-		char indices[] = new char[mColumns * mRows * 6];
-		mIndexBuffer.position(0);
-		int i = 0;
-		for (int y = 0; y < mRows; y++) {
-			final int indexY = y * 2;
-			for (int x = 0; x < mColumns; x++) {
-				int tile = getTile(x, y);
-				if (tile == 0x00ffffff) {
-					//Log.d(TAG, String.format("Skipping (%d, %d)", x, y));
-					continue;
-				}
-				final int indexX = x * 2;
-				char a = (char) (indexY * mVerticiesAcross + indexX);
-				char b = (char) (indexY * mVerticiesAcross + indexX + 1);
-				char c = (char) ((indexY + 1) * mVerticiesAcross + indexX);
-				char d = (char) ((indexY + 1) * mVerticiesAcross + indexX + 1);
-				
-				//Log.d(TAG, String.format("Quad %d, %d -> tl:%d tr:%d bl:%d br:%d", x, y, (int)a, (int)b, (int)c, (int)d));
-				
-				indices[i++] = a;
-				indices[i++] = b;
-				indices[i++] = c;
-				//mIndexBuffer.put(a);
-				//mIndexBuffer.put(b);
-				//mIndexBuffer.put(c);
-				
-				indices[i++] = b;
-				indices[i++] = d;
-				indices[i++] = c;
-				//mIndexBuffer.put(b);
-				//mIndexBuffer.put(c);
-				//mIndexBuffer.put(d);
+	/** @private Collects where every animated tile is, after the map changed. */
+	private void findAnimatedTiles() {
+		TileAnim byTile[] = mAnimByTile;
+		for (int i = 0; i < mAnims.size(); i++) {
+			mAnims.get(i).count = 0;
+		}
+		for (int i = 0; i < mMap.length; i++) {
+			int tile = mMap[i];
+			if (tile < 0 || tile >= byTile.length || byTile[tile] == null) {
+				continue;
 			}
+			TileAnim a = byTile[tile];
+			if (a.count == a.positions.length) {
+				int positions[] = new int[a.count * 2];
+				System.arraycopy(a.positions, 0, positions, 0, a.count);
+				a.positions = positions;
+			}
+			a.positions[a.count++] = i;
+		}
+		mAnimsDirty = false;
+	}
+	
+	/** @private Index into mMap of a tile. */
+	private int getMapIndex(int layer, int column, int row) {
+		return (layer * mRows + row) * mColumns + column;
+	}
+	
+	/** @private The chunk a tile is in. */
+	private Chunk getChunk(int column, int row) {
+		return mChunks[(row / CHUNK_SIZE) * mChunkColumns + column / CHUNK_SIZE];
+	}
+	
+	/** @private Writes the texture coordinates of a tile's 4 corners into f at i. */
+	private void putFrame(float f[], int i, int index) {
+		TileAnim byTile[] = mAnimByTile;
+		if (byTile != null && index >= 0 && index < byTile.length && byTile[index] != null) {
+			TileAnim a = byTile[index];
+			index = a.frames[Math.max(a.frame, 0)];
+		}
+		Rect r = mRect;
+		int texWidth = mSubTexture.getTexture().getWidth();
+		int texHeight = mSubTexture.getTexture().getHeight();
+		mSubTexture.getFrame(r, index, mTile.width(), mTile.height());
+		float left = (float)r.left / texWidth;
+		float top = (float)r.top / texHeight;
+		float right = (float)r.right / texWidth;
+		float bottom = (float)r.bottom / texHeight;
+		f[i++] = left;	f[i++] = top;
+		f[i++] = right;	f[i++] = top;
+		f[i++] = left;	f[i++] = bottom;
+		f[i++] = right;	f[i] = bottom;
+	}
+	
+	/** @private Stores a tile and patches the chunk it belongs to. */
+	private void storeTile(int column, int row, int value) {
+		int l = Math.max(0, Math.min(layer, mLayers - 1));
+		int i = getMapIndex(l, column, row);
+		int old = mMap[i];
+		if (old == value) {
+			return;
+		}
+		mMap[i] = value;
+		mAnimsDirty = true;
+		Chunk c = getChunk(column, row);
+		if (value != EMPTY) {
+			c.updateTexCoords(l, column, row);
+		}
+		if ((old == EMPTY) != (value == EMPTY)) {
+			c.indicesDirty = true;
 		}
-		mIndexBuffer.put(indices).position(0);
-		Log.d(TAG, String.format("Tilemap is %d indicies down from %d", i, mColumns * mRows * 6));
-		return i;
+	}
+	
+	/** @private Sets mVisible to the part of the map on screen, in map pixels. */
+	private boolean setVisibleRect() {
+		if (angle != 0) {
+			// Rotated maps just draw every chunk.
+			mVisible.set(0, 0, mWidth, mHeight);
+			return true;
+		}
+		float sX = scaleX * scale * FP.scale;
+		float sY = scaleY * scale * FP.scale;
+		if (sX == 0 || sY == 0) {
+			return false;
+		}
+		// Same transform as setMatrix(), inverted for the screen corners.
+		float tx = (originX * Math.abs(sX)) + mPoint.x * Math.abs(FP.scale);
+		float ty = (originY * Math.abs(sY)) + mPoint.y * Math.abs(FP.scale);
+		float x1 = (0 - tx) / sX + originX;
+		float x2 = (FP.width - tx) / sX + originX;
+		float y1 = (0 - ty) / sY + originY;
+		float y2 = (FP.height - ty) / sY + originY;
+		mVisible.set((int)Math.floor(Math.min(x1, x2)), (int)Math.floor(Math.min(y1, y2)), 
+				(int)Math.ceil(Math.max(x1, x2)), (int)Math.ceil(Math.max(y1, y2)));
+		return true;
 	}
 	
 	@Override
 	public void render(GL10 gl, Point point, Point camera) {
 		super.render(gl, point, camera);
+		mChunksDrawn = 0;
 		if (!getAtlas().isLoaded()) {
 			return;
 		}
@@ -230,39 +479,37 @@ public class TileMap extends AtlasGraphic {
 		mPoint.x = (int)(point.x + x - camera.x * scrollX);
 		mPoint.y = (int)(point.y + y - camera.y * scrollY);
 		
-		setBuffers(gl, mVertexBuffer, mTextureBuffer);
+		if (!setVisibleRect()) {
+			return;
+		}
 		
 		gl.glPushMatrix(); 
 		{
 			setMatrix(gl);
 			
-			gl.glDrawElements(GL10.GL_TRIANGLES, mIndexCount, GL10.GL_UNSIGNED_SHORT, mIndexBuffer);
-		}
-		gl.glPopMatrix();
-
-		/*
-		for (int y = 0; y < mRows; y++) {
-			gl.glPushMatrix(); 
-			gl.glTranslatef(mPoint.x, mPoint.y + y * mTile.height(), 0);
-			
-			for (int x = 0; x < mColumns && mPoint.x + x * mTile.width() < FP.screen.getWidth(); x++) {
-				int color = mMap.getPixel(x, y) & 0x00ffffff;
-				if (color != -1) {
-					
-					setTextureBuffer(QUAD_FLOAT_BUFFER_2, mSet, color, mTile.width(), mTile.height());
-				
-					setBuffers(gl, mVertexBuffer, QUAD_FLOAT_BUFFER_2);
-				
-					gl.glDrawArrays(GL10.GL_TRIANGLE_STRIP, 0, 4);
-					gl.glTranslatef(mTile.width(), 0, 0);
-					
+			for (int i = 0; i < mChunks.length; i++) {
+				Chunk c = mChunks[i];
+				if (!Rect.intersects(mVisible, c.bounds)) {
+					continue;
+				}
+				// Off screen chunks keep their changes until they come into view.
+				if (c.indicesDirty) {
+					c.buildIndices();
 				}
+				if (c.indexCount == 0) {
+					continue;
+				}
+				c.render(gl);
+				mChunksDrawn++;
 			}
-			gl.glPopMatrix();
 		}
-		*/
+		gl.glPopMatrix();
 	}
 
+	/**
+	 * How many chunks were drawn in the last render, for profiling.
+	 */
+	public int getChunksDrawn() { return mChunksDrawn; }
 
 	public void setTile(int column, int row) {
 		setTile(column, row, 0);
@@ -283,8 +530,7 @@ public class TileMap extends AtlasGraphic {
 		column %= mColumns;
 		row %= mRows;
 		
-		mMap.setPixel(column, row, 0xff << 24 | index);
-		//Log.d(TAG, String.format("Setting %d %d to %d = %d", column, row, index, getTile(column, row)));
+		storeTile(column, row, index);
 	}
 	
 	/**
@@ -299,7 +545,7 @@ public class TileMap extends AtlasGraphic {
 		}
 		column %= mColumns;
 		row %= mRows;
-		mMap.setPixel(column, row, -1);
+		storeTile(column, row, EMPTY);
 	}
 	
 	/**
@@ -313,7 +559,7 @@ public class TileMap extends AtlasGraphic {
 			column /= mTile.width();
 			row /= mTile.height();
 		}
-		return mMap.getPixel(column % mColumns, row % mRows) & 0x00ffffff;
+		return mMap[getMapIndex(Math.max(0, Math.min(layer, mLayers - 1)), column % mColumns, row % mRows)];
 	}
 	
 	
@@ -425,6 +671,7 @@ public class TileMap extends AtlasGraphic {
 		int cols;
 		int x, y;
 		int xp;
+		int l = Math.max(0, Math.min(layer, mLayers - 1));
 		for (y = 0; y < rows; y ++) {
 			xp = 0;
 			if ("".equals(row[y])) 
@@ -437,12 +684,15 @@ public class TileMap extends AtlasGraphic {
 					xp--;
 					continue;
 				}
-				setTile(x+xp, y, Integer.parseInt(col[x]));
+				// Straight into the map, every chunk is rebuilt below.
+				mMap[getMapIndex(l, (x + xp) % mColumns, y % mRows)] = Integer.parseInt(col[x]) % mSetCount;
 			}
 		}
-		setTileVerticesBuffer();
-		setTileTextureBuffer();
-		mIndexCount = setTileIndexBuffer();
+		mAnimsDirty = true;
+		for (int i = 0; i < mChunks.length; i++) {
+			mChunks[i].buildTexCoords();
+			mChunks[i].buildIndices();
+		}
 	}
 	
 	/**
@@ -501,12 +751,24 @@ public class TileMap extends AtlasGraphic {
 	 * How many rows the tilemap has.
 	 */
 	public int getRows() { return mRows; }
+	
+	/**
+	 * How many layers the tilemap has.
+	 */
+	public int getLayers() { return mLayers; }
 
 	@Override
-	protected void release() {
+	public void release() {
 		super.release();
 		
-		mMap.recycle();
+		OpenGLSystem.postRunnable(new OpenGLRunnable() {
+			@Override
+			public void run(GL10 gl) {
+				for (int i = 0; i < mChunks.length; i++) {
+					mChunks[i].release(gl);
+				}
+			}
+		});
 	}
 
 }
@@ -4,6 +4,7 @@ import javax.microedition.khronos.opengles.GL10;
 
 import net.androidpunk.FP;
 import net.androidpunk.android.OpenGLSystem;
+import net.androidpunk.graphics.opengl.AtlasProfiler;
 import net.androidpunk.graphics.opengl.SubTexture;
 import android.graphics.Point;
 
@@ -96,13 +97,15 @@ public class TiledSpriteMap extends SpriteMap {
 	public void render(GL10 gl, Point point, Point camera) {
 		// Need to pull out AtlasGraphic instead of rendering the spritemap.
 		// For optimisation
+		// After setTexture, its batch flush leaves the GL color undefined.
+		OpenGLSystem.setTexture(gl, getAtlas());
 		getAtlas().mColorFilter.setColor(mColor);
 		getAtlas().mColorFilter.applyColorFilter(gl);
-		OpenGLSystem.setTexture(gl, getAtlas());
 		
 		if (!getAtlas().isLoaded()) {
 			return;
 		}
+		AtlasProfiler.record(mSubTexture);
 		mPoint.x = (int)(point.x + x - camera.x * scrollX);
 		mPoint.y = (int)(point.y + y - camera.y * scrollY);
 
@@ -0,0 +1,194 @@
+package net.androidpunk.graphics.opengl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+import net.androidpunk.FP;
+import net.androidpunk.android.PunkActivity;
+import android.app.ActivityManager;
+import android.content.Context;
+import android.util.Log;
+
+/**
+ * Picks the resolution textures are loaded at. An image asset such as
+ * textures/hero.png can have variants drawn at other scales next to it,
+ * textures@1x/hero.png and textures@2x/hero.png. The smallest variant that is
+ * at least as big as the game is on screen is loaded. When even that is twice
+ * as big or more, it is downsampled while decoding.
+ *
+ * Textures keep the size of the logical image whatever is loaded, so
+ * SubTexture rectangles and atlas xml files are always in logical pixels.
+ */
+public class AssetDensity {
+
+	private static final String TAG = "AssetDensity";
+
+	/**
+	 * Suffixes of the variant directories, or of the file name for assets in the root.
+	 */
+	public static String variants[] = { "@1x", "@2x" };
+
+	/**
+	 * Pixels per logical pixel of each variant.
+	 */
+	public static float variantScales[] = { 1, 2 };
+
+	/**
+	 * Pixels per logical pixel of an asset that has no variants.
+	 */
+	public static float baseScale = 1;
+
+	/**
+	 * Wanted pixels per logical pixel, 0 to use the display size divided by the game size.
+	 */
+	public static float scale = 0;
+
+	/**
+	 * Devices whose memory class in MB is this or less use half the resolution,
+	 * a quarter of the texture memory.
+	 */
+	public static int lowMemoryClass = 32;
+
+	private static final Map<String, Variant> mCache = new HashMap<String, Variant>();
+
+	/**
+	 * An asset to load for an image.
+	 */
+	public static class Variant {
+		/**
+		 * Asset path to load.
+		 */
+		public final String path;
+
+		/**
+		 * Pixels per logical pixel of the asset.
+		 */
+		public final float scale;
+
+		/**
+		 * BitmapFactory.Options.inSampleSize to decode with.
+		 */
+		public final int sampleSize;
+
+		public Variant(String path, float scale, int sampleSize) {
+			this.path = path;
+			this.scale = scale;
+			this.sampleSize = sampleSize;
+		}
+
+		/**
+		 * Pixels per logical pixel once decoded.
+		 */
+		public float getScale() {
+			return scale / sampleSize;
+		}
+	}
+
+	/**
+	 * Wanted pixels per logical pixel on this device.
+	 */
+	public static float getWantedScale() {
+		if (scale > 0) {
+			return scale;
+		}
+		int gameWidth = FP.width > 0 ? FP.width : PunkActivity.static_width;
+		int displayWidth = FP.displayWidth;
+		if (displayWidth <= 0 && FP.context != null) {
+			displayWidth = FP.context.getResources().getDisplayMetrics().widthPixels;
+		}
+		float wanted = displayWidth > 0 && gameWidth > 0 ? (float)displayWidth / gameWidth : 1;
+		if (isLowMemory()) {
+			wanted /= 2;
+		}
+		return wanted;
+	}
+
+	/**
+	 * If this is a low end device that should use less texture memory.
+	 */
+	public static boolean isLowMemory() {
+		if (FP.context == null) {
+			return false;
+		}
+		ActivityManager am = (ActivityManager)FP.context.getSystemService(Context.ACTIVITY_SERVICE);
+		return am != null && am.getMemoryClass() <= lowMemoryClass;
+	}
+
+	/**
+	 * Finds what to load for an image asset.
+	 * @param	path		Asset path of the logical image.
+	 * @return	The variant, or the path itself downsampled if needed.
+	 */
+	public static synchronized Variant resolve(String path) {
+		Variant v = mCache.get(path);
+		if (v != null) {
+			return v;
+		}
+		float wanted = getWantedScale();
+		String best = null;
+		float bestScale = 0;
+		for (int i = 0; i < variants.length; i++) {
+			String p = getVariantPath(path, variants[i]);
+			if (!exists(p)) {
+				continue;
+			}
+			float s = variantScales[i];
+			// The smallest that is big enough, else the biggest.
+			if (best == null || (bestScale < wanted ? s > bestScale : (s >= wanted && s < bestScale))) {
+				best = p;
+				bestScale = s;
+			}
+		}
+		if (best == null) {
+			best = path;
+			bestScale = baseScale;
+		}
+		int sampleSize = 1;
+		// ETC1 data can't be downsampled.
+		if (!PKMImage.isPKM(best)) {
+			while (bestScale / (sampleSize * 2) >= wanted) {
+				sampleSize *= 2;
+			}
+		}
+		v = new Variant(best, bestScale, sampleSize);
+		if (!best.equals(path) || sampleSize != 1) {
+			Log.d(TAG, path + " -> " + best + (sampleSize != 1 ? " / " + sampleSize : ""));
+		}
+		mCache.put(path, v);
+		return v;
+	}
+
+	/**
+	 * Forgets the variants found, eg. after changing scale.
+	 */
+	public static synchronized void clearCache() {
+		mCache.clear();
+	}
+
+	/**
+	 * The path of a variant: textures/hero.png becomes textures@2x/hero.png, hero.png becomes hero@2x.png.
+	 */
+	public static String getVariantPath(String path, String suffix) {
+		int slash = path.lastIndexOf('/');
+		if (slash > 0) {
+			return path.substring(0, slash) + suffix + path.substring(slash);
+		}
+		int dot = path.lastIndexOf('.');
+		if (dot > 0) {
+			return path.substring(0, dot) + suffix + path.substring(dot);
+		}
+		return path + suffix;
+	}
+
+	private static boolean exists(String path) {
+		try {
+			InputStream is = FP.context.getAssets().open(path);
+			is.close();
+			return true;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+}
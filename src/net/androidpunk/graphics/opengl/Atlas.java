@@ -5,13 +5,6 @@ import java.util.HashMap;
 import java.util.Map;
 import java.util.Vector;
 
-import net.androidpunk.FP;
-
-import org.w3c.dom.Document;
-import org.w3c.dom.NamedNodeMap;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
-
 import android.graphics.Bitmap;
 import android.graphics.Rect;
 import android.util.Log;
@@ -27,7 +20,10 @@ public class Atlas extends Texture {
 	
 	public static final Vector<Atlas> ATLAS = new Vector<Atlas>();
 	
-	private final Map<String, SubTexture> mSubTextures = new HashMap<String, SubTexture>();
+	private final Map<String, Integer> mHandles = new HashMap<String, Integer>();
+	private final Vector<SubTexture> mSubTextures = new Vector<SubTexture>();
+	
+	private String mXmlPath;
 	
 	public Atlas() {
 		ATLAS.add(this);
@@ -42,6 +38,11 @@ public class Atlas extends Texture {
 	 * Loads a texture atlas in the Sparrow format.
 	 * 
 	 * Use TexturePacker with no texture cropping and power of two dimensions.
+	 * The TextureAtlas element may have a format attribute, RGBA8888, RGB565,
+	 * RGBA4444 or auto, and dither="true" to upload in fewer bits, see TextureFormat.
+	 * 
+	 * The xml is only parsed the first time, after that a binary copy is read
+	 * from the cache, see AtlasIndex.
 	 * 
 	 * @param xmlPath The absolute path to the xml file in the assets directory.
 	 */
@@ -49,37 +50,29 @@ public class Atlas extends Texture {
 		File xml = new File(xmlPath);
 		String assetPath = xml.getParent();
 		xml = null;
+		mXmlPath = xmlPath;
 		
-		Document doc = FP.getXML(xmlPath);
-		
-		NodeList tal = doc.getElementsByTagName("TextureAtlas");
-		Node ta = tal.item(0);
+		AtlasIndex index = AtlasIndex.load(xmlPath);
+		if (index == null) {
+			Log.e(TAG, "Could not load " + xmlPath);
+			ATLAS.add(this);
+			return;
+		}
 		
-		String texturePath = assetPath + File.separator + ta.getAttributes().getNamedItem("imagePath").getNodeValue();
+		String texturePath = (assetPath != null ? assetPath + File.separator : "") + index.imagePath;
 		Log.d(TAG, "Loading " + texturePath);
 		
-		// This can start loading the texture in the OpenGL thread.
-		setTextureBitmap(texturePath);
+		setFormat(index.format, index.dither);
+		
+		// Decoded in the background, see TextureLoader.getProgress().
+		setTextureBitmapAsync(texturePath);
 		
-		NodeList stl = ta.getChildNodes();
-		int subTextureCount = stl.getLength();
-		for (int i = 0; i < subTextureCount; i++) {
-			Node st = stl.item(i);
-			if (st.getNodeType() == Node.TEXT_NODE) {
-				continue;
-			}
-			NamedNodeMap atts = st.getAttributes();
-			
-			String name;
-			int x, y, width, height;
-			name = atts.getNamedItem("name").getNodeValue();
-			
-			x = Integer.parseInt(atts.getNamedItem("x").getNodeValue());
-			y = Integer.parseInt(atts.getNamedItem("y").getNodeValue());
-			width = Integer.parseInt(atts.getNamedItem("width").getNodeValue());
-			height = Integer.parseInt(atts.getNamedItem("height").getNodeValue());
-			
-			mSubTextures.put(name, new SubTexture(this, x, y, width, height));
+		String names[] = index.names;
+		int rects[] = index.rects;
+		mSubTextures.ensureCapacity(names.length);
+		for (int i = 0; i < names.length; i++) {
+			int r = i * 4;
+			putSubTexture(names[i], new SubTexture(this, rects[r], rects[r + 1], rects[r + 2], rects[r + 3]));
 		}
 		
 		if (!ATLAS.contains(this)) {
@@ -87,16 +80,69 @@ public class Atlas extends Texture {
 		}
 	}
 	
+	/**
+	 * Removes the atlas from ATLAS and deletes its texture. Use when the atlas won't be needed again.
+	 */
+	public void dispose() {
+		ATLAS.remove(this);
+		release();
+	}
+	
 	public void addSubTexture(String name, Rect clip) {
-		mSubTextures.put(name, new SubTexture(this, clip.left, clip.top, clip.width(), clip.height()));
+		putSubTexture(name, new SubTexture(this, clip.left, clip.top, clip.width(), clip.height()));
+	}
+	
+	private void putSubTexture(String name, SubTexture st) {
+		st.setName(name);
+		Integer handle = mHandles.get(name);
+		if (handle != null) {
+			mSubTextures.set(handle, st);
+		} else {
+			mHandles.put(name, mSubTextures.size());
+			mSubTextures.add(st);
+		}
 	}
 	
 	public SubTexture getSubTexture(String name) {
-		SubTexture st = mSubTextures.get(name);
-		if (st == null) {
+		Integer handle = mHandles.get(name);
+		if (handle == null) {
 			Log.e(TAG, "Subtexture '" + name + "' does not exist.");
+			return null;
 		}
-		return st;
+		return mSubTextures.get(handle);
+	}
+	
+	/**
+	 * Looks up a SubTexture's handle once, for getSubTexture(int) in hot paths.
+	 * @param name The SubTexture's name.
+	 * @return The handle, or -1 if there is no such SubTexture.
+	 */
+	public int getHandle(String name) {
+		Integer handle = mHandles.get(name);
+		return handle != null ? handle : -1;
+	}
+	
+	/**
+	 * Gets a SubTexture without a name lookup.
+	 * @param handle From getHandle().
+	 * @return The SubTexture.
+	 */
+	public SubTexture getSubTexture(int handle) {
+		return mSubTextures.get(handle);
+	}
+	
+	/**
+	 * The xml file the atlas was loaded from, or null.
+	 */
+	public String getXmlPath() {
+		return mXmlPath;
+	}
+	
+	/**
+	 * Number of SubTextures, handles go from 0 to this.
+	 */
+	public int getSubTextureCount() {
+		return mSubTextures.size();
 	}
 	
 }
@@ -0,0 +1,305 @@
+package net.androidpunk.graphics.opengl;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Vector;
+
+import net.androidpunk.FP;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+import org.xmlpull.v1.XmlPullParserFactory;
+
+import android.util.Log;
+
+/**
+ * The contents of a Sparrow atlas xml file: the image path, the upload format
+ * and the name and rectangle of every SubTexture.
+ *
+ * Reading xml is slow with big atlases, so the first time an atlas is loaded
+ * its index is written to a compact binary file in the cache directory, which
+ * later starts up with a single read. A binary index can also be made at build
+ * time with AtlasIndexer in tools/src and put next to the xml as name.atlas in
+ * the assets.
+ */
+public class AtlasIndex {
+
+	private static final String TAG = "AtlasIndex";
+
+	private static final int MAGIC = 0x41504958; // "APIX"
+	private static final int VERSION = 1;
+
+	/**
+	 * Extension of binary index files.
+	 */
+	public static final String EXTENSION = ".atlas";
+
+	/**
+	 * Image path from the xml, relative to the xml's directory.
+	 */
+	public String imagePath;
+
+	/**
+	 * Upload format, see TextureFormat.
+	 */
+	public int format = TextureFormat.RGBA_8888;
+
+	/**
+	 * If reducing the format dithers.
+	 */
+	public boolean dither = false;
+
+	/**
+	 * SubTexture names, in file order.
+	 */
+	public String names[];
+
+	/**
+	 * x, y, width, height of each SubTexture, 4 ints per name.
+	 */
+	public int rects[];
+
+	/**
+	 * Loads the index of an atlas xml file in the assets, from the binary
+	 * asset or cache if there is one, else from the xml, caching it.
+	 * @param	xmlPath		Asset path of the xml.
+	 * @return	The index, or null if it could not be read.
+	 */
+	public static AtlasIndex load(String xmlPath) {
+		AtlasIndex index = null;
+		// Made at build time.
+		try {
+			index = read(FP.context.getAssets().open(getIndexPath(xmlPath)), 0);
+		} catch (IOException e) {
+			// Not there, the usual case.
+		} catch (RuntimeException e) {
+			Log.e(TAG, "Bad index for " + xmlPath + ": " + e);
+		}
+		if (index != null) {
+			return index;
+		}
+
+		long stamp = getInstallStamp();
+		File cache = getCacheFile(xmlPath);
+		if (cache != null && cache.exists()) {
+			try {
+				index = read(new FileInputStream(cache), stamp);
+			} catch (IOException e) {
+				Log.e(TAG, "Could not read " + cache + ": " + e.getMessage());
+				cache.delete();
+			} catch (RuntimeException e) {
+				// Truncated or corrupt, read the xml and write it again.
+				Log.e(TAG, "Bad cache " + cache + ": " + e);
+				cache.delete();
+			}
+			if (index != null) {
+				return index;
+			}
+		}
+
+		InputStream is = FP.getAsset(xmlPath);
+		if (is == null) {
+			Log.e(TAG, "Could not open " + xmlPath);
+			return null;
+		}
+		try {
+			index = readXML(is);
+		} catch (Exception e) {
+			Log.e(TAG, "Could not parse " + xmlPath + ": " + e.getMessage());
+			return null;
+		} finally {
+			try {
+				is.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+
+		if (cache != null) {
+			// Written aside and renamed into place, so a write cut short is never read.
+			File temp = new File(cache.getPath() + ".tmp");
+			try {
+				cache.getParentFile().mkdirs();
+				index.write(new FileOutputStream(temp), stamp);
+				if (!temp.renameTo(cache)) {
+					throw new IOException("Could not rename " + temp);
+				}
+			} catch (IOException e) {
+				Log.e(TAG, "Could not write " + cache + ": " + e.getMessage());
+				temp.delete();
+			}
+		}
+		return index;
+	}
+
+	/**
+	 * The asset path of the binary index made at build time for an xml file.
+	 */
+	public static String getIndexPath(String xmlPath) {
+		int dot = xmlPath.lastIndexOf('.');
+		if (dot > xmlPath.lastIndexOf('/')) {
+			xmlPath = xmlPath.substring(0, dot);
+		}
+		return xmlPath + EXTENSION;
+	}
+
+	private static File getCacheFile(String xmlPath) {
+		if (FP.context == null || FP.context.getCacheDir() == null) {
+			return null;
+		}
+		return new File(new File(FP.context.getCacheDir(), "atlas"), getIndexPath(xmlPath).replace('/', '_'));
+	}
+
+	// Changes whenever the app is reinstalled or updated, so cached indexes of old assets are not used.
+	private static long getInstallStamp() {
+		try {
+			return FP.context.getPackageManager().getPackageInfo(FP.context.getPackageName(), 0).lastUpdateTime;
+		} catch (Exception e) {
+			return 0;
+		}
+	}
+
+	/**
+	 * Reads a Sparrow atlas xml file with a pull parser.
+	 * @param	is			The xml, not closed.
+	 * @return	The index.
+	 */
+	public static AtlasIndex readXML(InputStream is) throws XmlPullParserException, IOException {
+		XmlPullParser parser = XmlPullParserFactory.newInstance().newPullParser();
+		parser.setInput(is, null);
+
+		AtlasIndex index = new AtlasIndex();
+		Vector<String> names = new Vector<String>();
+		int rects[] = new int[64 * 4];
+
+		int event;
+		while ((event = parser.next()) != XmlPullParser.END_DOCUMENT) {
+			if (event != XmlPullParser.START_TAG) {
+				continue;
+			}
+			String tag = parser.getName();
+			if ("TextureAtlas".equals(tag)) {
+				index.imagePath = parser.getAttributeValue(null, "imagePath");
+				index.format = TextureFormat.parse(parser.getAttributeValue(null, "format"), TextureFormat.RGBA_8888);
+				index.dither = Boolean.parseBoolean(parser.getAttributeValue(null, "dither"));
+			} else if ("SubTexture".equals(tag)) {
+				int i = names.size() * 4;
+				if (i + 4 > rects.length) {
+					int grown[] = new int[rects.length * 2];
+					System.arraycopy(rects, 0, grown, 0, rects.length);
+					rects = grown;
+				}
+				names.add(parser.getAttributeValue(null, "name"));
+				rects[i] = Integer.parseInt(parser.getAttributeValue(null, "x"));
+				rects[i + 1] = Integer.parseInt(parser.getAttributeValue(null, "y"));
+				rects[i + 2] = Integer.parseInt(parser.getAttributeValue(null, "width"));
+				rects[i + 3] = Integer.parseInt(parser.getAttributeValue(null, "height"));
+			}
+		}
+		if (index.imagePath == null) {
+			throw new IOException("No TextureAtlas element");
+		}
+
+		index.names = names.toArray(new String[names.size()]);
+		index.rects = new int[index.names.length * 4];
+		System.arraycopy(rects, 0, index.rects, 0, index.rects.length);
+		return index;
+	}
+
+	/**
+	 * Reads a binary index with one read into memory.
+	 * @param	is			The index, closed afterwards.
+	 * @param	stamp		Install stamp it must have been written with, 0 to accept any.
+	 * @return	The index, or null if it is for a different install.
+	 */
+	public static AtlasIndex read(InputStream is, long stamp) throws IOException {
+		byte data[];
+		try {
+			data = readFully(is);
+		} finally {
+			is.close();
+		}
+		ByteBuffer bb = ByteBuffer.wrap(data);
+		if (bb.getInt() != MAGIC || bb.getInt() != VERSION) {
+			throw new IOException("Not an atlas index");
+		}
+		long written = bb.getLong();
+		if (stamp != 0 && written != stamp) {
+			return null;
+		}
+
+		AtlasIndex index = new AtlasIndex();
+		index.imagePath = readString(bb);
+		index.format = bb.get();
+		index.dither = bb.get() != 0;
+		int count = bb.getInt();
+		index.names = new String[count];
+		for (int i = 0; i < count; i++) {
+			index.names[i] = readString(bb);
+		}
+		index.rects = new int[count * 4];
+		bb.asIntBuffer().get(index.rects);
+		return index;
+	}
+
+	/**
+	 * Writes the binary index.
+	 * @param	os			Where to write, closed afterwards.
+	 * @param	stamp		Install stamp, 0 for an index made at build time.
+	 */
+	public void write(OutputStream os, long stamp) throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(os));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(stamp);
+			out.writeUTF(imagePath);
+			out.writeByte(format);
+			out.writeByte(dither ? 1 : 0);
+			out.writeInt(names.length);
+			for (int i = 0; i < names.length; i++) {
+				out.writeUTF(names[i]);
+			}
+			for (int i = 0; i < rects.length; i++) {
+				out.writeInt(rects[i]);
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	// Matches DataOutputStream.writeUTF for the names used in atlases.
+	private static String readString(ByteBuffer bb) throws IOException {
+		int length = bb.getShort() & 0xffff;
+		String s = new String(bb.array(), bb.position(), length, "UTF-8");
+		bb.position(bb.position() + length);
+		return s;
+	}
+
+	private static byte[] readFully(InputStream is) throws IOException {
+		byte data[] = new byte[Math.max(is.available(), 4096)];
+		int length = 0;
+		int read;
+		while ((read = is.read(data, length, data.length - length)) != -1) {
+			length += read;
+			if (length == data.length) {
+				byte grown[] = new byte[data.length * 2];
+				System.arraycopy(data, 0, grown, 0, length);
+				data = grown;
+			}
+		}
+		if (length == data.length) {
+			return data;
+		}
+		byte trimmed[] = new byte[length];
+		System.arraycopy(data, 0, trimmed, 0, length);
+		return trimmed;
+	}
+}
@@ -0,0 +1,271 @@
+package net.androidpunk.graphics.opengl;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Vector;
+
+import javax.microedition.khronos.opengles.GL10;
+
+import net.androidpunk.FP;
+import net.androidpunk.android.OpenGLSystem;
+import net.androidpunk.android.OpenGLSystem.OpenGLRunnable;
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.Config;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.util.Log;
+
+/**
+ * Packs bitmaps made at runtime into shared atlas pages, so graphics using
+ * them can be drawn in the same batches. Space is found with MaxRects, best
+ * short side fit. When a page is full a new one is started.
+ *
+ * Each page keeps its bitmap so it can be loaded again after the context is
+ * lost, and adding a bitmap only uploads the part of the page that changed.
+ */
+public class AtlasPacker {
+
+	private static final String TAG = "AtlasPacker";
+
+	/**
+	 * Empty pixels around each bitmap, so filtering does not bleed neighbours in.
+	 */
+	public int padding = 1;
+
+	/**
+	 * Fill the padding with the bitmap's edge pixels instead of leaving it clear.
+	 */
+	public boolean extrude = true;
+
+	private final int mPageSize;
+	private final Vector<Page> mPages = new Vector<Page>();
+	private final Map<String, SubTexture> mNamed = new HashMap<String, SubTexture>();
+
+	private final Paint mPaint = new Paint();
+	private final Rect mSrc = new Rect();
+	private final Rect mDst = new Rect();
+
+	private static class Page {
+		public final Bitmap bitmap;
+		public final Canvas canvas;
+		public final Atlas atlas;
+		public final Vector<Rect> free = new Vector<Rect>();
+
+		public Page(int size) {
+			bitmap = Bitmap.createBitmap(size, size, Config.ARGB_8888);
+			canvas = new Canvas(bitmap);
+			atlas = new Atlas(bitmap);
+			free.add(new Rect(0, 0, size, size));
+		}
+
+		/**
+		 * Finds the free rectangle that leaves the shortest side over.
+		 * @return	false if it does not fit.
+		 */
+		public boolean find(int width, int height, Rect out) {
+			int best = Integer.MAX_VALUE;
+			int count = free.size();
+			for (int i = 0; i < count; i++) {
+				Rect f = free.get(i);
+				if (f.width() < width || f.height() < height) {
+					continue;
+				}
+				int shortSide = Math.min(f.width() - width, f.height() - height);
+				if (shortSide < best) {
+					best = shortSide;
+					out.set(f.left, f.top, f.left + width, f.top + height);
+				}
+			}
+			return best != Integer.MAX_VALUE;
+		}
+
+		/**
+		 * Takes a rectangle out of the free space.
+		 */
+		public void place(Rect used) {
+			for (int i = free.size() - 1; i >= 0; i--) {
+				Rect f = free.get(i);
+				if (!Rect.intersects(f, used)) {
+					continue;
+				}
+				free.remove(i);
+				if (used.left > f.left) {
+					free.add(new Rect(f.left, f.top, used.left, f.bottom));
+				}
+				if (used.right < f.right) {
+					free.add(new Rect(used.right, f.top, f.right, f.bottom));
+				}
+				if (used.top > f.top) {
+					free.add(new Rect(f.left, f.top, f.right, used.top));
+				}
+				if (used.bottom < f.bottom) {
+					free.add(new Rect(f.left, used.bottom, f.right, f.bottom));
+				}
+			}
+			// Remove rectangles inside others.
+			for (int i = free.size() - 1; i >= 0; i--) {
+				Rect a = free.get(i);
+				for (int j = free.size() - 1; j >= 0; j--) {
+					if (i != j && free.get(j).contains(a)) {
+						free.remove(i);
+						break;
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Constructor, with 1024x1024 pages.
+	 */
+	public AtlasPacker() {
+		this(1024);
+	}
+
+	/**
+	 * Constructor.
+	 * @param	pageSize	Width and height of each page, rounded up to a power of two.
+	 */
+	public AtlasPacker(int pageSize) {
+		mPageSize = Texture.nextHigher2(pageSize);
+		mPaint.setFilterBitmap(false);
+	}
+
+	/**
+	 * Adds a bitmap.
+	 * @param	bm			The bitmap, copied so it can be recycled afterwards.
+	 * @return	Where it is in the atlas.
+	 */
+	public SubTexture add(Bitmap bm) {
+		return add(null, bm);
+	}
+
+	/**
+	 * Adds a bitmap resource.
+	 * @param	name		Name to find it with getSubTexture(), or null.
+	 * @param	resId		The resource, loaded with FP.getBitmap().
+	 * @return	Where it is in the atlas.
+	 */
+	public SubTexture add(String name, int resId) {
+		return add(name, FP.getBitmap(resId));
+	}
+
+	/**
+	 * Adds a bitmap.
+	 * @param	name		Name to find it with getSubTexture(), or null.
+	 * @param	bm			The bitmap, copied so it can be recycled afterwards.
+	 * @return	Where it is in the atlas.
+	 */
+	public SubTexture add(String name, Bitmap bm) {
+		int w = bm.getWidth();
+		int h = bm.getHeight();
+		int paddedW = w + padding * 2;
+		int paddedH = h + padding * 2;
+
+		Rect used = new Rect();
+		Page page = null;
+		int count = mPages.size();
+		for (int i = 0; i < count; i++) {
+			if (mPages.get(i).find(paddedW, paddedH, used)) {
+				page = mPages.get(i);
+				break;
+			}
+		}
+		if (page == null) {
+			int size = mPageSize;
+			if (paddedW > size || paddedH > size) {
+				size = Texture.nextHigher2(Math.max(paddedW, paddedH));
+				Log.d(TAG, "Bitmap " + w + "x" + h + " gets its own " + size + " page");
+			}
+			page = new Page(size);
+			mPages.add(page);
+			page.find(paddedW, paddedH, used);
+		}
+		page.place(used);
+
+		int x = used.left + padding;
+		int y = used.top + padding;
+		draw(page.canvas, bm, x, y, w, h);
+
+		// Only upload what changed.
+		page.atlas.updateRegion(Bitmap.createBitmap(page.bitmap, used.left, used.top, used.width(), used.height()), used.left, used.top);
+
+		SubTexture st = new SubTexture(page.atlas, x, y, w, h);
+		if (name != null) {
+			mNamed.put(name, st);
+		}
+		return st;
+	}
+
+	private void draw(Canvas canvas, Bitmap bm, int x, int y, int w, int h) {
+		canvas.drawBitmap(bm, x, y, mPaint);
+		int e = extrude ? padding : 0;
+		if (e == 0) {
+			return;
+		}
+		// Edges, stretching a 1 pixel strip over the padding.
+		drawPart(canvas, bm, 0, 0, w, 1, x, y - e, x + w, y);
+		drawPart(canvas, bm, 0, h - 1, w, h, x, y + h, x + w, y + h + e);
+		drawPart(canvas, bm, 0, 0, 1, h, x - e, y, x, y + h);
+		drawPart(canvas, bm, w - 1, 0, w, h, x + w, y, x + w + e, y + h);
+		// Corners.
+		drawPart(canvas, bm, 0, 0, 1, 1, x - e, y - e, x, y);
+		drawPart(canvas, bm, w - 1, 0, w, 1, x + w, y - e, x + w + e, y);
+		drawPart(canvas, bm, 0, h - 1, 1, h, x - e, y + h, x, y + h + e);
+		drawPart(canvas, bm, w - 1, h - 1, w, h, x + w, y + h, x + w + e, y + h + e);
+	}
+
+	private void drawPart(Canvas canvas, Bitmap bm, int sl, int st, int sr, int sb, int dl, int dt, int dr, int db) {
+		mSrc.set(sl, st, sr, sb);
+		mDst.set(dl, dt, dr, db);
+		canvas.drawBitmap(bm, mSrc, mDst, mPaint);
+	}
+
+	/**
+	 * Gets a bitmap added with a name.
+	 * @param	name		The name.
+	 * @return	The SubTexture, or null.
+	 */
+	public SubTexture getSubTexture(String name) {
+		SubTexture st = mNamed.get(name);
+		if (st == null) {
+			Log.e(TAG, "Subtexture '" + name + "' does not exist.");
+		}
+		return st;
+	}
+
+	/**
+	 * Number of pages made so far.
+	 */
+	public int getPageCount() {
+		return mPages.size();
+	}
+
+	/**
+	 * Gets a page's atlas.
+	 */
+	public Atlas getPage(int index) {
+		return mPages.get(index).atlas;
+	}
+
+	/**
+	 * Deletes all pages. SubTextures from this packer can't be drawn afterwards.
+	 */
+	public void dispose() {
+		int count = mPages.size();
+		for (int i = 0; i < count; i++) {
+			final Page page = mPages.get(i);
+			page.atlas.dispose();
+			// After anything already queued has read it.
+			OpenGLSystem.postRunnable(new OpenGLRunnable() {
+				@Override
+				public void run(GL10 gl) {
+					page.bitmap.recycle();
+				}
+			});
+		}
+		mPages.clear();
+		mNamed.clear();
+	}
+}
@@ -0,0 +1,160 @@
+package net.androidpunk.graphics.opengl;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Vector;
+
+import android.util.Log;
+
+/**
+ * Records which SubTextures are drawn in the same frames during a play
+ * session. Saved profiles are read by net.androidpunk.tools.AtlasRepacker,
+ * a desktop tool kept out of the library in tools/src, which repacks
+ * atlases so SubTextures drawn together share a page and need fewer
+ * texture switches.
+ *
+ * Only SubTextures loaded from an atlas xml file are recorded. Turn it on
+ * with enabled, play, then save() the profile and pull it off the device.
+ */
+public class AtlasProfiler {
+
+	private static final String TAG = "AtlasProfiler";
+
+	/**
+	 * Record draws. Costs nothing much when off.
+	 */
+	public static boolean enabled = false;
+
+	// Every SubTexture seen, indexed by id.
+	private static final Vector<SubTexture> mSubTextures = new Vector<SubTexture>();
+	private static int mDrawnFrames[] = new int[64];
+
+	// Ids drawn this frame, and the frame each id was last added in.
+	private static int mFrameIds[] = new int[64];
+	private static int mFrameIdCount = 0;
+	private static int mLastFrame[] = new int[64];
+
+	// Frames drawn together, by pair of ids.
+	private static final Map<Long, int[]> mPairs = new HashMap<Long, int[]>();
+	private static int mFrame = 1;
+
+	/**
+	 * Records that a SubTexture was drawn this frame. Graphics call it when they render.
+	 * @param	subTexture	The SubTexture, may be null.
+	 */
+	public static void record(SubTexture subTexture) {
+		if (!enabled || subTexture == null || subTexture.getName() == null) {
+			return;
+		}
+		Texture t = subTexture.getTexture();
+		if (!(t instanceof Atlas) || ((Atlas)t).getXmlPath() == null) {
+			return;
+		}
+		int id = subTexture.mProfileId;
+		if (id < 0) {
+			id = mSubTextures.size();
+			subTexture.mProfileId = id;
+			mSubTextures.add(subTexture);
+			if (id >= mLastFrame.length) {
+				mLastFrame = grow(mLastFrame);
+				mDrawnFrames = grow(mDrawnFrames);
+			}
+		}
+		if (mLastFrame[id] == mFrame) {
+			return;
+		}
+		mLastFrame[id] = mFrame;
+		if (mFrameIdCount == mFrameIds.length) {
+			mFrameIds = grow(mFrameIds);
+		}
+		mFrameIds[mFrameIdCount++] = id;
+	}
+
+	/**
+	 * Adds this frame's draws to the profile. Call once at the end of each frame.
+	 */
+	public static void endFrame() {
+		if (mFrameIdCount == 0) {
+			return;
+		}
+		int ids[] = mFrameIds;
+		int count = mFrameIdCount;
+		for (int i = 0; i < count; i++) {
+			mDrawnFrames[ids[i]]++;
+			for (int j = i + 1; j < count; j++) {
+				Long key = pairKey(ids[i], ids[j]);
+				int pair[] = mPairs.get(key);
+				if (pair == null) {
+					mPairs.put(key, new int[] { 1 });
+				} else {
+					pair[0]++;
+				}
+			}
+		}
+		mFrameIdCount = 0;
+		mFrame++;
+	}
+
+	/**
+	 * Forgets everything recorded.
+	 */
+	public static void reset() {
+		for (int i = 0; i < mSubTextures.size(); i++) {
+			mSubTextures.get(i).mProfileId = -1;
+		}
+		mSubTextures.clear();
+		mPairs.clear();
+		mDrawnFrames = new int[64];
+		mLastFrame = new int[64];
+		mFrameIdCount = 0;
+		mFrame = 1;
+	}
+
+	/**
+	 * Writes the profile as text, for AtlasRepacker.
+	 * @param	file		Where to write, eg. in getExternalFilesDir().
+	 * @return	false if it could not be written.
+	 */
+	public static boolean save(File file) {
+		BufferedWriter out = null;
+		try {
+			out = new BufferedWriter(new FileWriter(file));
+			out.write("frames\t" + (mFrame - 1) + "\n");
+			int count = mSubTextures.size();
+			for (int i = 0; i < count; i++) {
+				SubTexture st = mSubTextures.get(i);
+				out.write("S\t" + i + "\t" + ((Atlas)st.getTexture()).getXmlPath() + "\t" + st.getName() + "\t" + mDrawnFrames[i] + "\n");
+			}
+			for (Map.Entry<Long, int[]> e : mPairs.entrySet()) {
+				long key = e.getKey();
+				out.write("P\t" + (int)(key >>> 32) + "\t" + (int)key + "\t" + e.getValue()[0] + "\n");
+			}
+			return true;
+		} catch (IOException e) {
+			Log.e(TAG, "Could not save profile to " + file + ": " + e.getMessage());
+			return false;
+		} finally {
+			if (out != null) {
+				try {
+					out.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+
+	private static Long pairKey(int a, int b) {
+		return a < b ? ((long)a << 32) | b : ((long)b << 32) | a;
+	}
+
+	private static int[] grow(int a[]) {
+		int grown[] = new int[a.length * 2];
+		System.arraycopy(a, 0, grown, 0, a.length);
+		return grown;
+	}
+}
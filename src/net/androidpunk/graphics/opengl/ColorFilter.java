@@ -2,6 +2,8 @@ package net.androidpunk.graphics.opengl;
 
 import javax.microedition.khronos.opengles.GL10;
 
+import net.androidpunk.android.OpenGLSystem;
+
 import android.graphics.Color;
 
 public class ColorFilter {
@@ -29,6 +31,6 @@ public class ColorFilter {
 	}
 	
 	public void applyColorFilter(GL10 gl) {
-		gl.glColor4f(red, green, blue, alpha);
+		OpenGLSystem.setColor(gl, red, green, blue, alpha);
 	}
 }
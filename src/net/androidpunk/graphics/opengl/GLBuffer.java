@@ -0,0 +1,215 @@
+package net.androidpunk.graphics.opengl;
+
+import java.nio.Buffer;
+import java.nio.CharBuffer;
+import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
+
+import javax.microedition.khronos.opengles.GL10;
+import javax.microedition.khronos.opengles.GL11;
+
+import net.androidpunk.FP;
+import net.androidpunk.android.OpenGLSystem;
+import android.util.Log;
+
+/**
+ * Geometry that rarely changes, kept in a vertex buffer object when the device
+ * supports them and drawn from the client side buffer when it doesn't.
+ * The client side buffer is always the master copy: change it, mark the
+ * changed range dirty and only that range is uploaded the next time it is drawn.
+ * Buffers are recreated automatically after the GL context is lost.
+ */
+public class GLBuffer {
+
+	private static final String TAG = "GLBuffer";
+
+	/**
+	 * Target for vertex and texture coordinates.
+	 */
+	public static final int ARRAY_BUFFER = GL11.GL_ARRAY_BUFFER;
+
+	/**
+	 * Target for indices.
+	 */
+	public static final int ELEMENT_ARRAY_BUFFER = GL11.GL_ELEMENT_ARRAY_BUFFER;
+
+	private final int mTarget;
+	private final Buffer mData;
+	private final int mCount;
+	private final int mElementSize;
+
+	// VBO information.
+	private int mName = 0;
+	private int mContext = -1;
+	private int mDirtyStart;
+	private int mDirtyEnd;
+
+	private final int mNames[] = new int[1];
+
+	/**
+	 * Constructor.
+	 * @param	target		ARRAY_BUFFER or ELEMENT_ARRAY_BUFFER.
+	 * @param	data		Direct buffer holding the geometry.
+	 * @param	count		How many floats of data are used.
+	 */
+	public GLBuffer(int target, FloatBuffer data, int count) {
+		this(target, data, count, 4);
+	}
+
+	/**
+	 * Constructor.
+	 * @param	target		ARRAY_BUFFER or ELEMENT_ARRAY_BUFFER.
+	 * @param	data		Direct buffer holding the geometry.
+	 * @param	count		How many chars of data are used.
+	 */
+	public GLBuffer(int target, CharBuffer data, int count) {
+		this(target, data, count, 2);
+	}
+
+	/**
+	 * Constructor.
+	 * @param	target		ARRAY_BUFFER or ELEMENT_ARRAY_BUFFER.
+	 * @param	data		Direct buffer holding the geometry.
+	 * @param	count		How many shorts of data are used.
+	 */
+	public GLBuffer(int target, ShortBuffer data, int count) {
+		this(target, data, count, 2);
+	}
+
+	private GLBuffer(int target, Buffer data, int count, int elementSize) {
+		mTarget = target;
+		mData = data;
+		mCount = count;
+		mElementSize = elementSize;
+		markDirty();
+	}
+
+	/**
+	 * If buffer objects can be used on this device.
+	 */
+	public static boolean isSupported(GL10 gl) {
+		return FP.supportsVBOs && gl instanceof GL11;
+	}
+
+	/**
+	 * Marks the whole buffer as changed.
+	 */
+	public void markDirty() {
+		mDirtyStart = 0;
+		mDirtyEnd = mCount;
+	}
+
+	/**
+	 * Marks a range of the buffer as changed.
+	 * @param	start		First changed element.
+	 * @param	end			One past the last changed element.
+	 */
+	public void markDirty(int start, int end) {
+		if (mDirtyStart >= mDirtyEnd) {
+			mDirtyStart = start;
+			mDirtyEnd = end;
+		} else {
+			mDirtyStart = Math.min(mDirtyStart, start);
+			mDirtyEnd = Math.max(mDirtyEnd, end);
+		}
+	}
+
+	/**
+	 * The client side buffer.
+	 */
+	public Buffer getData() { return mData; }
+
+	/**
+	 * Binds the buffer object, creating and uploading it first if needed.
+	 * @return	false if buffer objects are not available and the client side buffer must be used.
+	 */
+	private boolean bind(GL10 gl) {
+		if (!isSupported(gl)) {
+			return false;
+		}
+		GL11 gl11 = (GL11)gl;
+		int context = OpenGLSystem.getContextGeneration();
+		if (mContext != context) {
+			// First use or the context was lost, the old name is meaningless now.
+			gl11.glGenBuffers(1, mNames, 0);
+			mName = mNames[0];
+			mContext = context;
+			if (mName == 0) {
+				Log.e(TAG, "Could not create buffer object");
+				mContext = -1;
+				return false;
+			}
+			gl11.glBindBuffer(mTarget, mName);
+			mData.position(0);
+			gl11.glBufferData(mTarget, mCount * mElementSize, mData, GL11.GL_STATIC_DRAW);
+			mDirtyStart = mDirtyEnd = 0;
+			return true;
+		}
+		gl11.glBindBuffer(mTarget, mName);
+		if (mDirtyStart < mDirtyEnd) {
+			mData.position(mDirtyStart);
+			gl11.glBufferSubData(mTarget, mDirtyStart * mElementSize, (mDirtyEnd - mDirtyStart) * mElementSize, mData);
+			mData.position(0);
+			mDirtyStart = mDirtyEnd = 0;
+		}
+		return true;
+	}
+
+	/**
+	 * Sets the vertex pointer to this buffer.
+	 * @param	gl			The GL context.
+	 * @param	size		Floats per vertex.
+	 */
+	public void setVertexPointer(GL10 gl, int size) {
+		if (bind(gl)) {
+			((GL11)gl).glVertexPointer(size, GL10.GL_FLOAT, 0, 0);
+			((GL11)gl).glBindBuffer(mTarget, 0);
+		} else {
+			gl.glVertexPointer(size, GL10.GL_FLOAT, 0, mData);
+		}
+	}
+
+	/**
+	 * Sets the texture coordinate pointer to this buffer.
+	 * @param	gl			The GL context.
+	 * @param	size		Floats per vertex.
+	 */
+	public void setTexCoordPointer(GL10 gl, int size) {
+		if (bind(gl)) {
+			((GL11)gl).glTexCoordPointer(size, GL10.GL_FLOAT, 0, 0);
+			((GL11)gl).glBindBuffer(mTarget, 0);
+		} else {
+			gl.glTexCoordPointer(size, GL10.GL_FLOAT, 0, mData);
+		}
+	}
+
+	/**
+	 * Draws indexed triangles using this buffer as the indices.
+	 * @param	gl			The GL context.
+	 * @param	first		First index to draw.
+	 * @param	count		How many indices to draw.
+	 */
+	public void drawElements(GL10 gl, int first, int count) {
+		if (bind(gl)) {
+			((GL11)gl).glDrawElements(GL10.GL_TRIANGLES, count, GL10.GL_UNSIGNED_SHORT, first * mElementSize);
+			((GL11)gl).glBindBuffer(mTarget, 0);
+		} else {
+			mData.position(first);
+			gl.glDrawElements(GL10.GL_TRIANGLES, count, GL10.GL_UNSIGNED_SHORT, mData);
+			mData.position(0);
+		}
+	}
+
+	/**
+	 * Deletes the buffer object, the client side buffer is kept.
+	 * Call on the GL thread.
+	 */
+	public void release(GL10 gl) {
+		if (mContext == OpenGLSystem.getContextGeneration() && mName != 0) {
+			mNames[0] = mName;
+			((GL11)gl).glDeleteBuffers(1, mNames, 0);
+		}
+		mName = 0;
+		mContext = -1;
+	}
+}
@@ -10,6 +10,7 @@ import javax.microedition.khronos.opengles.GL10;
 
 import net.androidpunk.FP;
 import net.androidpunk.Graphic;
+import net.androidpunk.android.OpenGLSystem;
 import android.graphics.Color;
 import android.graphics.Point;
 import android.graphics.Rect;
@@ -72,10 +73,18 @@ public class GLGraphic extends Graphic {
 		return ByteBuffer.allocateDirect(numFloats * Float.SIZE).order(ByteOrder.nativeOrder()).asFloatBuffer();
 	}
 
+	/**
+	 * Sets the vertex and texture coordinate pointers. With a texture buffer the
+	 * texture coordinate array is enabled and the color array disabled, shapes
+	 * may have left them the other way round.
+	 */
 	public static void setBuffers(GL10 gl, FloatBuffer vertexBuffer, FloatBuffer textureBuffer) {
 		//gl.glEnable(GL10.GL_TEXTURE_2D);
-		if (textureBuffer != null) 
+		if (textureBuffer != null) {
+			OpenGLSystem.enableClientState(gl, GL10.GL_TEXTURE_COORD_ARRAY);
+			OpenGLSystem.disableClientState(gl, GL10.GL_COLOR_ARRAY);
 			gl.glTexCoordPointer(2, GL10.GL_FLOAT, 0, textureBuffer);
+		}
 		
 		gl.glVertexPointer(2, GL10.GL_FLOAT, 0, vertexBuffer);
 	}
@@ -148,19 +157,30 @@ public class GLGraphic extends Graphic {
 		gl.glTranslatef(-originX, -originY, 0.0f);
 	}
 	
+	/**
+	 * Sets the SpriteBatch transform and color to match setMatrix() and applyColor().
+	 */
+	protected void setBatchTransform() {
+		float sX = scaleX * scale * FP.scale;
+		float sY = scaleY * scale * FP.scale;
+		SpriteBatch.setTransform((originX * Math.abs(sX)) + mPoint.x * Math.abs(FP.scale), (originY * Math.abs(sY)) + mPoint.y * Math.abs(FP.scale), originX, originY, sX, sY, angle);
+		SpriteBatch.setColor(mColor);
+	}
+	
 	public void applyColor(GL10 gl) {
 		float red = Color.red(mColor) / 255f;
 		float green = Color.green(mColor) / 255f;
 		float blue = Color.blue(mColor) / 255f;
 		float alpha = Color.alpha(mColor) / 255f;
 		
-		gl.glColor4f(red, green, blue, alpha);
+		OpenGLSystem.setColor(gl, red, green, blue, alpha);
 	}
 	
 	/**
 	 * Sets the color filter and loads the texture if it is not already loaded.
 	 */
 	public void render(GL10 gl, Point point, Point camera) {
+		SpriteBatch.flush(gl);
 		applyColor(gl);
 		
 		mPoint.x = (int)(point.x + x - camera.x * scrollX);
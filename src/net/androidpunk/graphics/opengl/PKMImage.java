@@ -0,0 +1,256 @@
+package net.androidpunk.graphics.opengl;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * An ETC1 compressed image in the PKM container made by etc1tool. Only uses
+ * plain Java so it can be read and decoded away from the device.
+ *
+ * Images with transparency are stored as two files, the colors in name.pkm
+ * and the alpha in the red channel of name_alpha.pkm.
+ */
+public class PKMImage {
+
+	private static final String TAG = "PKMImage";
+
+	/**
+	 * Size of the PKM header in bytes.
+	 */
+	public static final int HEADER_SIZE = 16;
+
+	/**
+	 * ETC1 format id in the header, the only one PKM version 1.0 has.
+	 */
+	public static final int ETC1_RGB_NO_MIPMAPS = 0;
+
+	/**
+	 * Width of the image data, a multiple of 4.
+	 */
+	public final int paddedWidth;
+
+	/**
+	 * Height of the image data, a multiple of 4.
+	 */
+	public final int paddedHeight;
+
+	/**
+	 * Width of the original image.
+	 */
+	public final int width;
+
+	/**
+	 * Height of the original image.
+	 */
+	public final int height;
+
+	// 8 bytes per 4x4 block, blocks row by row.
+	private final byte mData[];
+	private ByteBuffer mBuffer;
+
+	// Modifier tables, indexed by table codeword then pixel index.
+	private static final int MODIFIERS[][] = {
+		{ 2, 8, -2, -8 },
+		{ 5, 17, -5, -17 },
+		{ 9, 29, -9, -29 },
+		{ 13, 42, -13, -42 },
+		{ 18, 60, -18, -60 },
+		{ 24, 80, -24, -80 },
+		{ 33, 106, -33, -106 },
+		{ 47, 183, -47, -183 },
+	};
+
+	/**
+	 * Constructor.
+	 * @param	paddedWidth		Width of the data, a multiple of 4.
+	 * @param	paddedHeight	Height of the data, a multiple of 4.
+	 * @param	width			Original width.
+	 * @param	height			Original height.
+	 * @param	data			ETC1 blocks.
+	 */
+	public PKMImage(int paddedWidth, int paddedHeight, int width, int height, byte data[]) {
+		this.paddedWidth = paddedWidth;
+		this.paddedHeight = paddedHeight;
+		this.width = width;
+		this.height = height;
+		mData = data;
+	}
+
+	/**
+	 * If the path names a PKM file.
+	 */
+	public static boolean isPKM(String path) {
+		return path != null && path.toLowerCase().endsWith(".pkm");
+	}
+
+	/**
+	 * The path of the alpha side channel for a PKM file, name.pkm becomes name_alpha.pkm.
+	 */
+	public static String getAlphaPath(String path) {
+		return path.substring(0, path.length() - 4) + "_alpha.pkm";
+	}
+
+	/**
+	 * Reads only the header.
+	 * @param	is			Stream at the start of the file, not closed.
+	 * @param	into		Gets paddedWidth, paddedHeight, width, height.
+	 */
+	public static void readHeader(InputStream is, int into[]) throws IOException {
+		byte header[] = new byte[HEADER_SIZE];
+		new DataInputStream(is).readFully(header);
+		if (header[0] != 'P' || header[1] != 'K' || header[2] != 'M' || header[3] != ' ') {
+			throw new IOException("Not a PKM file");
+		}
+		if (header[4] != '1' || header[5] != '0') {
+			throw new IOException("Unsupported PKM version");
+		}
+		if (readShort(header, 6) != ETC1_RGB_NO_MIPMAPS) {
+			throw new IOException("Unsupported PKM format " + readShort(header, 6));
+		}
+		into[0] = readShort(header, 8);
+		into[1] = readShort(header, 10);
+		into[2] = readShort(header, 12);
+		into[3] = readShort(header, 14);
+		if ((into[0] & 3) != 0 || (into[1] & 3) != 0 || into[2] > into[0] || into[3] > into[1]) {
+			throw new IOException("Corrupt PKM header");
+		}
+	}
+
+	/**
+	 * Reads a PKM file.
+	 * @param	is			Stream at the start of the file, not closed.
+	 * @return	The image.
+	 */
+	public static PKMImage read(InputStream is) throws IOException {
+		int size[] = new int[4];
+		readHeader(is, size);
+		byte data[] = new byte[getDataSize(size[0], size[1])];
+		new DataInputStream(is).readFully(data);
+		return new PKMImage(size[0], size[1], size[2], size[3], data);
+	}
+
+	private static int readShort(byte b[], int offset) {
+		// Big endian.
+		return ((b[offset] & 0xff) << 8) | (b[offset + 1] & 0xff);
+	}
+
+	/**
+	 * Bytes of ETC1 data for an image.
+	 */
+	public static int getDataSize(int paddedWidth, int paddedHeight) {
+		return (paddedWidth / 4) * (paddedHeight / 4) * 8;
+	}
+
+	/**
+	 * Bytes of ETC1 data.
+	 */
+	public int getDataSize() {
+		return mData.length;
+	}
+
+	/**
+	 * The ETC1 data in a direct buffer, for glCompressedTexImage2D.
+	 */
+	public ByteBuffer getBuffer() {
+		if (mBuffer == null) {
+			mBuffer = ByteBuffer.allocateDirect(mData.length).order(ByteOrder.nativeOrder());
+			mBuffer.put(mData).position(0);
+		}
+		return mBuffer;
+	}
+
+	/**
+	 * Decodes to ARGB pixels, paddedWidth * paddedHeight of them row by row.
+	 * @param	pixels		Where to decode to.
+	 * @param	alpha		Image whose red channel is the alpha, same size, or null for opaque.
+	 */
+	public void decode(int pixels[], PKMImage alpha) {
+		if (alpha != null && (alpha.paddedWidth != paddedWidth || alpha.paddedHeight != paddedHeight)) {
+			throw new IllegalArgumentException("Alpha image is a different size");
+		}
+		int block[] = new int[16];
+		int alphaBlock[] = alpha != null ? new int[16] : null;
+		int blocksWide = paddedWidth / 4;
+		int blocksHigh = paddedHeight / 4;
+		for (int by = 0; by < blocksHigh; by++) {
+			for (int bx = 0; bx < blocksWide; bx++) {
+				int offset = (by * blocksWide + bx) * 8;
+				decodeBlock(mData, offset, block);
+				if (alpha != null) {
+					decodeBlock(alpha.mData, offset, alphaBlock);
+				}
+				for (int y = 0; y < 4; y++) {
+					int row = (by * 4 + y) * paddedWidth + bx * 4;
+					for (int x = 0; x < 4; x++) {
+						int a = alpha != null ? (alphaBlock[y * 4 + x] >> 16) & 0xff : 0xff;
+						pixels[row + x] = (a << 24) | (block[y * 4 + x] & 0xffffff);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Decodes one 4x4 block.
+	 * @param	data		ETC1 data.
+	 * @param	offset		Offset of the block's 8 bytes.
+	 * @param	out			16 opaque RGB pixels, row by row.
+	 */
+	public static void decodeBlock(byte data[], int offset, int out[]) {
+		int high = ((data[offset] & 0xff) << 24) | ((data[offset + 1] & 0xff) << 16) | ((data[offset + 2] & 0xff) << 8) | (data[offset + 3] & 0xff);
+		int low = ((data[offset + 4] & 0xff) << 24) | ((data[offset + 5] & 0xff) << 16) | ((data[offset + 6] & 0xff) << 8) | (data[offset + 7] & 0xff);
+
+		boolean diff = (high & 2) != 0;
+		boolean flip = (high & 1) != 0;
+		int r1, g1, b1, r2, g2, b2;
+		if (diff) {
+			int r = (high >>> 27) & 0x1f;
+			int g = (high >>> 19) & 0x1f;
+			int b = (high >>> 11) & 0x1f;
+			int r5 = r + signed3((high >>> 24) & 7);
+			int g5 = g + signed3((high >>> 16) & 7);
+			int b5 = b + signed3((high >>> 8) & 7);
+			r1 = extend5(r); g1 = extend5(g); b1 = extend5(b);
+			r2 = extend5(r5 & 0x1f); g2 = extend5(g5 & 0x1f); b2 = extend5(b5 & 0x1f);
+		} else {
+			r1 = extend4((high >>> 28) & 0xf); r2 = extend4((high >>> 24) & 0xf);
+			g1 = extend4((high >>> 20) & 0xf); g2 = extend4((high >>> 16) & 0xf);
+			b1 = extend4((high >>> 12) & 0xf); b2 = extend4((high >>> 8) & 0xf);
+		}
+		int table1[] = MODIFIERS[(high >>> 5) & 7];
+		int table2[] = MODIFIERS[(high >>> 2) & 7];
+
+		for (int x = 0; x < 4; x++) {
+			for (int y = 0; y < 4; y++) {
+				// Pixel indices run down the columns.
+				int i = x * 4 + y;
+				int index = (((low >>> (16 + i)) & 1) << 1) | ((low >>> i) & 1);
+				boolean second = flip ? y >= 2 : x >= 2;
+				int m = second ? table2[index] : table1[index];
+				int r = clamp((second ? r2 : r1) + m);
+				int g = clamp((second ? g2 : g1) + m);
+				int b = clamp((second ? b2 : b1) + m);
+				out[y * 4 + x] = 0xff000000 | (r << 16) | (g << 8) | b;
+			}
+		}
+	}
+
+	private static int signed3(int v) {
+		return (v & 4) != 0 ? v - 8 : v;
+	}
+
+	private static int extend4(int v) {
+		return (v << 4) | v;
+	}
+
+	private static int extend5(int v) {
+		return (v << 3) | (v >> 2);
+	}
+
+	private static int clamp(int v) {
+		return v < 0 ? 0 : (v > 255 ? 255 : v);
+	}
+}
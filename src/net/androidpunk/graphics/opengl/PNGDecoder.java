@@ -0,0 +1,433 @@
+package net.androidpunk.graphics.opengl;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Decodes PNG images a row at a time straight into a direct buffer in an
+ * upload format, so no Bitmap is made and the only full size copy of the
+ * pixels is the one handed to glTexImage2D. Only uses plain Java so it can
+ * be run away from the device. The exception is AUTO on an image with alpha,
+ * which holds the ARGB pixels until it has seen every alpha level, the same
+ * as TextureFormat.choose does with a Bitmap's pixels.
+ *
+ * Handles every non-interlaced PNG: grey, RGB, palette, grey with alpha and
+ * RGBA, 1 to 16 bits per channel, with tRNS transparency. Interlaced images
+ * throw an IOException, decode those with BitmapFactory.
+ */
+public class PNGDecoder {
+
+	private static final byte SIGNATURE[] = { (byte)0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n' };
+
+	private static final int IHDR = 0x49484452;
+	private static final int PLTE = 0x504c5445;
+	private static final int TRNS = 0x74524e53;
+	private static final int IDAT = 0x49444154;
+	private static final int IEND = 0x49454e44;
+
+	private static final int COLOR_GREY = 0;
+	private static final int COLOR_RGB = 2;
+	private static final int COLOR_PALETTE = 3;
+	private static final int COLOR_GREY_ALPHA = 4;
+	private static final int COLOR_RGBA = 6;
+
+	private final DataInputStream mIn;
+	private final int mWidth, mHeight;
+	private final int mBitDepth, mColorType;
+
+	// Palette as ARGB, and tRNS for grey and RGB images.
+	private int mPalette[];
+	private int mTransparent = -1;
+	private boolean mTransparency = false;
+
+	// Chunk being read.
+	private int mChunkType;
+	private int mChunkLeft;
+
+	// Format the last decode() packed in.
+	private int mFormat = TextureFormat.AUTO;
+
+	/**
+	 * Reads the header.
+	 * @param	is			The PNG, not closed. Buffer it if it is a file.
+	 */
+	public PNGDecoder(InputStream is) throws IOException {
+		mIn = new DataInputStream(is);
+		byte signature[] = new byte[8];
+		mIn.readFully(signature);
+		for (int i = 0; i < 8; i++) {
+			if (signature[i] != SIGNATURE[i]) {
+				throw new IOException("Not a PNG file");
+			}
+		}
+		nextChunk();
+		if (mChunkType != IHDR || mChunkLeft != 13) {
+			throw new IOException("No IHDR");
+		}
+		mWidth = mIn.readInt();
+		mHeight = mIn.readInt();
+		mBitDepth = mIn.readUnsignedByte();
+		mColorType = mIn.readUnsignedByte();
+		int compression = mIn.readUnsignedByte();
+		int filter = mIn.readUnsignedByte();
+		int interlace = mIn.readUnsignedByte();
+		mChunkLeft = 0;
+		if (compression != 0 || filter != 0) {
+			throw new IOException("Unknown compression or filter");
+		}
+		if (interlace != 0) {
+			throw new IOException("Interlaced PNGs are not supported");
+		}
+		if (mWidth <= 0 || mHeight <= 0 || getChannels() == 0) {
+			throw new IOException("Unsupported PNG " + mWidth + "x" + mHeight + " type " + mColorType + " depth " + mBitDepth);
+		}
+		// Read up to the image data, picking up the palette and transparency.
+		while (true) {
+			nextChunk();
+			if (mChunkType == IDAT) {
+				break;
+			} else if (mChunkType == PLTE) {
+				readPalette();
+			} else if (mChunkType == TRNS) {
+				readTransparency();
+			} else if (mChunkType == IEND) {
+				throw new IOException("No image data");
+			}
+		}
+		if (mColorType == COLOR_PALETTE && mPalette == null) {
+			throw new IOException("No palette");
+		}
+	}
+
+	public int getWidth() { return mWidth; }
+
+	public int getHeight() { return mHeight; }
+
+	/**
+	 * If the image can have transparent pixels.
+	 */
+	public boolean hasAlpha() {
+		return mColorType == COLOR_GREY_ALPHA || mColorType == COLOR_RGBA || mTransparency;
+	}
+
+	/**
+	 * Bytes decode() needs for a format, for AUTO the most it can need.
+	 * @param	format		A TextureFormat.
+	 * @param	sampleSize	Only every sampleSize-th pixel of each row and column is kept.
+	 */
+	public int getBufferSize(int format, int sampleSize) {
+		return getSampled(mWidth, sampleSize) * getSampled(mHeight, sampleSize) * TextureFormat.getBytesPerPixel(format);
+	}
+
+	private static int getSampled(int size, int sampleSize) {
+		return (size + sampleSize - 1) / sampleSize;
+	}
+
+	/**
+	 * Decodes the image. Call once.
+	 * @param	reuse		A direct buffer to decode into if it is big enough, or null.
+	 * @param	format		A TextureFormat. AUTO picks the same format TextureFormat.choose would, see getFormat().
+	 * @param	premultiply	Multiply the colors by alpha, the same as a Bitmap.
+	 * @param	dither		Dither when reducing to 16 bits.
+	 * @param	sampleSize	Keep every sampleSize-th pixel, like BitmapFactory.Options.inSampleSize.
+	 * @return	The buffer holding the pixels, from position 0 to its limit.
+	 */
+	public ByteBuffer decode(ByteBuffer reuse, int format, boolean premultiply, boolean dither, int sampleSize) throws IOException {
+		format = chooseFormat(format);
+		sampleSize = Math.max(1, sampleSize);
+		int outWidth = getSampled(mWidth, sampleSize);
+		int outHeight = getSampled(mHeight, sampleSize);
+		// AUTO with alpha needs every alpha level before it can pack, so keep all the rows.
+		int all[] = format == TextureFormat.AUTO ? new int[outWidth * outHeight] : null;
+		ByteBuffer out = all == null ? prepare(reuse, format, sampleSize) : null;
+
+		int bitsPerPixel = getChannels() * mBitDepth;
+		int rowBytes = (mWidth * bitsPerPixel + 7) / 8;
+		int bpp = Math.max(1, bitsPerPixel / 8);
+		byte row[] = new byte[rowBytes + 1];
+		byte prev[] = new byte[rowBytes + 1];
+		int pixels[] = new int[mWidth];
+
+		Inflater inflater = new Inflater();
+		byte input[] = new byte[4096];
+		try {
+			for (int y = 0; y < mHeight; y++) {
+				inflateFully(inflater, input, row);
+				unfilter(row, prev, rowBytes, bpp);
+				if (y % sampleSize == 0) {
+					toARGB(row, pixels);
+					if (sampleSize > 1) {
+						for (int x = 0; x < outWidth; x++) {
+							pixels[x] = pixels[x * sampleSize];
+						}
+					}
+					if (all != null) {
+						System.arraycopy(pixels, 0, all, y / sampleSize * outWidth, outWidth);
+					} else {
+						TextureFormat.packRow(pixels, 0, outWidth, y / sampleSize, format, dither, premultiply, out);
+					}
+				}
+				byte swap[] = prev;
+				prev = row;
+				row = swap;
+			}
+		} catch (DataFormatException e) {
+			throw new IOException("Corrupt image data: " + e.getMessage());
+		} finally {
+			inflater.end();
+		}
+		if (all != null) {
+			format = TextureFormat.choose(all, TextureFormat.AUTO);
+			out = prepare(reuse, format, sampleSize);
+			for (int y = 0; y < outHeight; y++) {
+				TextureFormat.packRow(all, y * outWidth, outWidth, y, format, dither, premultiply, out);
+			}
+		}
+		mFormat = format;
+		out.position(0);
+		return out;
+	}
+
+	/** @private Returns reuse if it fits, else a new buffer, limited to the size of the pixels. */
+	private ByteBuffer prepare(ByteBuffer reuse, int format, int sampleSize) {
+		int size = getBufferSize(format, sampleSize);
+		ByteBuffer out = reuse;
+		if (out == null || !out.isDirect() || out.capacity() < size) {
+			out = ByteBuffer.allocateDirect(size);
+		}
+		out.clear();
+		out.order(ByteOrder.nativeOrder());
+		out.limit(size);
+		return out;
+	}
+
+	/**
+	 * The format decode() uses, as far as the header tells. Images without
+	 * alpha resolve AUTO to RGB_565. Images with alpha stay AUTO, decode()
+	 * then scans their alpha like TextureFormat.choose, so an opaque RGBA
+	 * image still becomes RGB_565 and one with few alpha levels RGBA_4444.
+	 */
+	public int chooseFormat(int format) {
+		if (format != TextureFormat.AUTO || hasAlpha()) {
+			return format;
+		}
+		return TextureFormat.RGB_565;
+	}
+
+	/**
+	 * The format the last decode() packed in, never AUTO once decoded.
+	 */
+	public int getFormat() {
+		return mFormat;
+	}
+
+	private int getChannels() {
+		switch (mColorType) {
+		case COLOR_GREY:
+			return mBitDepth <= 16 ? 1 : 0;
+		case COLOR_PALETTE:
+			return mBitDepth <= 8 ? 1 : 0;
+		case COLOR_GREY_ALPHA:
+			return mBitDepth >= 8 ? 2 : 0;
+		case COLOR_RGB:
+			return mBitDepth >= 8 ? 3 : 0;
+		case COLOR_RGBA:
+			return mBitDepth >= 8 ? 4 : 0;
+		}
+		return 0;
+	}
+
+	/** @private Skips the rest of the current chunk and its CRC, then reads the next chunk's header. */
+	private void nextChunk() throws IOException {
+		skip(mChunkLeft + (mChunkType != 0 ? 4 : 0));
+		mChunkLeft = mIn.readInt();
+		mChunkType = mIn.readInt();
+	}
+
+	private void skip(int bytes) throws IOException {
+		while (bytes > 0) {
+			int skipped = (int)mIn.skip(bytes);
+			if (skipped <= 0) {
+				mIn.readByte();
+				skipped = 1;
+			}
+			bytes -= skipped;
+		}
+	}
+
+	private void readPalette() throws IOException {
+		int count = mChunkLeft / 3;
+		mPalette = new int[256];
+		for (int i = 0; i < count; i++) {
+			int r = mIn.readUnsignedByte();
+			int g = mIn.readUnsignedByte();
+			int b = mIn.readUnsignedByte();
+			mPalette[i] = 0xff000000 | (r << 16) | (g << 8) | b;
+		}
+		mChunkLeft -= count * 3;
+	}
+
+	private void readTransparency() throws IOException {
+		mTransparency = true;
+		if (mColorType == COLOR_PALETTE) {
+			if (mPalette == null) {
+				throw new IOException("tRNS before PLTE");
+			}
+			int count = Math.min(mChunkLeft, 256);
+			for (int i = 0; i < count; i++) {
+				mPalette[i] = (mIn.readUnsignedByte() << 24) | (mPalette[i] & 0xffffff);
+			}
+			mChunkLeft -= count;
+		} else if (mColorType == COLOR_GREY && mChunkLeft >= 2) {
+			mTransparent = mIn.readUnsignedShort();
+			mChunkLeft -= 2;
+		} else if (mColorType == COLOR_RGB && mChunkLeft >= 6) {
+			int r = mIn.readUnsignedShort();
+			int g = mIn.readUnsignedShort();
+			int b = mIn.readUnsignedShort();
+			// Compared with the samples as read, before reducing to 8 bits.
+			mTransparent = mBitDepth == 16 ? -1 : (r << 16) | (g << 8) | b;
+			mChunkLeft -= 6;
+		}
+	}
+
+	/** @private Inflates exactly one row, feeding in IDAT chunks as needed. */
+	private void inflateFully(Inflater inflater, byte input[], byte row[]) throws IOException, DataFormatException {
+		int offset = 0;
+		while (offset < row.length) {
+			int n = inflater.inflate(row, offset, row.length - offset);
+			offset += n;
+			if (n > 0) {
+				continue;
+			}
+			if (inflater.finished()) {
+				throw new EOFException("Image data ended early");
+			}
+			if (inflater.needsDictionary()) {
+				throw new IOException("Image data needs a dictionary");
+			}
+			while (mChunkLeft == 0) {
+				nextChunk();
+				if (mChunkType != IDAT) {
+					throw new EOFException("Image data ended early");
+				}
+			}
+			int read = mIn.read(input, 0, Math.min(input.length, mChunkLeft));
+			if (read < 0) {
+				throw new EOFException();
+			}
+			mChunkLeft -= read;
+			inflater.setInput(input, 0, read);
+		}
+	}
+
+	/** @private Undoes the row filter, byte 0 of each row is the filter type. */
+	private static void unfilter(byte row[], byte prev[], int rowBytes, int bpp) throws IOException {
+		int filter = row[0];
+		switch (filter) {
+		case 0:
+			break;
+		case 1:
+			for (int i = 1 + bpp; i <= rowBytes; i++) {
+				row[i] += row[i - bpp];
+			}
+			break;
+		case 2:
+			for (int i = 1; i <= rowBytes; i++) {
+				row[i] += prev[i];
+			}
+			break;
+		case 3:
+			for (int i = 1; i <= rowBytes; i++) {
+				int left = i > bpp ? row[i - bpp] & 0xff : 0;
+				row[i] += (byte)((left + (prev[i] & 0xff)) >> 1);
+			}
+			break;
+		case 4:
+			for (int i = 1; i <= rowBytes; i++) {
+				int a = i > bpp ? row[i - bpp] & 0xff : 0;
+				int b = prev[i] & 0xff;
+				int c = i > bpp ? prev[i - bpp] & 0xff : 0;
+				int p = a + b - c;
+				int pa = Math.abs(p - a);
+				int pb = Math.abs(p - b);
+				int pc = Math.abs(p - c);
+				row[i] += (byte)(pa <= pb && pa <= pc ? a : (pb <= pc ? b : c));
+			}
+			break;
+		default:
+			throw new IOException("Unknown filter " + filter);
+		}
+	}
+
+	/** @private Converts an unfiltered row to ARGB, not premultiplied. */
+	private void toARGB(byte row[], int pixels[]) {
+		int w = mWidth;
+		int depth = mBitDepth;
+		switch (mColorType) {
+		case COLOR_GREY:
+			for (int x = 0; x < w; x++) {
+				int sample = readSample(row, x, depth);
+				int v = depth == 16 ? sample >> 8 : sample * 255 / ((1 << depth) - 1);
+				int a = sample == mTransparent ? 0 : 0xff;
+				pixels[x] = (a << 24) | (v << 16) | (v << 8) | v;
+			}
+			break;
+		case COLOR_PALETTE:
+			for (int x = 0; x < w; x++) {
+				pixels[x] = mPalette[readSample(row, x, depth)];
+			}
+			break;
+		case COLOR_GREY_ALPHA:
+			for (int x = 0, i = 1; x < w; x++) {
+				int v = row[i] & 0xff;
+				int a = row[i + depth / 8] & 0xff;
+				i += depth / 4;
+				pixels[x] = (a << 24) | (v << 16) | (v << 8) | v;
+			}
+			break;
+		case COLOR_RGB:
+			for (int x = 0, i = 1; x < w; x++) {
+				int step = depth / 8;
+				int r = row[i] & 0xff;
+				int g = row[i + step] & 0xff;
+				int b = row[i + step * 2] & 0xff;
+				i += step * 3;
+				int rgb = (r << 16) | (g << 8) | b;
+				pixels[x] = (rgb == mTransparent ? 0 : 0xff000000) | rgb;
+			}
+			break;
+		case COLOR_RGBA:
+			for (int x = 0, i = 1; x < w; x++) {
+				int step = depth / 8;
+				int r = row[i] & 0xff;
+				int g = row[i + step] & 0xff;
+				int b = row[i + step * 2] & 0xff;
+				int a = row[i + step * 3] & 0xff;
+				i += step * 4;
+				pixels[x] = (a << 24) | (r << 16) | (g << 8) | b;
+			}
+			break;
+		}
+	}
+
+	/** @private Reads a grey or palette sample of 1 to 16 bits. */
+	private static int readSample(byte row[], int x, int depth) {
+		switch (depth) {
+		case 16:
+			return ((row[1 + x * 2] & 0xff) << 8) | (row[2 + x * 2] & 0xff);
+		case 8:
+			return row[1 + x] & 0xff;
+		default:
+			int bit = x * depth;
+			int shift = 8 - depth - (bit & 7);
+			return ((row[1 + (bit >> 3)] & 0xff) >> shift) & ((1 << depth) - 1);
+		}
+	}
+}
@@ -0,0 +1,259 @@
+package net.androidpunk.graphics.opengl;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+
+import javax.microedition.khronos.opengles.GL10;
+
+import net.androidpunk.android.OpenGLSystem;
+import android.graphics.Color;
+
+/**
+ * Collects textured quads from many graphics and draws them with as few
+ * glDrawElements calls as possible. Quads are transformed on the CPU, so
+ * graphics do not need to push and pop the matrix, and the batch is only
+ * flushed when the texture changes, the buffer fills or something draws
+ * without the batch.
+ *
+ * Set the transform and color, then call draw() for each quad.
+ */
+public class SpriteBatch {
+
+	private static final String TAG = "SpriteBatch";
+
+	/**
+	 * Most quads that can be drawn in one call, 4 vertices each must fit in a short index.
+	 */
+	public static final int MAX_SPRITES = 2048;
+
+	private static final boolean LITTLE_ENDIAN = ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN;
+
+	// Quad information, copied into the direct buffers on flush.
+	private static final float mVertices[] = new float[MAX_SPRITES * 8];
+	private static final float mTexCoords[] = new float[MAX_SPRITES * 8];
+	private static final int mColors[] = new int[MAX_SPRITES * 4];
+	private static int mCount = 0;
+	private static Texture mTexture;
+
+	// Buffer information.
+	private static final FloatBuffer mVertexBuffer = GLGraphic.getDirectFloatBuffer(MAX_SPRITES * 8);
+	private static final FloatBuffer mTextureBuffer = GLGraphic.getDirectFloatBuffer(MAX_SPRITES * 8);
+	private static final IntBuffer mColorBuffer = ByteBuffer.allocateDirect(MAX_SPRITES * 16).order(ByteOrder.nativeOrder()).asIntBuffer();
+	private static final ShortBuffer mIndexBuffer = GLGraphic.getDirectShortBuffer(MAX_SPRITES * 6);
+
+	// Transform information.
+	private static float mA = 1, mB = 0, mC = 0, mD = 1;
+	private static float mTx = 0, mTy = 0;
+	private static int mColor = 0xffffffff;
+
+	// Statistics.
+	private static int mFlushes = 0;
+	private static int mSprites = 0;
+
+	static {
+		// Same winding as TextAtlas, two triangles per quad.
+		mIndexBuffer.position(0);
+		for (int i = 0; i < MAX_SPRITES; i++) {
+			short v = (short)(i * 4);
+			mIndexBuffer.put(v).put((short)(v + 1)).put((short)(v + 2));
+			mIndexBuffer.put((short)(v + 1)).put((short)(v + 3)).put((short)(v + 2));
+		}
+		mIndexBuffer.position(0);
+	}
+
+	/**
+	 * Sets the transform used for the following quads. Local coordinates are moved
+	 * by -origin, scaled, rotated and then moved to (x, y), the same as GLGraphic.setMatrix().
+	 * @param	x			Where the origin ends up.
+	 * @param	y			Where the origin ends up.
+	 * @param	originX		X origin in local coordinates.
+	 * @param	originY		Y origin in local coordinates.
+	 * @param	scaleX		X scale.
+	 * @param	scaleY		Y scale.
+	 * @param	angle		Rotation in degrees.
+	 */
+	public static void setTransform(float x, float y, float originX, float originY, float scaleX, float scaleY, float angle) {
+		float cos = 1, sin = 0;
+		if (angle != 0) {
+			double rad = Math.toRadians(angle);
+			cos = (float)Math.cos(rad);
+			sin = (float)Math.sin(rad);
+		}
+		mA = cos * scaleX;
+		mB = sin * scaleX;
+		mC = -sin * scaleY;
+		mD = cos * scaleY;
+		mTx = x - originX * mA - originY * mC;
+		mTy = y - originX * mB - originY * mD;
+	}
+
+	/**
+	 * Sets a transform that only moves the following quads.
+	 * @param	x			X offset.
+	 * @param	y			Y offset.
+	 */
+	public static void setTranslation(float x, float y) {
+		mA = mD = 1;
+		mB = mC = 0;
+		mTx = x;
+		mTy = y;
+	}
+
+	/**
+	 * Sets the tint of the following quads.
+	 * @param	color		The color in ARGB.
+	 */
+	public static void setColor(int color) {
+		mColor = pack(Color.alpha(color), Color.red(color), Color.green(color), Color.blue(color));
+	}
+
+	/**
+	 * Sets the tint of the following quads.
+	 * @param	red			Red from 0 to 255.
+	 * @param	green		Green from 0 to 255.
+	 * @param	blue		Blue from 0 to 255.
+	 * @param	alpha		Alpha from 0 to 255.
+	 */
+	public static void setColor(int red, int green, int blue, int alpha) {
+		mColor = toVertexColor(red, green, blue, alpha);
+	}
+	
+	/**
+	 * Packs a color for a GL_UNSIGNED_BYTE color array, for code that fills its own buffers.
+	 * @param	red			Red from 0 to 255.
+	 * @param	green		Green from 0 to 255.
+	 * @param	blue		Blue from 0 to 255.
+	 * @param	alpha		Alpha from 0 to 255.
+	 * @return	The color with its bytes in RGBA order in memory.
+	 */
+	public static int toVertexColor(int red, int green, int blue, int alpha) {
+		// Eases can overshoot, glColor4f used to clamp for us.
+		red = red < 0 ? 0 : (red > 255 ? 255 : red);
+		green = green < 0 ? 0 : (green > 255 ? 255 : green);
+		blue = blue < 0 ? 0 : (blue > 255 ? 255 : blue);
+		alpha = alpha < 0 ? 0 : (alpha > 255 ? 255 : alpha);
+		return pack(alpha, red, green, blue);
+	}
+
+	/** @private Packs a color so its bytes are RGBA in memory. */
+	private static int pack(int a, int r, int g, int b) {
+		if (LITTLE_ENDIAN)
+			return (a << 24) | (b << 16) | (g << 8) | r;
+		return (r << 24) | (g << 16) | (b << 8) | a;
+	}
+
+	/**
+	 * Adds an axis aligned quad in local coordinates.
+	 * @param	gl			The GL context.
+	 * @param	texture		The texture to draw with.
+	 * @param	left		Left of the quad.
+	 * @param	top			Top of the quad.
+	 * @param	right		Right of the quad.
+	 * @param	bottom		Bottom of the quad.
+	 * @param	uvs			Texture coordinates for the 4 corners in triangle strip order.
+	 * @param	offset		Index of the first float to use in uvs.
+	 */
+	public static void draw(GL10 gl, Texture texture, float left, float top, float right, float bottom, FloatBuffer uvs, int offset) {
+		int i = begin(gl, texture);
+		float v[] = mVertices;
+		transform(v, i, left, top);
+		transform(v, i + 2, right, top);
+		transform(v, i + 4, left, bottom);
+		transform(v, i + 6, right, bottom);
+		float t[] = mTexCoords;
+		for (int k = 0; k < 8; k++)
+			t[i + k] = uvs.get(offset + k);
+	}
+
+	/**
+	 * Adds quads whose corners are already in buffers, 4 vertices per quad in
+	 * triangle strip order. Used for text where each glyph is a quad.
+	 * @param	gl			The GL context.
+	 * @param	texture		The texture to draw with.
+	 * @param	vertices	Local corner positions.
+	 * @param	uvs			Texture coordinates.
+	 * @param	count		Number of quads.
+	 */
+	public static void draw(GL10 gl, Texture texture, FloatBuffer vertices, FloatBuffer uvs, int count) {
+		float v[] = mVertices;
+		float t[] = mTexCoords;
+		for (int q = 0; q < count; q++) {
+			int i = begin(gl, texture);
+			int src = q * 8;
+			for (int k = 0; k < 8; k += 2) {
+				transform(v, i + k, vertices.get(src + k), vertices.get(src + k + 1));
+				t[i + k] = uvs.get(src + k);
+				t[i + k + 1] = uvs.get(src + k + 1);
+			}
+		}
+	}
+
+	/** @private Makes room for one quad and returns the float index to write it at. */
+	private static int begin(GL10 gl, Texture texture) {
+		if (mTexture != texture || mCount == MAX_SPRITES) {
+			flush(gl);
+			mTexture = texture;
+		}
+		int c = mCount * 4;
+		mColors[c] = mColors[c + 1] = mColors[c + 2] = mColors[c + 3] = mColor;
+		return (mCount++) * 8;
+	}
+
+	/** @private Writes a transformed vertex. */
+	private static void transform(float v[], int i, float x, float y) {
+		v[i] = mA * x + mC * y + mTx;
+		v[i + 1] = mB * x + mD * y + mTy;
+	}
+
+	/**
+	 * Draws everything in the batch. Call this before drawing anything without the batch.
+	 * @param	gl			The GL context.
+	 */
+	public static void flush(GL10 gl) {
+		int count = mCount;
+		if (count == 0)
+			return;
+		// Clear first, setTexture flushes too.
+		mCount = 0;
+		mFlushes++;
+		mSprites += count;
+
+		mVertexBuffer.position(0);
+		mVertexBuffer.put(mVertices, 0, count * 8).position(0);
+		mTextureBuffer.position(0);
+		mTextureBuffer.put(mTexCoords, 0, count * 8).position(0);
+		mColorBuffer.position(0);
+		mColorBuffer.put(mColors, 0, count * 4).position(0);
+
+		OpenGLSystem.setTexture(gl, mTexture);
+		OpenGLSystem.enableClientState(gl, GL10.GL_COLOR_ARRAY);
+		OpenGLSystem.enableClientState(gl, GL10.GL_TEXTURE_COORD_ARRAY);
+		gl.glColorPointer(4, GL10.GL_UNSIGNED_BYTE, 0, mColorBuffer);
+		gl.glTexCoordPointer(2, GL10.GL_FLOAT, 0, mTextureBuffer);
+		gl.glVertexPointer(2, GL10.GL_FLOAT, 0, mVertexBuffer);
+		gl.glDrawElements(GL10.GL_TRIANGLES, count * 6, GL10.GL_UNSIGNED_SHORT, mIndexBuffer);
+		// The color array stays enabled, draws without one disable it themselves.
+		OpenGLSystem.invalidateColor();
+	}
+
+	/**
+	 * Number of draw calls the batch made since the last resetStats().
+	 */
+	public static int getFlushCount() { return mFlushes; }
+
+	/**
+	 * Number of quads the batch drew since the last resetStats().
+	 */
+	public static int getSpriteCount() { return mSprites; }
+
+	/**
+	 * Resets the statistics, call once a frame.
+	 */
+	public static void resetStats() {
+		mFlushes = 0;
+		mSprites = 0;
+	}
+}
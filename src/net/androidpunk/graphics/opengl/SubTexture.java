@@ -6,6 +6,10 @@ public class SubTexture {
 
 	private final Rect mRect = new Rect();
 	private Texture mTexture;
+	private String mName;
+	
+	// Id given by the AtlasProfiler.
+	int mProfileId = -1;
 	
 	/**
 	 * Create a subtexture object to describe a texture in a texture.
@@ -20,6 +24,18 @@ public class SubTexture {
 		mRect.set(x,y,x+width,y+height);
 	}
 	
+	/**
+	 * The name in the atlas, or null if it wasn't given one.
+	 */
+	public String getName() {
+		return mName;
+	}
+	
+	/** @private Set by the atlas it is added to. */
+	void setName(String name) {
+		mName = name;
+	}
+	
 	/**
 	 * Gets the texture this subtexture uses.
 	 * @return The subtexture.
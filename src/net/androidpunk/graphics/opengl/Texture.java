@@ -2,6 +2,8 @@ package net.androidpunk.graphics.opengl;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.microedition.khronos.opengles.GL10;
 
@@ -9,8 +11,10 @@ import net.androidpunk.FP;
 import net.androidpunk.android.OpenGLSystem;
 import net.androidpunk.android.OpenGLSystem.OpenGLRunnable;
 import android.graphics.Bitmap;
+import android.graphics.Bitmap.Config;
 import android.graphics.BitmapFactory;
 import android.graphics.Rect;
+import android.opengl.ETC1;
 import android.opengl.GLUtils;
 import android.util.Log;
 
@@ -36,15 +40,35 @@ public class Texture {
 	// The clip plane.
 	private final Rect mRect = new Rect();
 	
+	// Loaded pixels per logical pixel, mRect is the logical size.
+	private float mScale = 1;
+	
 	// The path to the texture.
 	private String mTexturePath;
 	
 	// Temporary bitmap to load it into texture VRAM.
 	private Bitmap mSource;
 	
+	// ETC1 image and its optional alpha, used instead of mSource for .pkm assets.
+	private PKMImage mCompressed;
+	private PKMImage mCompressedAlpha;
+	
+	// Pixel format to upload in, see TextureFormat.
+	private int mFormat = TextureFormat.RGBA_8888;
+	private boolean mDither = false;
+	private int mUploadedFormat = TextureFormat.RGBA_8888;
+	
 	// Has the texture been loaded.
 	private boolean mLoaded = false;
 	
+	// Memory management, see TextureManager.
+	private final AtomicInteger mRefCount = new AtomicInteger();
+	private int mLastUsed = 0;
+	private int mBytes = 0;
+	private int mContext = -1;
+	private boolean mEvicted = false;
+	private boolean mReloading = false;
+	
 	
 	public static final int nextHigher2(int v) {
 		if (v == 0)
@@ -81,6 +105,7 @@ public class Texture {
 	 */
 	public Texture(Bitmap source) {
 		mSource = source;
+		mScale = 1;
 		load();
 	}
 	
@@ -90,8 +115,23 @@ public class Texture {
 	 */
 	public void setTextureBitmap(String texturePath) {
 		mTexturePath = texturePath;
-		InputStream is = FP.getAsset(mTexturePath);
-		mSource = BitmapFactory.decodeStream(is);
+		AssetDensity.Variant variant = AssetDensity.resolve(texturePath);
+		mScale = variant.getScale();
+		if (PKMImage.isPKM(variant.path)) {
+			mSource = null;
+			mCompressed = readPKM(variant.path, true);
+			mCompressedAlpha = mCompressed != null ? readPKM(PKMImage.getAlphaPath(variant.path), false) : null;
+			if (mLoaded) {
+				release();
+			}
+			load();
+			return;
+		}
+		mCompressed = mCompressedAlpha = null;
+		InputStream is = FP.getAsset(variant.path);
+		BitmapFactory.Options opts = new BitmapFactory.Options();
+		opts.inSampleSize = variant.sampleSize;
+		mSource = BitmapFactory.decodeStream(is, null, opts);
 		try {
 			is.close();
 		} catch (IOException e) {
@@ -103,12 +143,157 @@ public class Texture {
 		load();
 	}
 	
+	/**
+	 * Set the texture bitmap to an asset and load it in the background with the TextureLoader.
+	 * The size is known straight away but the texture is not drawn until isLoaded().
+	 * @param texturePath Asset path to the image.
+	 * @return The load request, to check on or wait for.
+	 */
+	public TextureLoader.Request setTextureBitmapAsync(String texturePath) {
+		mTexturePath = texturePath;
+		AssetDensity.Variant variant = AssetDensity.resolve(texturePath);
+		mScale = variant.getScale();
+		BitmapFactory.Options opts = new BitmapFactory.Options();
+		if (TextureLoader.readBounds(variant.path, opts)) {
+			setSize(opts.outWidth / variant.sampleSize, opts.outHeight / variant.sampleSize);
+		} else {
+			Log.e(TAG, "Could not read " + texturePath);
+		}
+		// upload() frees the old texture. A queued release could run after it and delete the new one.
+		return TextureLoader.load(this, texturePath);
+	}
+	
+	/**
+	 * Reads an ETC1 image from the assets.
+	 * @param path Asset path of the .pkm file.
+	 * @param required Log an error if it is missing.
+	 * @return The image, or null if it could not be read.
+	 */
+	static PKMImage readPKM(String path, boolean required) {
+		InputStream is;
+		try {
+			is = FP.context.getAssets().open(path);
+		} catch (IOException e) {
+			if (required) {
+				Log.e(TAG, "Could not open " + path);
+			}
+			return null;
+		}
+		try {
+			return PKMImage.read(is);
+		} catch (IOException e) {
+			Log.e(TAG, "Could not read " + path + ": " + e.getMessage());
+			return null;
+		} finally {
+			try {
+				is.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+	
+	/**
+	 * Uploads an ETC1 image read by the TextureLoader. Call on the GL thread.
+	 * @param gl the GL context.
+	 * @param image The colors.
+	 * @param alpha The alpha side channel, or null.
+	 */
+	void upload(GL10 gl, PKMImage image, PKMImage alpha) {
+		if (mLoaded || mEvicted) {
+			releaseTexture(gl);
+		}
+		mCompressed = image;
+		mCompressedAlpha = alpha;
+		if (!createCompressedTexture(gl)) {
+			Log.e(TAG, "Could not upload " + mTexturePath);
+		}
+	}
+	
+	/**
+	 * Uploads pixels packed by the TextureLoader. Call on the GL thread.
+	 * @param gl the GL context.
+	 * @param width Width of the image.
+	 * @param height Height of the image.
+	 * @param format TextureFormat.RGBA_8888, RGB_565 or RGBA_4444.
+	 * @param pixels The packed pixels, free to reuse once this returns.
+	 */
+	void upload(GL10 gl, int width, int height, int format, ByteBuffer pixels) {
+		if (mLoaded || mEvicted) {
+			releaseTexture(gl);
+		}
+		setSize(width, height);
+		if (genTexture(gl)) {
+			texImage(gl, width, height, format, pixels);
+		} else {
+			Log.e(TAG, "Could not upload " + mTexturePath);
+		}
+	}
+	
+	/**
+	 * Sets the pixel format used the next time the texture is uploaded, eg.
+	 * TextureFormat.RGB_565 for opaque images. Set it before loading.
+	 * @param format One of the TextureFormat constants.
+	 * @param dither Use ordered dithering when reducing to 16 bits.
+	 */
+	public void setFormat(int format, boolean dither) {
+		mFormat = format;
+		mDither = dither;
+	}
+	
+	/**
+	 * The requested pixel format, which may be TextureFormat.AUTO.
+	 */
+	public int getFormat() { return mFormat; }
+	
+	/**
+	 * If reducing to 16 bits dithers.
+	 */
+	public boolean getDither() { return mDither; }
+	
+	/**
+	 * The format the texture was last uploaded in.
+	 */
+	public int getUploadedFormat() { return mUploadedFormat; }
+	
+	/**
+	 * Uploads a bitmap decoded off the GL thread, eg. by the TextureLoader.
+	 * Call on the GL thread. Without a path the texture can't be reloaded.
+	 * @param gl the GL context.
+	 * @param bm The decoded image, recycled once uploaded.
+	 */
+	public void upload(GL10 gl, Bitmap bm) {
+		upload(gl, bm, mFormat);
+	}
+	
+	/**
+	 * Uploads a bitmap in a format already chosen, so AUTO isn't worked out again on the GL thread.
+	 * @param gl the GL context.
+	 * @param bm The decoded image, recycled once uploaded.
+	 * @param format The TextureFormat to upload in, or AUTO to choose from the pixels.
+	 */
+	void upload(GL10 gl, Bitmap bm, int format) {
+		if (mLoaded || mEvicted) {
+			releaseTexture(gl);
+		}
+		mSource = bm;
+		setSize(bm.getWidth(), bm.getHeight());
+		if (createTexture(gl, bm, format)) {
+			mSource.recycle();
+			mSource = null;
+		} else {
+			Log.e(TAG, "Could not upload " + mTexturePath);
+		}
+	}
+	
 	/**
 	 * Set the texture bitmap and load it.
 	 * @param texturePath Bitmap image.
 	 */
 	public void setTextureBitmap(Bitmap texture) {
 		mSource = texture;
+		mScale = 1;
+		mCompressed = mCompressedAlpha = null;
 
 		if (mLoaded) {
 			release();
@@ -130,6 +315,12 @@ public class Texture {
 				Thread.dumpStack();
 				return;
 			}
+			if (mSource == null && mCompressed != null) {
+				if (!createCompressedTexture(gl)) {
+					OpenGLSystem.postRunnable(this);
+				}
+				return;
+			}
 			if (createTexture(gl, mSource)) {
 				if (mTexturePath != null) {
 					mSource.recycle();
@@ -142,12 +333,49 @@ public class Texture {
 		}
 		
 	}
+	/**
+	 * Uploads a changed part of the texture without uploading all of it.
+	 * The bitmap the texture was made from should have the change too, so it
+	 * is there if the texture is loaded again.
+	 * @param region The new pixels, recycled once uploaded.
+	 * @param x Left of the region in the texture.
+	 * @param y Top of the region in the texture.
+	 */
+	public void updateRegion(final Bitmap region, final int x, final int y) {
+		OpenGLSystem.postRunnable(new OpenGLRunnable() {
+			@Override
+			public void run(GL10 gl) {
+				// Not uploaded yet or evicted, the whole bitmap goes up on load.
+				if (mLoaded && mContext == OpenGLSystem.getContextGeneration()) {
+					OpenGLSystem.bindTexture(gl, mTextureName);
+					if (mUploadedFormat == TextureFormat.RGBA_8888) {
+						GLUtils.texSubImage2D(GL10.GL_TEXTURE_2D, 0, x, y, region);
+					} else {
+						int w = region.getWidth();
+						int h = region.getHeight();
+						ByteBuffer pixels = TextureFormat.pack(TextureFormat.getPixels(region), w, h, mUploadedFormat, mDither);
+						gl.glPixelStorei(GL10.GL_UNPACK_ALIGNMENT, 2);
+						gl.glTexSubImage2D(GL10.GL_TEXTURE_2D, 0, x, y, w, h, 
+								TextureFormat.getGLFormat(mUploadedFormat), TextureFormat.getGLType(mUploadedFormat), pixels);
+						gl.glPixelStorei(GL10.GL_UNPACK_ALIGNMENT, 4);
+					}
+				}
+				region.recycle();
+			}
+		});
+	}
+	
 	/**
 	 * Thread-safe creation the texture.
 	 * @param gl the GL context.
 	 */
 	public void load() {
-		mRect.set(0, 0, mSource.getWidth(), mSource.getHeight());
+		if (mSource == null && mCompressed != null) {
+			setSize(mCompressed.paddedWidth, mCompressed.paddedHeight);
+			OpenGLSystem.postRunnable(new TextureLoadRunnable(null));
+			return;
+		}
+		setSize(mSource.getWidth(), mSource.getHeight());
 		TextureLoadRunnable runnable = new TextureLoadRunnable(mSource);
 		OpenGLSystem.postRunnable(runnable);
 
@@ -165,6 +393,102 @@ public class Texture {
 		});
 	}
 	
+	/**
+	 * Releases the texture straight away, for callers already on the GL thread.
+	 * A queued release() could run after the texture has been uploaded again and delete it.
+	 * @param gl the GL context.
+	 */
+	public void release(GL10 gl) {
+		// Quads batched with this texture must be drawn before it goes.
+		SpriteBatch.flush(gl);
+		releaseTexture(gl);
+	}
+	
+	/**
+	 * Marks the texture as used by a graphic, so the TextureManager won't evict it.
+	 */
+	public void acquire() {
+		mRefCount.incrementAndGet();
+	}
+	
+	/**
+	 * Gives up a reference taken with acquire(). The texture stays loaded until
+	 * the TextureManager needs the memory or release() is called.
+	 */
+	public void releaseReference() {
+		int count;
+		do {
+			count = mRefCount.get();
+		} while (count > 0 && !mRefCount.compareAndSet(count, count - 1));
+	}
+	
+	/**
+	 * How many graphics have acquired this texture.
+	 */
+	public int getReferenceCount() { return mRefCount.get(); }
+	
+	/**
+	 * Estimated bytes of video memory used, 0 if not loaded.
+	 */
+	public int getBytes() { return mBytes; }
+	
+	/**
+	 * The frame this texture was last drawn or checked for drawing.
+	 */
+	public int getLastUsed() { return mLastUsed; }
+	
+	/** @private Records that the texture was drawn this frame. */
+	public void markUsed() {
+		mLastUsed = TextureManager.getFrame();
+	}
+	
+	/**
+	 * If the texture was evicted by the TextureManager and will reload when next drawn.
+	 */
+	public boolean isEvicted() { return mEvicted; }
+	
+	/** @private If the pixels can be found again after the texture is deleted. */
+	boolean canReload() {
+		return mTexturePath != null || mCompressed != null || (mSource != null && !mSource.isRecycled());
+	}
+	
+	/** @private Deletes the texture to free memory, it reloads when next drawn. Call on the GL thread. */
+	void evict(GL10 gl) {
+		releaseTexture(gl);
+		mEvicted = true;
+		mReloading = false;
+	}
+	
+	/** @private The context was lost and the texture with it. Call on the GL thread. */
+	void invalidate() {
+		if (!mLoaded) {
+			return;
+		}
+		mBytes = 0;
+		mLoaded = false;
+		// Comes back when it is next drawn, or from TextureManager.restore().
+		mEvicted = canReload();
+		mReloading = false;
+	}
+	
+	/**
+	 * @private Starts reloading an evicted or lost texture. Pixels still in memory
+	 * are uploaded straight away, so call on the GL thread.
+	 */
+	void restore(GL10 gl) {
+		if (mLoaded || !mEvicted || mReloading) {
+			return;
+		}
+		if (mTexturePath != null) {
+			mReloading = true;
+			TextureLoader.load(this, mTexturePath);
+		} else if (mSource != null) {
+			createTexture(gl, mSource);
+		} else if (mCompressed != null) {
+			createCompressedTexture(gl);
+		}
+	}
+	
 	public void reload() {
 		release();
 		if (mTexturePath != null) {
@@ -180,7 +504,71 @@ public class Texture {
 	 * @param bm The bitmap to put it. 
 	 */
 	private boolean createTexture(GL10 gl, Bitmap bm) {
-		gl.glEnable(GL10.GL_TEXTURE_2D);
+		return createTexture(gl, bm, mFormat);
+	}
+	
+	/** @private Moves a bitmap to VRAM in a format, AUTO scans the pixels to choose. */
+	private boolean createTexture(GL10 gl, Bitmap bm, int format) {
+		if (!genTexture(gl)) {
+			return false;
+		}
+		if (format != TextureFormat.RGBA_8888) {
+			int pixels[] = TextureFormat.getPixels(mSource);
+			format = TextureFormat.choose(pixels, format);
+			if (format != TextureFormat.RGBA_8888) {
+				int w = mSource.getWidth();
+				int h = mSource.getHeight();
+				texImage(gl, w, h, format, TextureFormat.pack(pixels, w, h, format, mDither));
+				return mLoaded;
+			}
+		}
+		// Upload the texture to texture memory
+		GLUtils.texImage2D(GL10.GL_TEXTURE_2D, 0, mSource, 0);
+		mUploadedFormat = TextureFormat.RGBA_8888;
+		uploaded(mSource.getRowBytes() * mSource.getHeight());
+		return mLoaded;
+	}
+	
+	/** @private Uploads packed pixels to the bound texture. */
+	private void texImage(GL10 gl, int width, int height, int format, ByteBuffer pixels) {
+		// Rows of 16 bit pixels are only 2 byte aligned.
+		gl.glPixelStorei(GL10.GL_UNPACK_ALIGNMENT, 2);
+		gl.glTexImage2D(GL10.GL_TEXTURE_2D, 0, TextureFormat.getGLFormat(format), width, height, 0, 
+				TextureFormat.getGLFormat(format), TextureFormat.getGLType(format), pixels);
+		gl.glPixelStorei(GL10.GL_UNPACK_ALIGNMENT, 4);
+		mUploadedFormat = format;
+		uploaded(width * height * TextureFormat.getBytesPerPixel(format));
+	}
+	
+	/**
+	 * Move an ETC1 texture to VRAM, compressed if the device supports it.
+	 * Without ETC1, or with an alpha side channel which ETC1 can't hold, it is
+	 * decoded in software to a bitmap first.
+	 * @param gl the GL context.
+	 */
+	private boolean createCompressedTexture(GL10 gl) {
+		PKMImage image = mCompressed;
+		setSize(image.paddedWidth, image.paddedHeight);
+		if (mCompressedAlpha == null && OpenGLSystem.isETC1Supported()) {
+			if (!genTexture(gl)) {
+				return false;
+			}
+			gl.glCompressedTexImage2D(GL10.GL_TEXTURE_2D, 0, ETC1.ETC1_RGB8_OES, image.paddedWidth, image.paddedHeight, 0, image.getDataSize(), image.getBuffer());
+			uploaded(image.getDataSize());
+			return mLoaded;
+		}
+		int pixels[] = new int[image.paddedWidth * image.paddedHeight];
+		image.decode(pixels, mCompressedAlpha);
+		mSource = Bitmap.createBitmap(pixels, image.paddedWidth, image.paddedHeight, Config.ARGB_8888);
+		boolean created = createTexture(gl, mSource);
+		mSource.recycle();
+		mSource = null;
+		return created;
+	}
+	
+	/** @private Creates and binds a texture name with this class's parameters. */
+	private boolean genTexture(GL10 gl) {
+		OpenGLSystem.enable(gl, GL10.GL_TEXTURE_2D);
 				
 		int textures[] = new int[1];
 		gl.glGenTextures(1, textures, 0);
@@ -188,7 +576,7 @@ public class Texture {
 		mTextureName = textures[0];
 		
 		// Select this OpenGL texture
-		gl.glBindTexture(GL10.GL_TEXTURE_2D, mTextureName);
+		OpenGLSystem.bindTexture(gl, mTextureName);
 		//Log.d(TAG, "Texture is bound to " + mTextureName);
 		if (mTextureName == 0) { 
 			return false;
@@ -199,11 +587,18 @@ public class Texture {
 		
 		gl.glTexParameterf(GL10.GL_TEXTURE_2D, GL10.GL_TEXTURE_WRAP_S, GL10.GL_CLAMP_TO_EDGE); 
 		gl.glTexParameterf(GL10.GL_TEXTURE_2D, GL10.GL_TEXTURE_WRAP_T, GL10.GL_CLAMP_TO_EDGE);
-		
-		// Upload the texture to texture memory
-		GLUtils.texImage2D(GL10.GL_TEXTURE_2D, 0, mSource, 0);
+		return true;
+	}
+	
+	/** @private Bookkeeping once pixels are in the texture. */
+	private void uploaded(int bytes) {
+		mBytes = bytes;
+		mContext = OpenGLSystem.getContextGeneration();
+		mEvicted = false;
+		mReloading = false;
+		mLastUsed = TextureManager.getFrame();
 		mLoaded = true;
-		return mLoaded;
+		TextureManager.register(this);
 	}
 	
 	/**
@@ -212,24 +607,58 @@ public class Texture {
 	 */
 	private void releaseTexture(GL10 gl) {
 		if (!mLoaded) {
+			if (mEvicted) {
+				// Already deleted, just don't bring it back.
+				mEvicted = false;
+				return;
+			}
 			Log.e(TAG, "Texture wasn't loaded");
 			Thread.dumpStack();
 			return;
 		}
-		int textures[] = new int[1];
-		textures[0] = mTextureName;
-		//gl.glDeleteTextures(1, textures, 0);
+		// A name from a lost context may belong to something else now.
+		if (mContext == OpenGLSystem.getContextGeneration()) {
+			int textures[] = new int[1];
+			textures[0] = mTextureName;
+			gl.glDeleteTextures(1, textures, 0);
+			OpenGLSystem.forgetTexture(mTextureName);
+		}
+		TextureManager.unregister(this);
+		mBytes = 0;
 		mLoaded = false;
 	}
 	
 	/**
-	 * Is true when the texture is ready to be drawn.
+	 * Is true when the texture is ready to be drawn. Graphics check this before
+	 * drawing, so it also counts as a use and starts reloading an evicted texture.
 	 * @return true if it is in the texture memory. 
 	 */
 	public boolean isLoaded() {
+		mLastUsed = TextureManager.getFrame();
+		if (!mLoaded && mEvicted && !mReloading) {
+			mReloading = true;
+			if (mTexturePath != null) {
+				TextureLoader.load(this, mTexturePath);
+			} else {
+				load();
+			}
+		}
 		return mLoaded;
 	}
 	
+	/** @private Sets the logical size from the size of the loaded pixels. */
+	private void setSize(int width, int height) {
+		mRect.set(0, 0, Math.round(width / mScale), Math.round(height / mScale));
+	}
+	
+	/**
+	 * Loaded pixels per pixel of getWidth() and getHeight(), below 1 when a
+	 * smaller variant or a downsampled image was loaded, see AssetDensity.
+	 */
+	public float getScale() {
+		return mScale;
+	}
+	
 	/**
 	 * Get the width of the texture.
 	 * @return Texture width in pixels.
@@ -0,0 +1,205 @@
+package net.androidpunk.graphics.opengl;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import javax.microedition.khronos.opengles.GL10;
+
+import android.graphics.Bitmap;
+
+/**
+ * Pixel formats a Texture can be uploaded in, and the conversion to them.
+ * RGB_565 and RGBA_4444 take half the memory and upload time of RGBA_8888,
+ * which suits opaque or low colour images. AUTO looks at the pixels and
+ * picks the smallest format that keeps the alpha.
+ */
+public class TextureFormat {
+
+	private static final String TAG = "TextureFormat";
+
+	/**
+	 * 8 bits per channel, what a Bitmap is uploaded as.
+	 */
+	public static final int RGBA_8888 = 0;
+
+	/**
+	 * 16 bits, no alpha.
+	 */
+	public static final int RGB_565 = 1;
+
+	/**
+	 * 16 bits, 4 per channel.
+	 */
+	public static final int RGBA_4444 = 2;
+
+	/**
+	 * Chosen from the pixels when loaded, see choose().
+	 */
+	public static final int AUTO = 3;
+
+	/**
+	 * Most distinct alpha values AUTO will still put in RGBA_4444.
+	 */
+	public static int maxAutoAlphaLevels = 16;
+
+	// 4x4 ordered dither matrix.
+	private static final int BAYER[] = {
+		0, 8, 2, 10,
+		12, 4, 14, 6,
+		3, 11, 1, 9,
+		15, 7, 13, 5
+	};
+
+	/**
+	 * Reads a format name as written in atlas xml files, eg. "RGB565", "rgba4444" or "auto".
+	 * @param	name		The name.
+	 * @param	fallback	Returned when the name is null or unknown.
+	 * @return	The format.
+	 */
+	public static int parse(String name, int fallback) {
+		if (name == null) {
+			return fallback;
+		}
+		String n = name.toUpperCase().replace("_", "");
+		if (n.equals("RGBA8888") || n.equals("ARGB8888")) {
+			return RGBA_8888;
+		} else if (n.equals("RGB565")) {
+			return RGB_565;
+		} else if (n.equals("RGBA4444") || n.equals("ARGB4444")) {
+			return RGBA_4444;
+		} else if (n.equals("AUTO")) {
+			return AUTO;
+		}
+		return fallback;
+	}
+
+	/**
+	 * Bytes each pixel takes in video memory.
+	 */
+	public static int getBytesPerPixel(int format) {
+		return format == RGB_565 || format == RGBA_4444 ? 2 : 4;
+	}
+
+	/**
+	 * Resolves AUTO by looking at the pixels: opaque images become RGB_565,
+	 * images with only a few alpha levels RGBA_4444 and the rest RGBA_8888.
+	 * @param	pixels		ARGB pixels.
+	 * @param	format		The requested format.
+	 * @return	The format to upload in, never AUTO.
+	 */
+	public static int choose(int pixels[], int format) {
+		if (format != AUTO) {
+			return format;
+		}
+		boolean levels[] = new boolean[256];
+		int count = 0;
+		for (int i = 0; i < pixels.length; i++) {
+			int a = pixels[i] >>> 24;
+			if (!levels[a]) {
+				levels[a] = true;
+				if (++count > maxAutoAlphaLevels) {
+					return RGBA_8888;
+				}
+			}
+		}
+		if (count == 1 && levels[0xff]) {
+			return RGB_565;
+		}
+		return RGBA_4444;
+	}
+
+	/**
+	 * Reads the pixels of a bitmap.
+	 */
+	public static int[] getPixels(Bitmap bm) {
+		int w = bm.getWidth();
+		int h = bm.getHeight();
+		int pixels[] = new int[w * h];
+		bm.getPixels(pixels, 0, w, 0, 0, w, h);
+		return pixels;
+	}
+
+	/**
+	 * Packs ARGB pixels into 16 bits per pixel for glTexImage2D. Alpha is
+	 * premultiplied, the same as a Bitmap upload.
+	 * @param	pixels		ARGB pixels, not premultiplied, row by row.
+	 * @param	width		Width of the image.
+	 * @param	height		Height of the image.
+	 * @param	format		RGBA_8888, RGB_565 or RGBA_4444.
+	 * @param	dither		Spread the rounding error with an ordered dither to hide banding.
+	 * @return	A direct buffer at position 0.
+	 */
+	public static ByteBuffer pack(int pixels[], int width, int height, int format, boolean dither) {
+		ByteBuffer bb = ByteBuffer.allocateDirect(width * height * getBytesPerPixel(format)).order(ByteOrder.nativeOrder());
+		for (int y = 0; y < height; y++) {
+			packRow(pixels, y * width, width, y, format, dither, true, bb);
+		}
+		bb.position(0);
+		return bb;
+	}
+	
+	/**
+	 * Packs one row of ARGB pixels at the buffer's position, for decoders that work a row at a time.
+	 * @param	pixels		ARGB pixels, not premultiplied.
+	 * @param	offset		Index of the first pixel of the row.
+	 * @param	width		Pixels in the row.
+	 * @param	y			Row number, for the dither pattern.
+	 * @param	format		RGBA_8888, RGB_565 or RGBA_4444.
+	 * @param	dither		Dither when reducing to 16 bits.
+	 * @param	premultiply	Multiply the colors by alpha.
+	 * @param	out			Buffer in native order.
+	 */
+	public static void packRow(int pixels[], int offset, int width, int y, int format, boolean dither, boolean premultiply, ByteBuffer out) {
+		for (int x = 0; x < width; x++) {
+			int c = pixels[offset + x];
+			int a = c >>> 24;
+			int r = (c >> 16) & 0xff;
+			int g = (c >> 8) & 0xff;
+			int b = c & 0xff;
+			if (premultiply && a != 0xff && format != RGB_565) {
+				r = r * a / 255;
+				g = g * a / 255;
+				b = b * a / 255;
+			}
+			if (format == RGBA_8888) {
+				out.put((byte)r).put((byte)g).put((byte)b).put((byte)a);
+				continue;
+			}
+			int d = dither ? BAYER[((y & 3) << 2) | (x & 3)] * 2 + 1 : 0;
+			short s;
+			if (format == RGBA_4444) {
+				s = (short)((quantize(r, 4, d) << 12) | (quantize(g, 4, d) << 8) | (quantize(b, 4, d) << 4) | quantize(a, 4, d));
+			} else {
+				s = (short)((quantize(r, 5, d) << 11) | (quantize(g, 6, d) << 5) | quantize(b, 5, d));
+			}
+			out.putShort(s);
+		}
+	}
+
+	/**
+	 * The GL type to upload a packed format with, RGBA_8888 is 4 bytes in RGBA order.
+	 */
+	public static int getGLType(int format) {
+		if (format == RGBA_8888) {
+			return GL10.GL_UNSIGNED_BYTE;
+		}
+		return format == RGBA_4444 ? GL10.GL_UNSIGNED_SHORT_4_4_4_4 : GL10.GL_UNSIGNED_SHORT_5_6_5;
+	}
+
+	/**
+	 * The GL format to upload a packed format with.
+	 */
+	public static int getGLFormat(int format) {
+		return format == RGB_565 ? GL10.GL_RGB : GL10.GL_RGBA;
+	}
+
+	// Reduces a channel to bits, d is the dither offset in 32nds of a step.
+	private static int quantize(int v, int bits, int d) {
+		if (d != 0) {
+			// Rounds up or down depending on the position in the matrix.
+			v += (d << (8 - bits)) / 32;
+			v = v < 0 ? 0 : (v > 255 ? 255 : v);
+		}
+		return v >> (8 - bits);
+	}
+}
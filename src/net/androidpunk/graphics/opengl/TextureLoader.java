@@ -0,0 +1,466 @@
+package net.androidpunk.graphics.opengl;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.microedition.khronos.opengles.GL10;
+
+import net.androidpunk.FP;
+import net.androidpunk.android.OpenGLSystem;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Loads textures without blocking the game or GL threads. Images are decoded on
+ * a small pool of background threads, then uploaded on the GL thread by
+ * processUploads(), which stops once its time budget for the frame is used.
+ *
+ * Every load returns a Request that can be waited on or polled, and getProgress()
+ * tells how much of everything requested so far has finished, for loading screens.
+ */
+public class TextureLoader {
+
+	private static final String TAG = "TextureLoader";
+
+	/**
+	 * Milliseconds per frame the GL thread may spend uploading textures.
+	 * At least one texture is uploaded per frame so loading always moves forward.
+	 */
+	public static long uploadBudget = 4;
+
+	/**
+	 * How many threads decode images.
+	 */
+	public static final int DECODE_THREADS = 2;
+
+	/**
+	 * Decode PNGs with PNGDecoder instead of BitmapFactory. They go straight into
+	 * a reused upload buffer, so no Bitmap is made and less memory is churned.
+	 */
+	public static boolean usePNGDecoder = false;
+
+	/**
+	 * How many upload buffers PNGDecoder keeps for reuse.
+	 */
+	public static int bufferPoolSize = DECODE_THREADS + 1;
+
+	private static ExecutorService mPool;
+	private static final ConcurrentLinkedQueue<Request> mUploads = new ConcurrentLinkedQueue<Request>();
+	private static final ConcurrentLinkedQueue<ByteBuffer> mBuffers = new ConcurrentLinkedQueue<ByteBuffer>();
+
+	// Progress information.
+	private static final AtomicInteger mRequested = new AtomicInteger();
+	private static final AtomicInteger mFinished = new AtomicInteger();
+
+	/**
+	 * A texture being loaded. get() waits for it to be uploaded, never call it on the GL thread.
+	 */
+	public static class Request implements Future<Texture> {
+		private final Texture mTexture;
+		private final String mPath;
+		private final CountDownLatch mDone = new CountDownLatch(1);
+		private volatile Bitmap mBitmap;
+		private volatile PKMImage mImage;
+		private volatile PKMImage mAlpha;
+		private volatile ByteBuffer mPacked;
+		private int mPackedFormat, mWidth, mHeight;
+		private boolean mPooled = false;
+		private volatile boolean mCancelled = false;
+		private volatile boolean mFailed = false;
+
+		private Request(Texture texture, String path) {
+			mTexture = texture;
+			mPath = path;
+		}
+
+		/** @private Runs on a decode thread. */
+		private void decode() {
+			try {
+				decodeImage();
+			} catch (Throwable t) {
+				// Anything else thrown here would leave the request waiting forever.
+				Log.e(TAG, "Could not decode " + mPath + ": " + t);
+				if (mBitmap != null) {
+					mBitmap.recycle();
+					mBitmap = null;
+				}
+				mPacked = null;
+				mImage = null;
+				mAlpha = null;
+				finish(true);
+			}
+		}
+
+		/** @private Decodes the image and queues it for upload, or finishes the request as failed. */
+		private void decodeImage() {
+			if (mCancelled) {
+				return;
+			}
+			AssetDensity.Variant variant = AssetDensity.resolve(mPath);
+			if (PKMImage.isPKM(variant.path)) {
+				mImage = Texture.readPKM(variant.path, true);
+				if (mImage == null) {
+					finish(true);
+					return;
+				}
+				mAlpha = Texture.readPKM(PKMImage.getAlphaPath(variant.path), false);
+				if (mAlpha != null || !OpenGLSystem.isETC1Supported()) {
+					// Can't be uploaded compressed, decode here rather than on the GL thread.
+					PKMImage image = mImage;
+					int pixels[] = new int[image.paddedWidth * image.paddedHeight];
+					image.decode(pixels, mAlpha);
+					mImage = null;
+					mAlpha = null;
+					mWidth = image.paddedWidth;
+					mHeight = image.paddedHeight;
+					mPackedFormat = TextureFormat.choose(pixels, mTexture.getFormat());
+					mPacked = TextureFormat.pack(pixels, mWidth, mHeight, mPackedFormat, mTexture.getDither());
+				}
+				mUploads.add(this);
+				return;
+			}
+			if (usePNGDecoder && variant.path.toLowerCase().endsWith(".png") && decodePNG(variant)) {
+				mUploads.add(this);
+				return;
+			}
+			InputStream is = FP.getAsset(variant.path);
+			if (is == null) {
+				Log.e(TAG, "Could not open " + variant.path);
+				finish(true);
+				return;
+			}
+			BitmapFactory.Options opts = new BitmapFactory.Options();
+			opts.inSampleSize = variant.sampleSize;
+			mBitmap = BitmapFactory.decodeStream(is, null, opts);
+			try {
+				is.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			if (mBitmap == null) {
+				Log.e(TAG, "Could not decode " + mPath);
+				finish(true);
+				return;
+			}
+			if (mTexture.getFormat() != TextureFormat.RGBA_8888) {
+				// Convert here rather than on the GL thread.
+				int pixels[] = TextureFormat.getPixels(mBitmap);
+				int format = TextureFormat.choose(pixels, mTexture.getFormat());
+				if (format != TextureFormat.RGBA_8888) {
+					mWidth = mBitmap.getWidth();
+					mHeight = mBitmap.getHeight();
+					mPackedFormat = format;
+					mPacked = TextureFormat.pack(pixels, mWidth, mHeight, format, mTexture.getDither());
+					mBitmap.recycle();
+					mBitmap = null;
+				}
+			}
+			mUploads.add(this);
+		}
+
+		/** @private Decodes into a pooled buffer, false to fall back to BitmapFactory. */
+		private boolean decodePNG(AssetDensity.Variant variant) {
+			InputStream is = FP.getAsset(variant.path);
+			if (is == null) {
+				return false;
+			}
+			ByteBuffer buffer = null;
+			try {
+				PNGDecoder decoder = new PNGDecoder(new BufferedInputStream(is, 8192));
+				int format = decoder.chooseFormat(mTexture.getFormat());
+				buffer = takeBuffer(decoder.getBufferSize(format, variant.sampleSize));
+				mPacked = decoder.decode(buffer, format, true, mTexture.getDither(), variant.sampleSize);
+				mPackedFormat = decoder.getFormat();
+				if (buffer != null && mPacked != buffer) {
+					recycleBuffer(buffer);
+				}
+				mWidth = (decoder.getWidth() + variant.sampleSize - 1) / variant.sampleSize;
+				mHeight = (decoder.getHeight() + variant.sampleSize - 1) / variant.sampleSize;
+				mPooled = true;
+				return true;
+			} catch (IOException e) {
+				Log.w(TAG, "PNGDecoder could not decode " + variant.path + ", using BitmapFactory: " + e.getMessage());
+				if (buffer != null) {
+					recycleBuffer(buffer);
+				}
+				return false;
+			} finally {
+				try {
+					is.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+
+		/** @private Runs on the GL thread. */
+		private void upload(GL10 gl) {
+			if (mImage != null) {
+				PKMImage image = mImage;
+				mImage = null;
+				if (!mCancelled) {
+					mTexture.upload(gl, image, mAlpha);
+					finish(false);
+				}
+				mAlpha = null;
+				return;
+			}
+			if (mPacked != null) {
+				ByteBuffer packed = mPacked;
+				mPacked = null;
+				if (!mCancelled) {
+					mTexture.upload(gl, mWidth, mHeight, mPackedFormat, packed);
+					finish(false);
+				}
+				if (mPooled) {
+					recycleBuffer(packed);
+				}
+				return;
+			}
+			Bitmap bm = mBitmap;
+			mBitmap = null;
+			if (mCancelled) {
+				bm.recycle();
+				return;
+			}
+			// Anything not RGBA_8888 was packed by decode(), don't let AUTO scan it again here.
+			mTexture.upload(gl, bm, TextureFormat.RGBA_8888);
+			finish(false);
+		}
+
+		private synchronized void finish(boolean failed) {
+			if (isDone()) {
+				return;
+			}
+			mFailed = failed;
+			mFinished.incrementAndGet();
+			mDone.countDown();
+		}
+
+		/**
+		 * Stops the load if the texture has not been uploaded yet.
+		 */
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			if (isDone()) {
+				return false;
+			}
+			mCancelled = true;
+			finish(true);
+			return true;
+		}
+
+		public boolean isCancelled() {
+			return mCancelled;
+		}
+
+		/**
+		 * If the texture has been uploaded, failed or was cancelled.
+		 */
+		public boolean isDone() {
+			return mDone.getCount() == 0;
+		}
+
+		/**
+		 * If the image could not be read or the load was cancelled.
+		 */
+		public boolean isFailed() {
+			return mFailed;
+		}
+
+		public Texture get() throws InterruptedException, ExecutionException {
+			mDone.await();
+			return result();
+		}
+
+		public Texture get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+			if (!mDone.await(timeout, unit)) {
+				throw new TimeoutException();
+			}
+			return result();
+		}
+
+		private Texture result() throws ExecutionException {
+			if (mFailed) {
+				throw new ExecutionException(new IOException("Could not load " + mPath));
+			}
+			return mTexture;
+		}
+
+		/**
+		 * The texture being loaded.
+		 */
+		public Texture getTexture() { return mTexture; }
+	}
+
+	/**
+	 * Decodes an asset in the background and uploads it into the texture.
+	 * The texture's size is read from the image header straight away, so
+	 * SubTextures can be made before it is loaded.
+	 * @param	texture		The texture to load into.
+	 * @param	path		Asset path of the image.
+	 * @return	The request, to wait for or check on.
+	 */
+	public static Request load(Texture texture, String path) {
+		final Request r = new Request(texture, path);
+		mRequested.incrementAndGet();
+		getPool().execute(new Runnable() {
+			public void run() {
+				r.decode();
+			}
+		});
+		return r;
+	}
+
+	/**
+	 * Reads the size of an image without decoding it.
+	 * @param	path		Asset path of the image.
+	 * @param	into		Options to fill, outWidth and outHeight are set.
+	 * @return	false if the image could not be read.
+	 */
+	public static boolean readBounds(String path, BitmapFactory.Options into) {
+		InputStream is = FP.getAsset(path);
+		if (is == null) {
+			return false;
+		}
+		if (PKMImage.isPKM(path)) {
+			int size[] = new int[4];
+			try {
+				PKMImage.readHeader(is, size);
+				into.outWidth = size[0];
+				into.outHeight = size[1];
+			} catch (IOException e) {
+				into.outWidth = into.outHeight = 0;
+			}
+			try {
+				is.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			return into.outWidth > 0 && into.outHeight > 0;
+		}
+		into.inJustDecodeBounds = true;
+		BitmapFactory.decodeStream(is, null, into);
+		into.inJustDecodeBounds = false;
+		try {
+			is.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		return into.outWidth > 0 && into.outHeight > 0;
+	}
+
+	/**
+	 * Uploads decoded textures until the budget is used. Call once a frame on the GL thread.
+	 * @param	gl			The GL context.
+	 * @param	ms			Time budget in milliseconds.
+	 */
+	public static void processUploads(GL10 gl, long ms) {
+		long start = SystemClock.uptimeMillis();
+		Request r;
+		while ((r = mUploads.poll()) != null) {
+			r.upload(gl);
+			if (SystemClock.uptimeMillis() - start >= ms) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Fraction of the requested textures that have finished loading, 1 when nothing is loading.
+	 */
+	public static float getProgress() {
+		int requested = mRequested.get();
+		if (requested == 0) {
+			return 1;
+		}
+		return Math.min(1, (float)mFinished.get() / requested);
+	}
+
+	/**
+	 * Amount of textures requested and not finished yet.
+	 */
+	public static int getPendingCount() {
+		return mRequested.get() - mFinished.get();
+	}
+
+	/**
+	 * Starts counting progress from zero again, eg. when a new loading screen starts.
+	 * Textures still loading are counted in the new progress.
+	 */
+	public static void resetProgress() {
+		int pending = getPendingCount();
+		mFinished.set(0);
+		mRequested.set(Math.max(0, pending));
+	}
+
+	/** @private A pooled buffer of at least size bytes, or null to allocate one. */
+	private static ByteBuffer takeBuffer(int size) {
+		ByteBuffer smallest = null;
+		for (ByteBuffer bb : mBuffers) {
+			if (bb.capacity() >= size && (smallest == null || bb.capacity() < smallest.capacity())) {
+				smallest = bb;
+			}
+		}
+		if (smallest != null && mBuffers.remove(smallest)) {
+			return smallest;
+		}
+		return null;
+	}
+
+	/** @private Keeps a buffer for reuse, dropping the smallest when the pool is full. */
+	private static void recycleBuffer(ByteBuffer bb) {
+		mBuffers.add(bb);
+		while (mBuffers.size() > bufferPoolSize) {
+			ByteBuffer smallest = null;
+			for (ByteBuffer b : mBuffers) {
+				if (smallest == null || b.capacity() < smallest.capacity()) {
+					smallest = b;
+				}
+			}
+			mBuffers.remove(smallest);
+		}
+	}
+
+	/**
+	 * Frees the upload buffers kept for PNGDecoder, eg. when loading is over.
+	 */
+	public static void clearBuffers() {
+		mBuffers.clear();
+	}
+
+	private static synchronized ExecutorService getPool() {
+		if (mPool == null) {
+			mPool = Executors.newFixedThreadPool(DECODE_THREADS, new ThreadFactory() {
+				private int mCount = 0;
+
+				public Thread newThread(final Runnable r) {
+					Thread t = new Thread(new Runnable() {
+						public void run() {
+							// Stay out of the way of the game and GL threads.
+							Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+							r.run();
+						}
+					}, TAG + "-" + (mCount++));
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		return mPool;
+	}
+}
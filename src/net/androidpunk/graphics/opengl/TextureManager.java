@@ -0,0 +1,168 @@
+package net.androidpunk.graphics.opengl;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Vector;
+
+import javax.microedition.khronos.opengles.GL10;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Keeps track of the textures in video memory. Graphics acquire() the texture
+ * they draw from and release their reference when they are released. When the
+ * estimated memory of all loaded textures goes over the budget, textures nobody
+ * references are deleted, least recently drawn first. An evicted texture
+ * reloads itself the next time something tries to draw it.
+ *
+ * When the GL context is lost every texture is marked lost instead of being
+ * reloaded at once. Textures that are drawn come back first, the rest are
+ * restored by restore() within a time budget each frame.
+ */
+public class TextureManager {
+
+	private static final String TAG = "TextureManager";
+
+	/**
+	 * Estimated bytes of texture memory to stay under.
+	 */
+	public static long budget = 48 * 1024 * 1024;
+	
+	/**
+	 * Milliseconds per frame restore() may spend on lost textures nothing has drawn yet.
+	 */
+	public static long restoreBudget = 2;
+
+	// Loaded textures, only touched on the GL thread.
+	private static final Vector<Texture> mTextures = new Vector<Texture>();
+	private static long mBytes = 0;
+	
+	// Textures lost with the last context, most recently used first.
+	private static final Vector<Texture> mLost = new Vector<Texture>();
+
+	// Frame information.
+	private static int mFrame = 0;
+
+	// Statistics.
+	private static int mEvictions = 0;
+
+	/** @private A texture was uploaded. */
+	static void register(Texture texture) {
+		if (!mTextures.contains(texture)) {
+			mTextures.add(texture);
+			mBytes += texture.getBytes();
+		}
+	}
+
+	/** @private A texture was deleted. */
+	static void unregister(Texture texture) {
+		if (mTextures.remove(texture)) {
+			mBytes -= texture.getBytes();
+		}
+	}
+
+	/**
+	 * Starts a new frame, call before drawing.
+	 */
+	public static void newFrame() {
+		mFrame++;
+	}
+
+	/** @private The current frame, for least recently used tracking. */
+	static int getFrame() {
+		return mFrame;
+	}
+
+	/**
+	 * Evicts unreferenced textures until the memory is under the budget.
+	 * Call on the GL thread at the end of a frame.
+	 * @param	gl			The GL context.
+	 */
+	public static void trim(GL10 gl) {
+		while (mBytes > budget) {
+			Texture oldest = null;
+			int count = mTextures.size();
+			for (int i = 0; i < count; i++) {
+				Texture t = mTextures.get(i);
+				// Never evict what is in use or was just drawn.
+				if (t.getReferenceCount() > 0 || t.getLastUsed() == mFrame || !t.canReload()) {
+					continue;
+				}
+				if (oldest == null || t.getLastUsed() < oldest.getLastUsed()) {
+					oldest = t;
+				}
+			}
+			if (oldest == null) {
+				// Everything left is needed.
+				return;
+			}
+			Log.d(TAG, "Evicting texture " + oldest.mTextureName + ", " + (oldest.getBytes() / 1024) + "KB");
+			oldest.evict(gl);
+			mEvictions++;
+		}
+	}
+
+	/**
+	 * Marks every loaded texture as lost. Call on the GL thread when a new
+	 * context was created, after OpenGLSystem.newContext().
+	 */
+	public static void contextLost() {
+		mLost.clear();
+		int count = mTextures.size();
+		for (int i = 0; i < count; i++) {
+			Texture t = mTextures.get(i);
+			t.invalidate();
+			if (t.isEvicted()) {
+				mLost.add(t);
+			}
+		}
+		mTextures.clear();
+		mBytes = 0;
+		Collections.sort(mLost, new Comparator<Texture>() {
+			public int compare(Texture a, Texture b) {
+				return b.getLastUsed() - a.getLastUsed();
+			}
+		});
+		Log.d(TAG, count + " textures lost with the context");
+	}
+	
+	/**
+	 * Restores lost textures until the time is used, drawn ones are already
+	 * on their way back. Call on the GL thread after drawing.
+	 * @param	gl			The GL context.
+	 * @param	ms			Time budget in milliseconds.
+	 */
+	public static void restore(GL10 gl, long ms) {
+		if (mLost.isEmpty()) {
+			return;
+		}
+		long start = SystemClock.uptimeMillis();
+		while (!mLost.isEmpty()) {
+			mLost.remove(0).restore(gl);
+			if (SystemClock.uptimeMillis() - start >= ms) {
+				return;
+			}
+		}
+	}
+	
+	/**
+	 * Number of lost textures restore() has not got to yet.
+	 */
+	public static int getLostCount() { return mLost.size(); }
+	
+	/**
+	 * Estimated bytes used by loaded textures.
+	 */
+	public static long getBytes() { return mBytes; }
+
+	/**
+	 * Number of loaded textures.
+	 */
+	public static int getTextureCount() { return mTextures.size(); }
+
+	/**
+	 * Number of textures evicted since the start.
+	 */
+	public static int getEvictionCount() { return mEvictions; }
+}
@@ -80,19 +80,14 @@ public class CircleShape extends Shape {
 			return;
 		}
 		
+		setUntextured(gl, false);
 		GLGraphic.setBuffers(gl, mVertexBuffer, null);
 		
-		gl.glDisable(GL10.GL_TEXTURE_2D);
-		gl.glDisableClientState(GL10.GL_TEXTURE_COORD_ARRAY);
-		
 		gl.glPushMatrix(); 
 		{
 			setMatrix(gl);
 			gl.glDrawArrays(GL10.GL_TRIANGLE_FAN, 0, mVertices/2);
 		}
 		gl.glPopMatrix();
-		
-		gl.glEnable(GL10.GL_TEXTURE_2D);
-		gl.glEnableClientState(GL10.GL_TEXTURE_COORD_ARRAY);
 	}
 }
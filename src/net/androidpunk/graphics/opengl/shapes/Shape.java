@@ -5,6 +5,7 @@ import java.nio.FloatBuffer;
 import javax.microedition.khronos.opengles.GL10;
 
 import net.androidpunk.FP;
+import net.androidpunk.android.OpenGLSystem;
 import net.androidpunk.graphics.opengl.GLGraphic;
 import android.graphics.Matrix;
 import android.graphics.Point;
@@ -267,18 +268,16 @@ public class Shape extends GLGraphic {
 			return;
 		}
 		
+		// Only sets what shapes need and leaves it set, textured graphics
+		// enable what they use through the OpenGLSystem state cache.
+		setUntextured(gl, mVertexColorBuffer != null);
 		if (mVertexColorBuffer != null) {
-			gl.glEnableClientState(GL10.GL_COLOR_ARRAY);
 			gl.glColorPointer(4, GL10.GL_FLOAT, 0, mVertexColorBuffer);
-			gl.glShadeModel(GL10.GL_SMOOTH);
-		} else {
-			gl.glShadeModel(GL10.GL_FLAT);
+			// Only matters with per vertex colors.
+			OpenGLSystem.setShadeModel(gl, GL10.GL_SMOOTH);
 		}
 		GLGraphic.setBuffers(gl, mVertexBuffer, null);
 		
-		gl.glDisable(GL10.GL_TEXTURE_2D);
-		gl.glDisableClientState(GL10.GL_TEXTURE_COORD_ARRAY);
-		
 		gl.glPushMatrix(); 
 		{
 			setMatrix(gl);
@@ -286,12 +285,23 @@ public class Shape extends GLGraphic {
 		}
 		gl.glPopMatrix();
 		
-		gl.glEnable(GL10.GL_TEXTURE_2D);
-		gl.glEnableClientState(GL10.GL_TEXTURE_COORD_ARRAY);
-		
 		if (mVertexColorBuffer != null) {
-			gl.glDisableClientState(GL10.GL_COLOR_ARRAY);
-			gl.glShadeModel(GL10.GL_FLAT);
+			OpenGLSystem.invalidateColor();
+		}
+	}
+	
+	/**
+	 * Sets the state for drawing without a texture.
+	 * @param gl the GL context.
+	 * @param vertexColors If a color array is used.
+	 */
+	protected static void setUntextured(GL10 gl, boolean vertexColors) {
+		OpenGLSystem.disable(gl, GL10.GL_TEXTURE_2D);
+		OpenGLSystem.disableClientState(gl, GL10.GL_TEXTURE_COORD_ARRAY);
+		if (vertexColors) {
+			OpenGLSystem.enableClientState(gl, GL10.GL_COLOR_ARRAY);
+		} else {
+			OpenGLSystem.disableClientState(gl, GL10.GL_COLOR_ARRAY);
 		}
 	}
 }
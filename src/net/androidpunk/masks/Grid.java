@@ -20,6 +20,7 @@ public class Grid extends Hitbox {
     public boolean usePositions = false;
     
     private Bitmap mData;
+    private int mBits[];
     private int mColumns;
     private int mRows;
     private Rect mTile;
@@ -46,6 +47,7 @@ public class Grid extends Hitbox {
         mColumns = width/tileWidth;
         mRows = height/tileHeight;
         mData = Bitmap.createBitmap(mColumns, mRows, Config.ARGB_4444);
+        mBits = new int[(mColumns * mRows + 31) >> 5];
         Canvas c = new Canvas(mData);
         c.drawColor(0);
         mTile = new Rect(0, 0, tileWidth, tileHeight);
@@ -110,6 +112,15 @@ public class Grid extends Hitbox {
 			row /= mTile.height();
 		}
 		mData.setPixel(column, row, solid ? 0xffffffff : 0);
+		setBit(row * mColumns + column, solid);
+	}
+	
+	/** @private Mirrors a tile into the packed solid bits. */
+	private void setBit(int index, boolean solid) {
+		if (solid)
+			mBits[index >> 5] |= 1 << (index & 31);
+		else
+			mBits[index >> 5] &= ~(1 << (index & 31));
 	}
 
 	/**
@@ -125,14 +136,31 @@ public class Grid extends Hitbox {
 	 * Gets the value of a tile.
 	 * @param	column		Tile column.
 	 * @param	row			Tile row.
-	 * @return	tile value.
+	 * @return	tile value, false outside the grid.
 	 */
 	public boolean getTile(int column, int row) {
 		if (usePositions) {
 			column /= mTile.width();
 			row /= mTile.height();
 		}
-		return mData.getPixel(column, row) != 0;
+		if (column < 0 || row < 0 || column >= mColumns || row >= mRows)
+			return false;
+		int index = row * mColumns + column;
+		return (mBits[index >> 5] & (1 << (index & 31))) != 0;
+	}
+	
+	/**
+	 * Checks a tile without a JNI call, for use in tight loops. Tiles outside
+	 * the grid are never solid. Ignores usePositions.
+	 * @param	column		Tile column.
+	 * @param	row			Tile row.
+	 * @return	If the tile is solid.
+	 */
+	public boolean isSolid(int column, int row) {
+		if (column < 0 || row < 0 || column >= mColumns || row >= mRows)
+			return false;
+		int index = row * mColumns + column;
+		return (mBits[index >> 5] & (1 << (index & 31))) != 0;
 	}
 
 	/**
@@ -156,6 +184,14 @@ public class Grid extends Hitbox {
 		mPaint.reset();
 		mPaint.setColor(solid ? 0xffffffff : 0);
 		mCanvas.drawRect(mRect, mPaint);
+		
+		int right = Math.min(column + width, mColumns);
+		int bottom = Math.min(row + height, mRows);
+		for (int y = Math.max(row, 0); y < bottom; y++) {
+			for (int x = Math.max(column, 0); x < right; x++) {
+				setBit(y * mColumns + x, solid);
+			}
+		}
 	}
 
 	/**
@@ -258,6 +294,140 @@ public class Grid extends Hitbox {
 	 * The grid data.
 	 */
 	public Bitmap getData() { return mData; }
+	
+	/**
+	 * The grid data packed one bit per tile, row-major, 32 tiles per int.
+	 * Tile (column, row) is bit ((row * columns + column) & 31) of word
+	 * ((row * columns + column) >> 5). Do not modify.
+	 */
+	public int[] getPackedData() { return mBits; }
+	
+	/**
+	 * Computes which tiles can be seen from a tile, using recursive shadowcasting.
+	 * Solid tiles block sight but are themselves visible.
+	 * @param	column		Viewer column.
+	 * @param	row			Viewer row.
+	 * @param	radius		How far the viewer can see, in tiles.
+	 * @param	into		Visibility bits to reuse, packed like getPackedData(). May be null.
+	 * @return	The visibility bits, into if it was big enough.
+	 */
+	public int[] computeFieldOfView(int column, int row, int radius, int into[]) {
+		into = clearVisibility(into);
+		castFieldOfView(column, row, radius, into);
+		return into;
+	}
+	
+	/**
+	 * Computes the union of what several viewers can see in one pass over
+	 * a shared output buffer.
+	 * @param	columns		Viewer columns.
+	 * @param	rows		Viewer rows.
+	 * @param	count		How many viewers to use from the arrays.
+	 * @param	radius		How far each viewer can see, in tiles.
+	 * @param	into		Visibility bits to reuse, packed like getPackedData(). May be null.
+	 * @return	The visibility bits, into if it was big enough.
+	 */
+	public int[] computeFieldOfView(int columns[], int rows[], int count, int radius, int into[]) {
+		into = clearVisibility(into);
+		for (int i = 0; i < count; i++) {
+			castFieldOfView(columns[i], rows[i], radius, into);
+		}
+		return into;
+	}
+	
+	/**
+	 * Checks a tile in visibility bits from computeFieldOfView().
+	 * @param	visibility	The visibility bits.
+	 * @param	column		Tile column.
+	 * @param	row			Tile row.
+	 * @return	If the tile is visible.
+	 */
+	public boolean isVisible(int visibility[], int column, int row) {
+		if (usePositions) {
+			column /= mTile.width();
+			row /= mTile.height();
+		}
+		if (column < 0 || row < 0 || column >= mColumns || row >= mRows)
+			return false;
+		int index = row * mColumns + column;
+		return (visibility[index >> 5] & (1 << (index & 31))) != 0;
+	}
+	
+	/** @private Returns a zeroed visibility buffer, reusing into when possible. */
+	private int[] clearVisibility(int into[]) {
+		if (into == null || into.length < mBits.length)
+			return new int[mBits.length];
+		for (int i = 0; i < into.length; i++)
+			into[i] = 0;
+		return into;
+	}
+	
+	// Octant transforms for shadowcasting, as {xx, xy, yx, yy}.
+	private static final int OCTANTS[][] = {
+		{ 1,  0,  0,  1}, { 0,  1,  1,  0}, { 0, -1,  1,  0}, {-1,  0,  0,  1},
+		{-1,  0,  0, -1}, { 0, -1, -1,  0}, { 0,  1, -1,  0}, { 1,  0,  0, -1}
+	};
+	
+	/** @private Marks everything one viewer can see. */
+	private void castFieldOfView(int column, int row, int radius, int into[]) {
+		if (usePositions) {
+			column /= mTile.width();
+			row /= mTile.height();
+		}
+		if (column < 0 || row < 0 || column >= mColumns || row >= mRows)
+			return;
+		int index = row * mColumns + column;
+		into[index >> 5] |= 1 << (index & 31);
+		for (int o = 0; o < 8; o++) {
+			int t[] = OCTANTS[o];
+			castLight(column, row, 1, 1.0f, 0.0f, radius, t[0], t[1], t[2], t[3], into);
+		}
+	}
+	
+	/** @private Scans one octant row by row, recursing around blocking tiles. */
+	private void castLight(int cx, int cy, int startRow, float start, float end, int radius,
+			int xx, int xy, int yx, int yy, int into[]) {
+		if (start < end)
+			return;
+		int radius2 = radius * radius;
+		float newStart = 0;
+		for (int j = startRow; j <= radius; j++) {
+			int dy = -j;
+			boolean blocked = false;
+			for (int dx = -j; dx <= 0; dx++) {
+				float leftSlope = (dx - 0.5f) / (dy + 0.5f);
+				float rightSlope = (dx + 0.5f) / (dy - 0.5f);
+				if (start < rightSlope)
+					continue;
+				if (end > leftSlope)
+					break;
+				
+				int x = cx + dx * xx + dy * xy;
+				int y = cy + dx * yx + dy * yy;
+				boolean inside = x >= 0 && y >= 0 && x < mColumns && y < mRows;
+				int index = y * mColumns + x;
+				if (inside && dx * dx + dy * dy <= radius2)
+					into[index >> 5] |= 1 << (index & 31);
+				
+				// The edge of the grid blocks sight like a wall.
+				boolean opaque = !inside || (mBits[index >> 5] & (1 << (index & 31))) != 0;
+				if (blocked) {
+					if (opaque) {
+						newStart = rightSlope;
+					} else {
+						blocked = false;
+						start = newStart;
+					}
+				} else if (opaque && j < radius) {
+					blocked = true;
+					castLight(cx, cy, j + 1, start, leftSlope, radius, xx, xy, yx, yy, into);
+					newStart = rightSlope;
+				}
+			}
+			if (blocked)
+				break;
+		}
+	}
     
     /** @private Collide against an Entity. */
     private boolean collideMask(Mask other) {
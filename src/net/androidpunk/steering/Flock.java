@@ -0,0 +1,400 @@
+package net.androidpunk.steering;
+
+import net.androidpunk.FP;
+import net.androidpunk.Positionable;
+import net.androidpunk.masks.Grid;
+
+/**
+ * A group of steering agents (boids). Agent state is kept in primitive arrays
+ * indexed by agent, and neighbours are found through a SpatialHash rebuilt
+ * once per update, so flocking is roughly linear in the number of agents.
+ *
+ * Each frame, call seek(), flee() or arrive() for any agents that need a goal,
+ * then update() to add separation, alignment, cohesion and obstacle avoidance
+ * and move everything.
+ */
+public class Flock {
+
+	private static final String TAG = "Flock";
+
+	/**
+	 * Maximum speed of an agent, in pixels per second (or per frame when FP.fixed).
+	 */
+	public float maxSpeed = 100;
+
+	/**
+	 * Maximum steering force applied to an agent per update.
+	 */
+	public float maxForce = 200;
+
+	/**
+	 * Agents closer than this are considered neighbours for alignment and cohesion.
+	 */
+	public float neighbourRadius = 48;
+
+	/**
+	 * Agents closer than this push each other apart.
+	 */
+	public float separationRadius = 24;
+
+	/**
+	 * Weight of the separation behaviour.
+	 */
+	public float separationWeight = 1.5f;
+
+	/**
+	 * Weight of the alignment behaviour.
+	 */
+	public float alignmentWeight = 1.0f;
+
+	/**
+	 * Weight of the cohesion behaviour.
+	 */
+	public float cohesionWeight = 1.0f;
+
+	/**
+	 * Weight of the obstacle avoidance behaviour.
+	 */
+	public float avoidWeight = 3.0f;
+
+	/**
+	 * How far ahead, in pixels, agents look for solid Grid tiles.
+	 */
+	public float lookAhead = 32;
+
+	/**
+	 * Maximum neighbours considered per agent, extra neighbours are ignored.
+	 */
+	public int maxNeighbours = 16;
+
+	/**
+	 * Agent x positions.
+	 */
+	public float x[];
+
+	/**
+	 * Agent y positions.
+	 */
+	public float y[];
+
+	/**
+	 * Agent x velocities.
+	 */
+	public float vx[];
+
+	/**
+	 * Agent y velocities.
+	 */
+	public float vy[];
+
+	// Accumulated steering forces, cleared every update.
+	private float mAx[];
+	private float mAy[];
+
+	// New velocities, applied once every agent has steered.
+	private float mNewVx[];
+	private float mNewVy[];
+
+	// Agent information.
+	private int mCount;
+	private Positionable mBound[];
+
+	// Neighbour information.
+	private SpatialHash mHash;
+	private int mNeighbours[];
+
+	// Obstacle information.
+	private Grid mGrid;
+
+	/**
+	 * Constructor.
+	 * @param	capacity		How many agents the flock can hold before growing.
+	 */
+	public Flock(int capacity) {
+		x = new float[capacity];
+		y = new float[capacity];
+		vx = new float[capacity];
+		vy = new float[capacity];
+		mAx = new float[capacity];
+		mAy = new float[capacity];
+		mNewVx = new float[capacity];
+		mNewVy = new float[capacity];
+		mBound = new Positionable[capacity];
+		mHash = new SpatialHash(neighbourRadius, capacity);
+		mNeighbours = new int[64];
+	}
+
+	/**
+	 * Adds an agent.
+	 * @param	x			X position.
+	 * @param	y			Y position.
+	 * @param	vx			Starting x velocity.
+	 * @param	vy			Starting y velocity.
+	 * @return	The index of the new agent.
+	 */
+	public int add(float x, float y, float vx, float vy) {
+		if (mCount == this.x.length)
+			grow(mCount * 2);
+		int i = mCount++;
+		this.x[i] = x;
+		this.y[i] = y;
+		this.vx[i] = vx;
+		this.vy[i] = vy;
+		mAx[i] = mAy[i] = 0;
+		mBound[i] = null;
+		return i;
+	}
+
+	/**
+	 * Adds an agent that moves a Positionable (eg. an Entity) every update.
+	 * @param	p			The object to move, its position is the start position.
+	 * @return	The index of the new agent.
+	 */
+	public int add(Positionable p) {
+		int i = add(p.x, p.y, 0, 0);
+		mBound[i] = p;
+		return i;
+	}
+
+	/**
+	 * Removes an agent by moving the last agent into its place.
+	 * @param	index		The agent to remove.
+	 * @return	The old index of the agent that now lives at index, or -1 if none moved.
+	 */
+	public int remove(int index) {
+		if (index < 0 || index >= mCount)
+			return -1;
+		int last = --mCount;
+		if (index == last) {
+			mBound[last] = null;
+			return -1;
+		}
+		x[index] = x[last];
+		y[index] = y[last];
+		vx[index] = vx[last];
+		vy[index] = vy[last];
+		mAx[index] = mAx[last];
+		mAy[index] = mAy[last];
+		mBound[index] = mBound[last];
+		mBound[last] = null;
+		return last;
+	}
+
+	/**
+	 * Removes all agents.
+	 */
+	public void clear() {
+		for (int i = 0; i < mCount; i++)
+			mBound[i] = null;
+		mCount = 0;
+	}
+
+	private void grow(int capacity) {
+		x = copy(x, capacity);
+		y = copy(y, capacity);
+		vx = copy(vx, capacity);
+		vy = copy(vy, capacity);
+		mAx = copy(mAx, capacity);
+		mAy = copy(mAy, capacity);
+		mNewVx = new float[capacity];
+		mNewVy = new float[capacity];
+		Positionable bound[] = new Positionable[capacity];
+		System.arraycopy(mBound, 0, bound, 0, mCount);
+		mBound = bound;
+	}
+
+	private static float[] copy(float src[], int capacity) {
+		float dst[] = new float[capacity];
+		System.arraycopy(src, 0, dst, 0, Math.min(src.length, capacity));
+		return dst;
+	}
+
+	/**
+	 * Sets a Grid for the agents to steer around. Use null for none.
+	 */
+	public void setObstacles(Grid grid) {
+		mGrid = grid;
+	}
+
+	/**
+	 * Steers an agent towards a target at full speed.
+	 * @param	i			The agent.
+	 * @param	tx			Target x.
+	 * @param	ty			Target y.
+	 * @param	weight		How much this behaviour counts.
+	 */
+	public void seek(int i, float tx, float ty, float weight) {
+		steerTowards(i, tx - x[i], ty - y[i], maxSpeed, weight);
+	}
+
+	/**
+	 * Steers an agent directly away from a position.
+	 * @param	i			The agent.
+	 * @param	tx			Position to flee from.
+	 * @param	ty			Position to flee from.
+	 * @param	weight		How much this behaviour counts.
+	 */
+	public void flee(int i, float tx, float ty, float weight) {
+		steerTowards(i, x[i] - tx, y[i] - ty, maxSpeed, weight);
+	}
+
+	/**
+	 * Steers an agent towards a target, slowing down to stop on it.
+	 * @param	i				The agent.
+	 * @param	tx				Target x.
+	 * @param	ty				Target y.
+	 * @param	slowingRadius	Distance from the target to start slowing down.
+	 * @param	weight			How much this behaviour counts.
+	 */
+	public void arrive(int i, float tx, float ty, float slowingRadius, float weight) {
+		float dx = tx - x[i];
+		float dy = ty - y[i];
+		float dist = (float)Math.sqrt(dx * dx + dy * dy);
+		float speed = dist < slowingRadius ? maxSpeed * dist / slowingRadius : maxSpeed;
+		steerTowards(i, dx, dy, speed, weight);
+	}
+
+	/** @private Adds the force needed to turn the velocity into (dx, dy) at speed. */
+	private void steerTowards(int i, float dx, float dy, float speed, float weight) {
+		float len = (float)Math.sqrt(dx * dx + dy * dy);
+		if (len == 0)
+			return;
+		float s = speed / len;
+		mAx[i] += (dx * s - vx[i]) * weight;
+		mAy[i] += (dy * s - vy[i]) * weight;
+	}
+
+	/**
+	 * Applies flocking and obstacle avoidance to every agent, then moves them.
+	 */
+	public void update() {
+		int count = mCount;
+		if (count == 0)
+			return;
+
+		float e = FP.fixed ? 1 : FP.elapsed;
+		float x[] = this.x, y[] = this.y, vx[] = this.vx, vy[] = this.vy;
+		float ax[] = mAx, ay[] = mAy;
+		float newVx[] = mNewVx, newVy[] = mNewVy;
+
+		if (mHash.getCellSize() != neighbourRadius)
+			mHash = new SpatialHash(neighbourRadius, x.length);
+		mHash.build(x, y, count);
+
+		// Candidates include agents outside the radius, so leave room for them.
+		if (mNeighbours.length < maxNeighbours * 4)
+			mNeighbours = new int[maxNeighbours * 4];
+		int neighbours[] = mNeighbours;
+		float nr2 = neighbourRadius * neighbourRadius;
+		float sr2 = separationRadius * separationRadius;
+
+		for (int i = 0; i < count; i++) {
+			float px = x[i], py = y[i];
+			float sepX = 0, sepY = 0;
+			float aliX = 0, aliY = 0;
+			float cohX = 0, cohY = 0;
+			int near = 0;
+
+			int found = mHash.query(px, py, neighbourRadius, neighbours);
+			for (int n = 0; n < found && near < maxNeighbours; n++) {
+				int j = neighbours[n];
+				if (j == i)
+					continue;
+				float dx = px - x[j];
+				float dy = py - y[j];
+				float d2 = dx * dx + dy * dy;
+				if (d2 > nr2)
+					continue;
+				near++;
+				aliX += vx[j];
+				aliY += vy[j];
+				cohX += x[j];
+				cohY += y[j];
+				if (d2 < sr2 && d2 > 0) {
+					// Push away, stronger the closer they are.
+					sepX += dx / d2;
+					sepY += dy / d2;
+				}
+			}
+
+			if (near > 0) {
+				float inv = 1f / near;
+				steerTowards(i, sepX, sepY, maxSpeed, separationWeight);
+				steerTowards(i, aliX * inv, aliY * inv, maxSpeed, alignmentWeight);
+				steerTowards(i, cohX * inv - px, cohY * inv - py, maxSpeed, cohesionWeight);
+			}
+
+			if (mGrid != null)
+				avoid(i);
+
+			// Truncate the force and integrate.
+			float fx = ax[i], fy = ay[i];
+			float f2 = fx * fx + fy * fy;
+			if (f2 > maxForce * maxForce) {
+				float s = maxForce / (float)Math.sqrt(f2);
+				fx *= s;
+				fy *= s;
+			}
+			ax[i] = ay[i] = 0;
+
+			float nvx = vx[i] + fx * e;
+			float nvy = vy[i] + fy * e;
+			float v2 = nvx * nvx + nvy * nvy;
+			if (v2 > maxSpeed * maxSpeed) {
+				float s = maxSpeed / (float)Math.sqrt(v2);
+				nvx *= s;
+				nvy *= s;
+			}
+			newVx[i] = nvx;
+			newVy[i] = nvy;
+		}
+
+		// Move after steering so every agent saw the same frame.
+		for (int i = 0; i < count; i++) {
+			vx[i] = newVx[i];
+			vy[i] = newVy[i];
+			x[i] += vx[i] * e;
+			y[i] += vy[i] * e;
+			Positionable p = mBound[i];
+			if (p != null) {
+				p.x = (int)x[i];
+				p.y = (int)y[i];
+			}
+		}
+	}
+
+	/** @private Steers an agent away from solid tiles ahead of it. */
+	private void avoid(int i) {
+		float speed = (float)Math.sqrt(vx[i] * vx[i] + vy[i] * vy[i]);
+		if (speed == 0)
+			return;
+		Grid g = mGrid;
+		float dirX = vx[i] / speed;
+		float dirY = vy[i] / speed;
+		float gx = x[i] - (g.parent != null ? g.parent.x : 0);
+		float gy = y[i] - (g.parent != null ? g.parent.y : 0);
+		int tw = g.getTileWidth();
+		int th = g.getTileHeight();
+
+		// Probe half way and at the full look ahead distance.
+		for (int step = 1; step <= 2; step++) {
+			float d = lookAhead * step * 0.5f;
+			float ahX = gx + dirX * d;
+			float ahY = gy + dirY * d;
+			int column = (int)Math.floor(ahX / tw);
+			int row = (int)Math.floor(ahY / th);
+			if (g.isSolid(column, row)) {
+				// Push away from the centre of the blocking tile.
+				float cx = (column + 0.5f) * tw;
+				float cy = (row + 0.5f) * th;
+				steerTowards(i, ahX - cx, ahY - cy, maxSpeed, avoidWeight * (3 - step));
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Amount of agents in the flock.
+	 */
+	public int getCount() { return mCount; }
+}
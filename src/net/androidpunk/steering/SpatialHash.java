@@ -0,0 +1,159 @@
+package net.androidpunk.steering;
+
+/**
+ * A uniform grid hash of points, rebuilt from scratch every frame in a single
+ * counting pass. Points are stored by index so the caller keeps its own data
+ * in primitive arrays. Cells are hashed into a fixed size table, so the world
+ * does not need to be bounded.
+ */
+public class SpatialHash {
+
+	private static final String TAG = "SpatialHash";
+
+	// Hash information.
+	private float mCellSize;
+	private float mInvCellSize;
+	private int mMask;
+	private int mCellStart[];
+
+	// Point information.
+	private int mCount;
+	private int mItems[];
+	private int mCellX[];
+	private int mCellY[];
+	private int mBucket[];
+
+	/**
+	 * Constructor.
+	 * @param	cellSize		Size of a cell, should be about the largest query radius.
+	 * @param	capacity		How many points the hash can hold before growing.
+	 */
+	public SpatialHash(float cellSize, int capacity) {
+		mCellSize = cellSize;
+		mInvCellSize = 1 / cellSize;
+
+		// Twice as many buckets as points keeps collisions low.
+		int tableSize = 1;
+		while (tableSize < capacity * 2)
+			tableSize <<= 1;
+		mMask = tableSize - 1;
+		mCellStart = new int[tableSize + 1];
+
+		ensureCapacity(capacity);
+	}
+
+	private void ensureCapacity(int capacity) {
+		if (mItems != null && mItems.length >= capacity)
+			return;
+		mItems = new int[capacity];
+		mCellX = new int[capacity];
+		mCellY = new int[capacity];
+		mBucket = new int[capacity];
+	}
+
+	/** @private Hashes a cell coordinate into a bucket. */
+	private int hash(int cx, int cy) {
+		return ((cx * 73856093) ^ (cy * 19349663)) & mMask;
+	}
+
+	/**
+	 * The column of the cell containing the position.
+	 */
+	public int cellX(float x) {
+		return (int)Math.floor(x * mInvCellSize);
+	}
+
+	/**
+	 * The row of the cell containing the position.
+	 */
+	public int cellY(float y) {
+		return (int)Math.floor(y * mInvCellSize);
+	}
+
+	/**
+	 * The size of one cell.
+	 */
+	public float getCellSize() { return mCellSize; }
+
+	/**
+	 * Rebuilds the hash from the first count positions in the arrays.
+	 * @param	x			X positions.
+	 * @param	y			Y positions.
+	 * @param	count		How many positions to hash.
+	 */
+	public void build(float x[], float y[], int count) {
+		ensureCapacity(count);
+		mCount = count;
+
+		int start[] = mCellStart;
+		int buckets = start.length;
+		for (int i = 0; i < buckets; i++)
+			start[i] = 0;
+
+		// Count the points in each bucket.
+		for (int i = 0; i < count; i++) {
+			int cx = cellX(x[i]);
+			int cy = cellY(y[i]);
+			int b = hash(cx, cy);
+			mCellX[i] = cx;
+			mCellY[i] = cy;
+			mBucket[i] = b;
+			start[b + 1]++;
+		}
+
+		// Prefix sum so start[b] is where bucket b begins.
+		for (int i = 1; i < buckets; i++)
+			start[i] += start[i - 1];
+
+		// Scatter, walking backwards keeps each bucket in index order.
+		for (int i = count - 1; i >= 0; i--) {
+			int b = mBucket[i];
+			mItems[start[b + 1] - 1] = i;
+			start[b + 1]--;
+		}
+		// start[b + 1] now holds the start of bucket b, shift it back.
+		for (int i = 0; i < buckets - 1; i++)
+			start[i] = start[i + 1];
+		start[buckets - 1] = count;
+	}
+
+	/**
+	 * Collects the indices of all points in the cells overlapping the circle.
+	 * Candidates still need a distance check, but never appear twice.
+	 * @param	x			Circle x.
+	 * @param	y			Circle y.
+	 * @param	radius		Circle radius.
+	 * @param	into		Array to fill with point indices.
+	 * @return	How many indices were written, at most into.length.
+	 */
+	public int query(float x, float y, float radius, int into[]) {
+		int minX = cellX(x - radius);
+		int maxX = cellX(x + radius);
+		int minY = cellY(y - radius);
+		int maxY = cellY(y + radius);
+		int found = 0;
+		int limit = into.length;
+
+		for (int cy = minY; cy <= maxY; cy++) {
+			for (int cx = minX; cx <= maxX; cx++) {
+				int b = hash(cx, cy);
+				int end = mCellStart[b + 1];
+				for (int i = mCellStart[b]; i < end; i++) {
+					int item = mItems[i];
+					// Other cells can share this bucket, only take our own.
+					if (mCellX[item] != cx || mCellY[item] != cy)
+						continue;
+					if (found == limit)
+						return found;
+					into[found++] = item;
+				}
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * How many points were hashed by the last build.
+	 */
+	public int getCount() { return mCount; }
+}
@@ -0,0 +1,112 @@
+package net.androidpunk.tools;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+/**
+ * Desktop tool, not used on the device and not part of the library build.
+ * Build it from tools/src with a desktop JDK:
+ *
+ *   javac -d tools/bin tools/src/net/androidpunk/tools/*.java
+ *   java -cp tools/bin net.androidpunk.tools.AtlasIndexer atlas.xml [atlas.xml ...]
+ *
+ * Converts Sparrow atlas xml files to the binary index AtlasIndex reads, so
+ * the game doesn't have to parse the xml on first start. Each index is
+ * written next to its xml as name.atlas, put both in the assets.
+ *
+ * The file layout must match AtlasIndex.write, bump both together.
+ */
+public class AtlasIndexer {
+
+	private static final int MAGIC = 0x41504958; // "APIX"
+	private static final int VERSION = 1;
+	private static final String EXTENSION = ".atlas";
+
+	// TextureFormat constants.
+	private static final int RGBA_8888 = 0;
+	private static final int RGB_565 = 1;
+	private static final int RGBA_4444 = 2;
+	private static final int AUTO = 3;
+
+	/**
+	 * Converts one atlas xml file.
+	 * @param	xml			The xml file.
+	 * @return	The index file written.
+	 */
+	public static File index(File xml) throws Exception {
+		Document doc = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(xml);
+		Element ta = (Element)doc.getElementsByTagName("TextureAtlas").item(0);
+		if (ta == null) {
+			throw new IOException("No TextureAtlas element in " + xml);
+		}
+		NodeList stl = ta.getElementsByTagName("SubTexture");
+		File out = new File(getIndexPath(xml.getPath()));
+		DataOutputStream os = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(out)));
+		try {
+			os.writeInt(MAGIC);
+			os.writeInt(VERSION);
+			// Stamp 0, accepted by every install.
+			os.writeLong(0);
+			os.writeUTF(ta.getAttribute("imagePath"));
+			os.writeByte(parseFormat(ta.getAttribute("format")));
+			os.writeByte(Boolean.parseBoolean(ta.getAttribute("dither")) ? 1 : 0);
+			os.writeInt(stl.getLength());
+			for (int i = 0; i < stl.getLength(); i++) {
+				os.writeUTF(((Element)stl.item(i)).getAttribute("name"));
+			}
+			for (int i = 0; i < stl.getLength(); i++) {
+				Element st = (Element)stl.item(i);
+				os.writeInt(Integer.parseInt(st.getAttribute("x")));
+				os.writeInt(Integer.parseInt(st.getAttribute("y")));
+				os.writeInt(Integer.parseInt(st.getAttribute("width")));
+				os.writeInt(Integer.parseInt(st.getAttribute("height")));
+			}
+		} finally {
+			os.close();
+		}
+		System.out.println(xml + " -> " + out + ", " + stl.getLength() + " SubTextures");
+		return out;
+	}
+
+	/** @private Same as AtlasIndex.getIndexPath. */
+	private static String getIndexPath(String xmlPath) {
+		String path = xmlPath.replace('\\', '/');
+		int dot = path.lastIndexOf('.');
+		if (dot > path.lastIndexOf('/')) {
+			xmlPath = xmlPath.substring(0, dot);
+		}
+		return xmlPath + EXTENSION;
+	}
+
+	/** @private Same as TextureFormat.parse with RGBA_8888 as the fallback. */
+	private static int parseFormat(String name) {
+		String n = name.toUpperCase().replace("_", "");
+		if (n.equals("RGB565")) {
+			return RGB_565;
+		} else if (n.equals("RGBA4444") || n.equals("ARGB4444")) {
+			return RGBA_4444;
+		} else if (n.equals("AUTO")) {
+			return AUTO;
+		}
+		return RGBA_8888;
+	}
+
+	public static void main(String args[]) throws Exception {
+		if (args.length < 1) {
+			System.out.println("Usage: AtlasIndexer atlas.xml [atlas.xml ...]");
+			return;
+		}
+		for (String path : args) {
+			index(new File(path));
+		}
+	}
+}
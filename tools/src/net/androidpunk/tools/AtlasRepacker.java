@@ -0,0 +1,478 @@
+package net.androidpunk.tools;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.imageio.ImageIO;
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+/**
+ * Desktop tool, not used on the device and not part of the library build, it
+ * needs AWT and ImageIO. Build it from tools/src with a desktop JDK:
+ *
+ *   javac -d tools/bin tools/src/net/androidpunk/tools/*.java
+ *   java -cp tools/bin net.androidpunk.tools.AtlasRepacker ...
+ *
+ * Repacks Sparrow atlases using a
+ * profile saved by AtlasProfiler, so SubTextures that are drawn in the same
+ * frames end up on the same page. Writes new atlas xml files and png images.
+ *
+ * Usage: AtlasRepacker profile.txt outDir pageSize atlas.xml [atlas.xml ...]
+ *
+ * SubTextures that are drawn together most often are grouped first, as long
+ * as a group still fits in a page. Groups are then placed on pages with
+ * MaxRects, hottest first, and whatever was never drawn fills the gaps.
+ *
+ * Each page keeps the format and dither of the atlases its SubTextures came
+ * from, SubTextures of atlases with different settings never share a page.
+ */
+public class AtlasRepacker {
+
+	/**
+	 * Width and height of each page, a power of two.
+	 */
+	public int pageSize = 1024;
+
+	/**
+	 * Pixels between SubTextures.
+	 */
+	public int padding = 1;
+
+	/**
+	 * Fill the padding with edge pixels.
+	 */
+	public boolean extrude = true;
+
+	/**
+	 * How full of SubTextures a group may make a page, packing is never perfect.
+	 */
+	public float maxFill = 0.85f;
+
+	private final List<Region> mRegions = new ArrayList<Region>();
+	private final List<int[]> mPairs = new ArrayList<int[]>();
+	private final List<Bin> mPages = new ArrayList<Bin>();
+
+	private static class Region {
+		public String atlas;
+		public String name;
+		public String format;
+		public boolean dither;
+		public BufferedImage image;
+		public int x, y, width, height;
+		public int drawn = 0;
+		public int group;
+		public Bin page;
+		public Rectangle placed;
+	}
+
+	// MaxRects, best short side fit.
+	private static class Bin {
+		public final int size;
+		public String format = "";
+		public boolean dither = false;
+		public final List<Rectangle> free = new ArrayList<Rectangle>();
+		public final List<Region> regions = new ArrayList<Region>();
+
+		public Bin(int size) {
+			this.size = size;
+			free.add(new Rectangle(0, 0, size, size));
+		}
+
+		public Bin(Bin copy) {
+			size = copy.size;
+			for (Rectangle r : copy.free) {
+				free.add(new Rectangle(r));
+			}
+		}
+
+		public Rectangle find(int width, int height) {
+			Rectangle best = null;
+			int bestShortSide = Integer.MAX_VALUE;
+			for (Rectangle f : free) {
+				if (f.width < width || f.height < height) {
+					continue;
+				}
+				int shortSide = Math.min(f.width - width, f.height - height);
+				if (shortSide < bestShortSide) {
+					bestShortSide = shortSide;
+					best = new Rectangle(f.x, f.y, width, height);
+				}
+			}
+			return best;
+		}
+
+		public void place(Rectangle used) {
+			for (int i = free.size() - 1; i >= 0; i--) {
+				Rectangle f = free.get(i);
+				if (!f.intersects(used)) {
+					continue;
+				}
+				free.remove(i);
+				if (used.x > f.x) {
+					free.add(new Rectangle(f.x, f.y, used.x - f.x, f.height));
+				}
+				if (used.x + used.width < f.x + f.width) {
+					free.add(new Rectangle(used.x + used.width, f.y, f.x + f.width - used.x - used.width, f.height));
+				}
+				if (used.y > f.y) {
+					free.add(new Rectangle(f.x, f.y, f.width, used.y - f.y));
+				}
+				if (used.y + used.height < f.y + f.height) {
+					free.add(new Rectangle(f.x, used.y + used.height, f.width, f.y + f.height - used.y - used.height));
+				}
+			}
+			for (int i = free.size() - 1; i >= 0; i--) {
+				Rectangle a = free.get(i);
+				for (int j = free.size() - 1; j >= 0; j--) {
+					if (i != j && free.get(j).contains(a)) {
+						free.remove(i);
+						break;
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Reads an atlas xml file and its image.
+	 * @param	xml			The xml file.
+	 */
+	public void addAtlas(File xml) throws Exception {
+		Document doc = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(xml);
+		Element ta = (Element)doc.getElementsByTagName("TextureAtlas").item(0);
+		BufferedImage image = ImageIO.read(new File(xml.getParentFile(), ta.getAttribute("imagePath")));
+		if (image == null) {
+			throw new IOException("Could not read the image of " + xml);
+		}
+		NodeList stl = ta.getElementsByTagName("SubTexture");
+		for (int i = 0; i < stl.getLength(); i++) {
+			Element st = (Element)stl.item(i);
+			Region r = new Region();
+			r.atlas = xml.getPath().replace('\\', '/');
+			r.name = st.getAttribute("name");
+			r.format = ta.getAttribute("format");
+			r.dither = Boolean.parseBoolean(ta.getAttribute("dither"));
+			r.image = image;
+			r.x = Integer.parseInt(st.getAttribute("x"));
+			r.y = Integer.parseInt(st.getAttribute("y"));
+			r.width = Integer.parseInt(st.getAttribute("width"));
+			r.height = Integer.parseInt(st.getAttribute("height"));
+			r.group = mRegions.size();
+			mRegions.add(r);
+		}
+	}
+
+	/**
+	 * Reads a profile saved by AtlasProfiler. Add the atlases first.
+	 * @param	profile		The profile.
+	 */
+	public void readProfile(File profile) throws IOException {
+		Map<Integer, Integer> ids = new HashMap<Integer, Integer>();
+		BufferedReader in = new BufferedReader(new FileReader(profile));
+		try {
+			String line;
+			while ((line = in.readLine()) != null) {
+				String f[] = line.split("\t");
+				if (f[0].equals("S") && f.length == 5) {
+					int region = findRegion(f[2], f[3]);
+					if (region < 0) {
+						System.out.println("Not in the atlases given: " + f[2] + " " + f[3]);
+						continue;
+					}
+					ids.put(Integer.parseInt(f[1]), region);
+					mRegions.get(region).drawn += Integer.parseInt(f[4]);
+				} else if (f[0].equals("P") && f.length == 4) {
+					Integer a = ids.get(Integer.parseInt(f[1]));
+					Integer b = ids.get(Integer.parseInt(f[2]));
+					if (a != null && b != null) {
+						mPairs.add(new int[] { a, b, Integer.parseInt(f[3]) });
+					}
+				}
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	// The profile has asset paths, the atlases were given as file paths.
+	private int findRegion(String assetPath, String name) {
+		for (int i = 0; i < mRegions.size(); i++) {
+			Region r = mRegions.get(i);
+			if (r.name.equals(name) && (r.atlas.equals(assetPath) || r.atlas.endsWith("/" + assetPath))) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private int getArea(Region r) {
+		return (r.width + padding * 2) * (r.height + padding * 2);
+	}
+
+	// Both upload the same way, the names as TextureFormat.parse reads them.
+	private static boolean sameSettings(String format, boolean dither, Region r) {
+		return dither == r.dither && normalize(format).equals(normalize(r.format));
+	}
+
+	private static String normalize(String format) {
+		String n = format.toUpperCase().replace("_", "").replace("ARGB", "RGBA");
+		return n.length() == 0 ? "RGBA8888" : n;
+	}
+
+	private int findGroup(int i) {
+		while (mRegions.get(i).group != i) {
+			i = mRegions.get(i).group;
+		}
+		return i;
+	}
+
+	/**
+	 * Groups and places everything on pages.
+	 */
+	public void pack() {
+		// Merge the groups of the pairs drawn together most, while they fit a page.
+		Collections.sort(mPairs, new Comparator<int[]>() {
+			public int compare(int[] a, int[] b) {
+				return b[2] - a[2];
+			}
+		});
+		int groupArea[] = new int[mRegions.size()];
+		for (int i = 0; i < groupArea.length; i++) {
+			groupArea[i] = getArea(mRegions.get(i));
+		}
+		int limit = (int)(pageSize * pageSize * maxFill);
+		for (int pair[] : mPairs) {
+			int a = findGroup(pair[0]);
+			int b = findGroup(pair[1]);
+			Region ra = mRegions.get(a);
+			if (a != b && groupArea[a] + groupArea[b] <= limit && sameSettings(ra.format, ra.dither, mRegions.get(b))) {
+				mRegions.get(b).group = a;
+				groupArea[a] += groupArea[b];
+			}
+		}
+
+		final Map<Integer, List<Region>> groups = new HashMap<Integer, List<Region>>();
+		final Map<Integer, Integer> heat = new HashMap<Integer, Integer>();
+		for (int i = 0; i < mRegions.size(); i++) {
+			int g = findGroup(i);
+			List<Region> list = groups.get(g);
+			if (list == null) {
+				list = new ArrayList<Region>();
+				groups.put(g, list);
+				heat.put(g, 0);
+			}
+			list.add(mRegions.get(i));
+			heat.put(g, heat.get(g) + mRegions.get(i).drawn);
+		}
+		List<Integer> order = new ArrayList<Integer>(groups.keySet());
+		Collections.sort(order, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				return heat.get(b) - heat.get(a);
+			}
+		});
+
+		Comparator<Region> tallestFirst = new Comparator<Region>() {
+			public int compare(Region a, Region b) {
+				return b.height != a.height ? b.height - a.height : b.width - a.width;
+			}
+		};
+		for (Integer g : order) {
+			List<Region> group = groups.get(g);
+			Collections.sort(group, tallestFirst);
+			if (!placeGroup(group)) {
+				// Bigger than what is left anywhere, start a page and overflow into more.
+				for (Region r : group) {
+					placeRegion(r);
+				}
+			}
+		}
+	}
+
+	// Places a whole group on one page, or nothing.
+	private boolean placeGroup(List<Region> group) {
+		for (Bin page : mPages) {
+			if (sameSettings(page.format, page.dither, group.get(0)) && tryPlace(page, group)) {
+				return true;
+			}
+		}
+		Bin page = newPage(pageSize, group.get(0));
+		if (tryPlace(page, group)) {
+			mPages.add(page);
+			return true;
+		}
+		return false;
+	}
+
+	private boolean tryPlace(Bin page, List<Region> group) {
+		Bin trial = new Bin(page);
+		List<Rectangle> placed = new ArrayList<Rectangle>();
+		for (Region r : group) {
+			Rectangle used = trial.find(r.width + padding * 2, r.height + padding * 2);
+			if (used == null) {
+				return false;
+			}
+			trial.place(used);
+			placed.add(used);
+		}
+		page.free.clear();
+		page.free.addAll(trial.free);
+		for (int i = 0; i < group.size(); i++) {
+			Region r = group.get(i);
+			r.page = page;
+			r.placed = placed.get(i);
+			page.regions.add(r);
+		}
+		return true;
+	}
+
+	private void placeRegion(Region r) {
+		int w = r.width + padding * 2;
+		int h = r.height + padding * 2;
+		for (Bin page : mPages) {
+			if (!sameSettings(page.format, page.dither, r)) {
+				continue;
+			}
+			Rectangle used = page.find(w, h);
+			if (used != null) {
+				page.place(used);
+				r.page = page;
+				r.placed = used;
+				page.regions.add(r);
+				return;
+			}
+		}
+		int size = pageSize;
+		while (size < w || size < h) {
+			size *= 2;
+		}
+		Bin page = newPage(size, r);
+		mPages.add(page);
+		Rectangle used = page.find(w, h);
+		page.place(used);
+		r.page = page;
+		r.placed = used;
+		page.regions.add(r);
+	}
+
+	private static Bin newPage(int size, Region first) {
+		Bin page = new Bin(size);
+		page.format = first.format;
+		page.dither = first.dither;
+		return page;
+	}
+
+	/**
+	 * Writes name0.xml, name0.png, name1.xml... for each page.
+	 * @param	dir			Directory to write to.
+	 * @param	name		Start of the file names.
+	 */
+	public void write(File dir, String name) throws IOException {
+		dir.mkdirs();
+		for (int p = 0; p < mPages.size(); p++) {
+			Bin page = mPages.get(p);
+			// Shrink to the power of two that holds what was placed.
+			int right = 1, bottom = 1;
+			for (Region r : page.regions) {
+				right = Math.max(right, r.placed.x + r.placed.width);
+				bottom = Math.max(bottom, r.placed.y + r.placed.height);
+			}
+			int width = 1, height = 1;
+			while (width < right) width *= 2;
+			while (height < bottom) height *= 2;
+
+			BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+			String imageName = name + p + ".png";
+			Writer xml = new FileWriter(new File(dir, name + p + ".xml"));
+			try {
+				xml.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+				xml.write("<TextureAtlas imagePath=\"" + imageName + "\"");
+				if (page.format.length() > 0) {
+					xml.write(" format=\"" + escape(page.format) + "\"");
+				}
+				if (page.dither) {
+					xml.write(" dither=\"true\"");
+				}
+				xml.write(">\n");
+				for (Region r : page.regions) {
+					int x = r.placed.x + padding;
+					int y = r.placed.y + padding;
+					copy(r, image, x, y);
+					xml.write("\t<SubTexture name=\"" + escape(r.name) + "\" x=\"" + x + "\" y=\"" + y
+							+ "\" width=\"" + r.width + "\" height=\"" + r.height + "\"/>\n");
+				}
+				xml.write("</TextureAtlas>\n");
+			} finally {
+				xml.close();
+			}
+			ImageIO.write(image, "png", new File(dir, imageName));
+		}
+	}
+
+	private void copy(Region r, BufferedImage to, int x, int y) {
+		int e = extrude ? padding : 0;
+		for (int dy = -e; dy < r.height + e; dy++) {
+			int sy = r.y + Math.max(0, Math.min(r.height - 1, dy));
+			for (int dx = -e; dx < r.width + e; dx++) {
+				int sx = r.x + Math.max(0, Math.min(r.width - 1, dx));
+				to.setRGB(x + dx, y + dy, r.image.getRGB(sx, sy));
+			}
+		}
+	}
+
+	private static String escape(String s) {
+		return s.replace("&", "&amp;").replace("\"", "&quot;").replace("<", "&lt;").replace(">", "&gt;");
+	}
+
+	/**
+	 * Frames in which pairs of SubTextures drawn together were on different
+	 * textures, before and after packing. Each is a texture switch at least.
+	 * @return	{ before, after }
+	 */
+	public long[] getSplitPairs() {
+		long before = 0, after = 0;
+		for (int pair[] : mPairs) {
+			Region a = mRegions.get(pair[0]);
+			Region b = mRegions.get(pair[1]);
+			if (!a.atlas.equals(b.atlas)) {
+				before += pair[2];
+			}
+			if (a.page != b.page) {
+				after += pair[2];
+			}
+		}
+		return new long[] { before, after };
+	}
+
+	public static void main(String args[]) throws Exception {
+		if (args.length < 4) {
+			System.out.println("Usage: AtlasRepacker profile.txt outDir pageSize atlas.xml [atlas.xml ...]");
+			return;
+		}
+		AtlasRepacker repacker = new AtlasRepacker();
+		repacker.pageSize = Integer.parseInt(args[2]);
+		for (int i = 3; i < args.length; i++) {
+			repacker.addAtlas(new File(args[i]));
+		}
+		repacker.readProfile(new File(args[0]));
+		repacker.pack();
+		repacker.write(new File(args[1]), "atlas");
+		long split[] = repacker.getSplitPairs();
+		System.out.println(repacker.mPages.size() + " pages, frames with pairs on different textures: " + split[0] + " before, " + split[1] + " after");
+	}
+}